@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sunspotworld.hal.SystemClock;
+import org.sunspotworld.host.sim.ByteArrayPacket;
+import org.sunspotworld.host.sim.InMemoryMedium;
+import org.sunspotworld.host.sim.VirtualPlatform;
+
+/**
+ * Encoding and decoding of {@link HotaruWisper} packets, on byte array
+ * backed DataInput and DataOutput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final long MASTER = 0x00144F0100001234L;
+    private static final long RELAY = 0x00144F0100005678L;
+    private final ByteArrayPacket packet = new ByteArrayPacket(InMemoryMedium.MAX_PACKET_LENGTH);
+    private final HotaruWisper beacon = new HotaruWisper();
+    private final HotaruWisper relay = new HotaruWisper();
+    private byte[] beaconBytes;
+    private byte[] relayBytes;
+    private byte[] foreignBytes;
+    private HotaruNode node;
+
+    @Setup
+    public void setUp() throws IOException {
+        node = new HotaruNode(new VirtualPlatform(new InMemoryMedium(), MASTER, new SystemClock()));
+        node.setLogLevel(HotaruNode.ERROR + 1);
+        beacon.masterAddress = MASTER;
+        beacon.selfAddress = MASTER;
+        beacon.masterState = 1;
+        beacon.delay = 420;
+        beacon.interval = 6400;
+        beacon.seq = 17;
+        beacon.hops = 0;
+        relay.masterAddress = MASTER;
+        relay.selfAddress = RELAY;
+        relay.masterState = 1;
+        relay.delay = 437;
+        relay.interval = 6400;
+        relay.seq = 17;
+        relay.hops = 3;
+        beaconBytes = encode(beacon);
+        relayBytes = encode(relay);
+        relay.group = 7;
+        foreignBytes = encode(relay);           // a relay in another swarm
+        relay.group = 0;
+    }
+
+    private byte[] encode(HotaruWisper wisp) throws IOException {
+        packet.reset();
+        wisp.writeTo(packet.getOutput());
+        byte[] bytes = new byte[packet.getLength()];
+        System.arraycopy(packet.getBuffer(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    @Benchmark
+    public int writeBeacon() throws IOException {
+        packet.reset();
+        beacon.writeTo(packet.getOutput());
+        return packet.getLength();
+    }
+
+    @Benchmark
+    public int writeRelay() throws IOException {
+        packet.reset();
+        relay.writeTo(packet.getOutput());
+        return packet.getLength();
+    }
+
+    @Benchmark
+    public HotaruWisper decodeBeacon() throws IOException {
+        packet.fill(beaconBytes, 0, beaconBytes.length);
+        return node.decodePacket(packet);
+    }
+
+    @Benchmark
+    public HotaruWisper decodeRelay() throws IOException {
+        packet.fill(relayBytes, 0, relayBytes.length);
+        return node.decodePacket(packet);
+    }
+
+    @Benchmark
+    public HotaruWisper decodeForeign() throws IOException {
+        packet.fill(foreignBytes, 0, foreignBytes.length);
+        return node.decodePacket(packet);
+    }
+}
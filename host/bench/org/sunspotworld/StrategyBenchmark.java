@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sunspotworld.hal.SystemClock;
+import org.sunspotworld.host.sim.ByteArrayPacket;
+import org.sunspotworld.host.sim.InMemoryMedium;
+import org.sunspotworld.host.sim.VirtualPlatform;
+
+/**
+ * The receive path of the strategies and strategy changes, on a node whose
+ * LEDs and radio are in memory. Logging is off, as in the field.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StrategyBenchmark {
+
+    private static final long SELF = 0x00144F0100001000L;
+    private static final long MASTER = 0x00144F0100002000L;
+    private static final long LOWER_MASTER = 0x00144F0100000100L;
+    private final SystemClock clock = new SystemClock();
+    private final HotaruWisper beacon = new HotaruWisper();
+    private final ByteArrayPacket packet = new ByteArrayPacket(InMemoryMedium.MAX_PACKET_LENGTH);
+    private HotaruNode masterNode;
+    private MasterStrategy master;
+    private HotaruNode slaveNode;
+    private SlaveStrategy slave;
+    private long epoch;
+    private int seq;
+    private boolean flip;
+
+    @Setup
+    public void setUp() {
+        masterNode = newNode();
+        master = new MasterStrategy(masterNode, HotaruNode.BLINK_INTERVAL);
+        masterNode.setStrategy(master);
+        slaveNode = newNode();
+        slave = new SlaveStrategy(slaveNode, MASTER);
+        slaveNode.setStrategy(slave);
+        epoch = clock.currentTimeMillis();
+    }
+
+    private HotaruNode newNode() {
+        HotaruNode node = new HotaruNode(new VirtualPlatform(new InMemoryMedium(), SELF, clock));
+        node.setLogLevel(HotaruNode.ERROR + 1);
+        return node;
+    }
+
+    /**
+     * Fill the beacon with the phase of a master that started at epoch.
+     */
+    private HotaruWisper nextBeacon(long masterAddress) {
+        long since = clock.currentTimeMillis() - epoch;
+        beacon.clear();
+        beacon.masterAddress = masterAddress;
+        beacon.selfAddress = masterAddress;
+        beacon.masterState = (int) ((since / HotaruNode.BLINK_INTERVAL + 1) & 1);
+        beacon.delay = (int) (since % HotaruNode.BLINK_INTERVAL);
+        beacon.interval = HotaruNode.MAX_BEACON_INTERVAL;
+        seq = (seq + 1) & 0xFF;                 // clear() resets beacon.seq
+        beacon.seq = seq;
+        beacon.hops = HotaruNode.MAX_HOPS;      // not relayed further
+        return beacon;
+    }
+
+    /**
+     * A master hearing a master it outranks.
+     */
+    @Benchmark
+    public void masterRecv() {
+        master.recv(nextBeacon(LOWER_MASTER));
+    }
+
+    /**
+     * A slave hearing a new beacon of its master: phase tracking and LEDs.
+     */
+    @Benchmark
+    public void slaveRecv() {
+        slave.recv(nextBeacon(MASTER));
+    }
+
+    /**
+     * Decoding and handling a beacon, as the receive thread and loop do.
+     */
+    @Benchmark
+    public void slaveReceivePacket() throws IOException {
+        packet.reset();
+        nextBeacon(MASTER).writeTo(packet.getOutput());
+        slaveNode.receive(packet);
+    }
+
+    /**
+     * An election and its undoing: master to slave and back.
+     */
+    @Benchmark
+    public void setStrategy() {
+        flip = !flip;
+        if (flip) {
+            masterNode.setStrategy(new SlaveStrategy(masterNode, MASTER));
+        } else {
+            masterNode.setStrategy(new MasterStrategy(masterNode, HotaruNode.BLINK_INTERVAL));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.capture;
+
+/**
+ * Format of a radiogram capture: the radiograms received on the broadcast
+ * port, in the order they arrived, for {@link Replay} to feed back into
+ * nodes later.
+ *<p>
+ * The file is a HEADER_SIZE byte header followed by the records. The header
+ * holds MAGIC, VERSION and the number of record bytes that were committed;
+ * whatever a crashed writer left past them is ignored and overwritten.
+ *<p>
+ * Record layout, RECORD_HEADER bytes followed by the radiogram:
+ *<pre>
+ *   long     time         capture clock in ms, never decreases: host time
+ *                         at a gateway, virtual time in the simulator
+ *   long     local        clock of the receiver in ms at reception
+ *   long     receiver     IEEE address of the node that received it
+ *   byte     rssi         dBm
+ *   ubyte    linkQuality
+ *   ushort   length
+ *   byte[]   radiogram    length bytes, at most MAX_LENGTH
+ *</pre>
+ * All values are big endian.
+ */
+public final class CaptureFile {
+
+    public static final long MAGIC = 0x484F544152554350L;     // "HOTARUCP"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_HEADER = 28;
+    public static final int MAX_LENGTH = 255;
+    static final int LENGTH_OFFSET = 16;
+
+    private CaptureFile() {
+    }
+
+    /**
+     * Parse an IEEE address written like "0014.4F01.0000.1234", the dots
+     * being optional.
+     */
+    public static long parseAddress(String s) {
+        String hex = s.replace(".", "");
+        if (hex.length() == 0 || hex.length() > 16) {
+            throw new NumberFormatException("Not an IEEE address: " + s);
+        }
+        return Long.parseUnsignedLong(hex, 16);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import org.sunspotworld.HotaruNode;
+
+/**
+ * Reads a capture front to back, see {@link CaptureFile} for the format.
+ *<p>
+ * The records are read through a memory map of at most WINDOW_SIZE bytes
+ * that slides along the file, so a capture of any size streams through a
+ * bounded amount of address space and nothing is copied but the radiogram
+ * itself. Only one thread may use a reader.
+ */
+public class CaptureReader implements Closeable {
+
+    private static final long WINDOW_SIZE = 1 << 26;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long length;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    public CaptureReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(CaptureFile.HEADER_SIZE);
+        channel.read(header, 0);
+        if (header.getLong(0) != CaptureFile.MAGIC || header.getInt(8) != CaptureFile.VERSION ||
+                header.getInt(12) != CaptureFile.HEADER_SIZE) {
+            channel.close();
+            throw new IOException("Not a capture: " + path);
+        }
+        length = Math.min(header.getLong(CaptureFile.LENGTH_OFFSET), channel.size() - CaptureFile.HEADER_SIZE);
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return false at the end of the capture
+     */
+    public boolean next(Record r) throws IOException {
+        if (position >= length) {
+            return false;
+        }
+        long windowEnd = window == null ? -1 : windowStart + window.capacity();
+        if (window == null ||
+                (windowEnd < length && position + CaptureFile.RECORD_HEADER + CaptureFile.MAX_LENGTH > windowEnd)) {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, CaptureFile.HEADER_SIZE + position,
+                    Math.min(WINDOW_SIZE, length - position));
+        }
+        MappedByteBuffer b = window;
+        b.position((int) (position - windowStart));
+        if (b.remaining() < CaptureFile.RECORD_HEADER) {
+            throw new IOException("Truncated record at " + position);
+        }
+        r.time = b.getLong();
+        r.local = b.getLong();
+        r.receiver = b.getLong();
+        r.rssi = b.get();
+        r.linkQuality = b.get() & 0xFF;
+        r.length = b.getShort() & 0xFFFF;
+        if (r.length > CaptureFile.MAX_LENGTH || r.length > b.remaining()) {
+            throw new IOException("Truncated record at " + position);
+        }
+        b.get(r.data, 0, r.length);
+        position += CaptureFile.RECORD_HEADER + r.length;
+        return true;
+    }
+
+    /**
+     * Start over at the first record.
+     */
+    public void rewind() {
+        position = 0;
+        window = null;
+    }
+
+    /**
+     * Return the offset of the next record from the first one, in bytes.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Return the number of record bytes in the capture.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+
+    /**
+     * One record, as read by {@link #next}. The radiogram is data[0..length).
+     */
+    public static class Record {
+
+        public long time;
+        public long local;
+        public long receiver;
+        public int rssi;
+        public int linkQuality;
+        public int length;
+        public final byte[] data = new byte[CaptureFile.MAX_LENGTH];
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(time).append(' ').append(HotaruNode.toDottedHex(receiver)).append(" at ").append(local)
+                    .append(" rssi ").append(rssi).append(" lqi ").append(linkQuality).append(' ');
+            for (int i = 0; i < length; i++) {
+                sb.append(Character.forDigit((data[i] >> 4) & 0xF, 16)).append(Character.forDigit(data[i] & 0xF, 16));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends radiograms to a capture, see {@link CaptureFile} for the format.
+ *<p>
+ * Records collect in a direct buffer that goes to the file in one write
+ * when it is full or on {@link #flush()}; the header is updated after each
+ * write, so the file only ever claims complete records. Only one thread
+ * may use a writer.
+ */
+public class CaptureWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer header = ByteBuffer.allocate(CaptureFile.HEADER_SIZE);
+    private long length;
+    private long records;
+
+    /**
+     * Open a capture for appending, creating it if needed.
+     */
+    public CaptureWriter(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        if (channel.size() == 0) {
+            header.putLong(0, CaptureFile.MAGIC);
+            header.putInt(8, CaptureFile.VERSION);
+            header.putInt(12, CaptureFile.HEADER_SIZE);
+            writeHeader();
+        } else {
+            channel.read(header, 0);
+            if (header.getLong(0) != CaptureFile.MAGIC || header.getInt(8) != CaptureFile.VERSION ||
+                    header.getInt(12) != CaptureFile.HEADER_SIZE) {
+                channel.close();
+                throw new IOException("Not a capture: " + path);
+            }
+            length = header.getLong(CaptureFile.LENGTH_OFFSET);
+        }
+    }
+
+    /**
+     * Append one radiogram.
+     *
+     * @param time capture clock in ms
+     * @param local clock of the receiver in ms
+     * @param receiver IEEE address of the receiver
+     */
+    public void append(long time, long local, long receiver, int rssi, int linkQuality,
+            byte[] data, int offset, int len) throws IOException {
+        if (len > CaptureFile.MAX_LENGTH) {
+            throw new IllegalArgumentException("Radiogram of " + len + " bytes");
+        }
+        if (buffer.remaining() < CaptureFile.RECORD_HEADER + len) {
+            flush();
+        }
+        buffer.putLong(time);
+        buffer.putLong(local);
+        buffer.putLong(receiver);
+        buffer.put((byte) rssi);
+        buffer.put((byte) linkQuality);
+        buffer.putShort((short) len);
+        buffer.put(data, offset, len);
+        records++;
+    }
+
+    /**
+     * Write the buffered records and make them part of the file.
+     */
+    public void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        long at = CaptureFile.HEADER_SIZE + length;
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+        buffer.clear();
+        length = at - CaptureFile.HEADER_SIZE;
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        header.putLong(CaptureFile.LENGTH_OFFSET, length);
+        header.clear();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        header.clear();
+    }
+
+    /**
+     * Flush and write everything to the disk.
+     */
+    public void force() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    /**
+     * Return the number of radiograms appended through this writer.
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Return the number of committed record bytes in the file.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public void close() throws IOException {
+        flush();
+        file.close();
+    }
+}
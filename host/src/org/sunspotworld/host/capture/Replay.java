@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.sunspotworld.HotaruNode;
+import org.sunspotworld.Metrics;
+import org.sunspotworld.hal.RadioConnection;
+import org.sunspotworld.host.sim.ByteArrayPacket;
+import org.sunspotworld.host.sim.InMemoryMedium;
+import org.sunspotworld.host.sim.VirtualPlatform;
+
+/**
+ * Feeds a capture back into fresh nodes, one per receiver in it.
+ *<p>
+ * Every replayed node runs on a {@link ReplayClock} that shows its
+ * receiver's clock from the capture, and is driven like the
+ * {@link org.sunspotworld.host.sim.SwarmSimulator} drives its nodes:
+ * {@link HotaruNode#receive} with each captured radiogram, and
+ * {@link HotaruNode#transmit} and {@link HotaruNode#receiveTimedOut} as
+ * their timers come due. Since replayed nodes do not hear each other, the
+ * timers of a node only have to be run up to the time of its next
+ * radiogram, which keeps the replay a single pass over the capture. What
+ * the nodes send goes to an {@link InMemoryMedium} nobody listens to.
+ *<p>
+ * The speed only paces the pass against the wall clock: 1 for real time,
+ * N for N times faster, 0 for as fast as possible. The nodes see the
+ * captured times either way, so a capture always replays the same.
+ *<p>
+ * Usage: Replay [name=value ...], see {@link #main}.
+ */
+public class Replay {
+
+    private final CaptureReader reader;
+    private final InMemoryMedium medium = new InMemoryMedium();
+    private final Map<Long, Replica> replicas = new HashMap<Long, Replica>();
+    private final CaptureReader.Record record = new CaptureReader.Record();
+    private final ByteArrayPacket packet = new ByteArrayPacket(CaptureFile.MAX_LENGTH);
+    private int syncMode = HotaruNode.SYNC_MASTER_SLAVE;
+    private boolean dutyCycled;
+    private int group;
+    private long only = -1;
+    private boolean verbose;
+    private long records;
+    private long strategyChanges;
+
+    /**
+     * A node replaying what one receiver heard.
+     */
+    private static class Replica {
+
+        final ReplayClock clock = new ReplayClock();
+        final VirtualPlatform platform;
+        final HotaruNode node;
+        final RadioConnection conn;
+        final ByteArrayPacket xmitPacket = new ByteArrayPacket(InMemoryMedium.MAX_PACKET_LENGTH);
+        long nextXmit;
+        long recvDeadline;
+        long offset;                    // local clock minus capture clock
+        String strategy;
+        int changes;
+
+        Replica(InMemoryMedium medium, long address) throws IOException {
+            platform = new VirtualPlatform(medium, address, clock);
+            node = new HotaruNode(platform);
+            conn = platform.openBroadcast(HotaruNode.BROADCAST_PORT);
+        }
+    }
+
+    public Replay(CaptureReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * @param mode HotaruNode.SYNC_MASTER_SLAVE or HotaruNode.SYNC_FIREFLY
+     */
+    public void setSyncMode(int mode) {
+        this.syncMode = mode;
+    }
+
+    public void setDutyCycled(boolean dutyCycled) {
+        this.dutyCycled = dutyCycled;
+    }
+
+    /**
+     * Set the swarm group of the replayed nodes; they ignore the others.
+     */
+    public void setGroup(int group) {
+        this.group = group;
+    }
+
+    /**
+     * Replay only what the given receiver heard; -1 for all receivers.
+     */
+    public void setReceiver(long address) {
+        this.only = address;
+    }
+
+    /**
+     * Print every strategy change of a replayed node.
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Replay the whole capture.
+     *
+     * @param speed times faster than real time, 0 for as fast as possible
+     */
+    public void run(double speed) throws IOException, InterruptedException {
+        long first = -1;
+        long last = 0;
+        long wallStart = System.currentTimeMillis();
+        while (reader.next(record)) {
+            if (only != -1 && record.receiver != only) {
+                continue;
+            }
+            if (first < 0) {
+                first = record.time;
+            }
+            last = record.time;
+            if (speed > 0) {
+                long wait = wallStart + (long) ((record.time - first) / speed) - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+            }
+            Replica r = replica(record.receiver, record.local);
+            r.offset = record.local - record.time;
+            advance(r, record.local);
+            r.clock.set(record.local);
+            packet.fill(record.data, 0, record.length);
+            packet.setLink(record.rssi, record.linkQuality);
+            r.node.receive(packet);
+            r.recvDeadline = record.local + r.node.getRecvTimeout();
+            note(r);
+            records++;
+        }
+        for (Replica r : replicas.values()) {
+            advance(r, last + r.offset);
+        }
+    }
+
+    /**
+     * Return the node of a receiver, booting it on its first radiogram.
+     */
+    private Replica replica(long address, long local) throws IOException {
+        Replica r = replicas.get(Long.valueOf(address));
+        if (r == null) {
+            final Replica replica = new Replica(medium, address);
+            replica.node.setLogLevel(HotaruNode.ERROR + 1);
+            replica.node.setSyncMode(syncMode);
+            replica.node.setDutyCycled(dutyCycled);
+            replica.node.setGroup(group);
+            replica.node.setTransmitRequestListener(new HotaruNode.TransmitRequestListener() {
+
+                public void transmitRequested() {
+                    replica.nextXmit = replica.clock.currentTimeMillis();
+                }
+            });
+            replica.clock.set(local);
+            replica.node.initialize();
+            replica.nextXmit = local;
+            replica.recvDeadline = local + replica.node.getRecvTimeout();
+            replica.strategy = replica.node.getStrategyName();
+            replicas.put(Long.valueOf(address), replica);
+            r = replica;
+        }
+        return r;
+    }
+
+    /**
+     * Run the timers of a node that come due up to the given local time.
+     */
+    private void advance(Replica r, long until) throws IOException {
+        while (true) {
+            long due = Math.min(r.nextXmit, r.recvDeadline);
+            if (due > until) {
+                return;
+            }
+            r.clock.set(due);
+            if (r.nextXmit <= r.recvDeadline) {
+                long next = due + r.node.getXmitInterval();
+                r.node.transmit(r.conn, r.xmitPacket);
+                r.nextXmit = next;
+            } else {
+                r.node.receiveTimedOut();
+                r.recvDeadline = due + r.node.getRecvTimeout();
+            }
+            note(r);
+        }
+    }
+
+    private void note(Replica r) {
+        String s = r.node.getStrategyName();
+        if (s != null && !s.equals(r.strategy)) {
+            if (verbose) {
+                System.out.println(r.clock.currentTimeMillis() + " " + HotaruNode.toDottedHex(r.node.getAddress()) +
+                        " " + r.strategy + " -> " + s);
+            }
+            r.strategy = s;
+            r.changes++;
+            strategyChanges++;
+        }
+    }
+
+    /**
+     * Return the number of radiograms replayed.
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Return the number of receivers in the capture, that is replayed nodes.
+     */
+    public int getReceivers() {
+        return replicas.size();
+    }
+
+    public long getStrategyChanges() {
+        return strategyChanges;
+    }
+
+    /**
+     * Return the number of packets the replayed nodes sent.
+     */
+    public long getTransmissions() {
+        return medium.getPacketsSent();
+    }
+
+    /**
+     * Return the number of replayed nodes that ended up master.
+     */
+    public int countMasters() {
+        int n = 0;
+        for (Replica r : replicas.values()) {
+            if (r.node.getMasterAddress() == r.node.getAddress()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public Metrics getTotalMetrics() {
+        Metrics total = new Metrics();
+        for (Replica r : replicas.values()) {
+            total.add(r.node.getMetrics());
+        }
+        return total;
+    }
+
+    /**
+     * Return a digest of the final node states, to compare replays of one
+     * capture across versions of the nodes.
+     */
+    public long digest() {
+        List<Long> addresses = new ArrayList<Long>(replicas.keySet());
+        Collections.sort(addresses);
+        long h = 0xcbf29ce484222325L;
+        for (Long address : addresses) {
+            Replica r = replicas.get(address);
+            h = (h ^ address.longValue()) * 0x100000001b3L;
+            h = (h ^ r.node.getMasterAddress()) * 0x100000001b3L;
+            h = (h ^ r.node.getHotaruState()) * 0x100000001b3L;
+            h = (h ^ r.changes) * 0x100000001b3L;
+        }
+        h = (h ^ medium.getPacketsSent()) * 0x100000001b3L;
+        return h;
+    }
+
+    /**
+     * Options, all name=value:
+     *<pre>
+     *   file=hotaru.cap  capture to replay
+     *   speed=0          1 for real time, N for N times faster, 0 for as fast as possible
+     *   receiver=all     replay only this receiver, an IEEE address
+     *   sync=master      master (master/slave election) or firefly
+     *   duty=false       whether slaves power the receiver down between beacons
+     *   group=0          swarm group of the replayed nodes
+     *   verbose=false    print every strategy change
+     *   dump=0           print the first this many records and exit
+     *</pre>
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> opts = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0) {
+                System.err.println("Expected name=value: " + args[i]);
+                System.exit(1);
+            }
+            opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        File path = new File(opt(opts, "file", "hotaru.cap"));
+        double speed = Double.parseDouble(opt(opts, "speed", "0"));
+        String receiver = opt(opts, "receiver", "all");
+        int dump = Integer.parseInt(opt(opts, "dump", "0"));
+
+        CaptureReader reader = new CaptureReader(path);
+        if (dump > 0) {
+            CaptureReader.Record r = new CaptureReader.Record();
+            for (int i = 0; i < dump && reader.next(r); i++) {
+                System.out.println(r);
+            }
+            reader.close();
+            return;
+        }
+        Replay replay = new Replay(reader);
+        if ("firefly".equals(opt(opts, "sync", "master"))) {
+            replay.setSyncMode(HotaruNode.SYNC_FIREFLY);
+        }
+        replay.setDutyCycled(Boolean.valueOf(opt(opts, "duty", "false")).booleanValue());
+        replay.setGroup(Integer.parseInt(opt(opts, "group", "0")));
+        replay.setVerbose(Boolean.valueOf(opt(opts, "verbose", "false")).booleanValue());
+        if (!"all".equals(receiver)) {
+            replay.setReceiver(CaptureFile.parseAddress(receiver));
+        }
+        long wallStart = System.currentTimeMillis();
+        replay.run(speed);
+        long wall = Math.max(1, System.currentTimeMillis() - wallStart);
+        reader.close();
+        System.out.println("Replayed         : " + replay.getRecords() + " radiograms in " + wall + "ms (" +
+                replay.getRecords() * 1000 / wall + "/s)");
+        System.out.println("Receivers        : " + replay.getReceivers());
+        System.out.println("Strategy changes : " + replay.getStrategyChanges());
+        System.out.println("Masters          : " + replay.countMasters());
+        System.out.println("Transmissions    : " + replay.getTransmissions());
+        System.out.println("Digest           : " + Long.toHexString(replay.digest()));
+        System.out.println("Metrics of all nodes:");
+        replay.getTotalMetrics().print(System.out);
+    }
+
+    private static String opt(Map<String, String> opts, String name, String def) {
+        String v = opts.get(name);
+        return v != null ? v : def;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.check;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks that the classes compiled from ../src only use the platform API a
+ * Sun SPOT has. The host build compiles them for Java SE, where javac does
+ * not stop a call to a method CLDC 1.1 lacks; this reads the constant pool
+ * of every class file and reports each class, field or method of java.*
+ * and javax.* that is not in the API list, and every generic signature.
+ *<p>
+ * A line of the API list names a class, like "java/lang/String", a member
+ * of any type, like "java/lang/String.charAt", or a member with the
+ * parameter types of its descriptor, like "java/lang/Integer.valueOf(Ljava/lang/String;)",
+ * for members of which CLDC lacks some overloads. "#" starts a comment.
+ * java/lang/StringBuilder is in the list because javac uses it for string
+ * concatenation at the host target; the SPOT build uses StringBuffer.
+ *<p>
+ * Usage: CldcCheck api-file classes-dir [skipped-package ...], packages
+ * given like "org/sunspotworld/host/". Exits with status 1 on a violation.
+ */
+public class CldcCheck {
+
+    private static final int CLASS = 7;
+    private static final int FIELD_REF = 9;
+    private static final int METHOD_REF = 10;
+    private static final int INTERFACE_METHOD_REF = 11;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int UTF8 = 1;
+    private static final int INVOKE_DYNAMIC = 18;
+    private final Set<String> api = new HashSet<String>();
+    private final List<String> skipped = new ArrayList<String>();
+    private int classes;
+    private int violations;
+
+    public CldcCheck(File apiFile) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(apiFile));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.length() > 0) {
+                    api.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Leave out the classes of a package and its subpackages, like
+     * "org/sunspotworld/host/".
+     */
+    public void skip(String prefix) {
+        skipped.add(prefix);
+    }
+
+    /**
+     * Check every class file below a directory.
+     */
+    public void checkTree(File dir, String path) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String name = path + f.getName();
+            if (f.isDirectory()) {
+                checkTree(f, name + "/");
+            } else if (name.endsWith(".class") && !isSkipped(name)) {
+                check(f, name.substring(0, name.length() - ".class".length()));
+            }
+        }
+    }
+
+    private boolean isSkipped(String name) {
+        for (String prefix : skipped) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check one class file.
+     */
+    void check(File file, String className) throws IOException {
+        classes++;
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readInt();                       // magic
+            in.readInt();                       // minor and major version
+            int count = in.readUnsignedShort();
+            int[] tags = new int[count];
+            int[] refs = new int[count];
+            int[] refs2 = new int[count];
+            String[] utf = new String[count];
+            for (int i = 1; i < count; i++) {
+                int tag = in.readUnsignedByte();
+                tags[i] = tag;
+                switch (tag) {
+                    case UTF8:
+                        utf[i] = in.readUTF();
+                        break;
+                    case CLASS:
+                    case 8:                     // String
+                    case 16:                    // MethodType
+                    case 19:                    // Module
+                    case 20:                    // Package
+                        refs[i] = in.readUnsignedShort();
+                        break;
+                    case 3:                     // Integer
+                    case 4:                     // Float
+                        in.readInt();
+                        break;
+                    case 5:                     // Long
+                    case 6:                     // Double
+                        in.readLong();
+                        i++;
+                        break;
+                    case FIELD_REF:
+                    case METHOD_REF:
+                    case INTERFACE_METHOD_REF:
+                    case NAME_AND_TYPE:
+                    case 17:                    // Dynamic
+                    case INVOKE_DYNAMIC:
+                        refs[i] = in.readUnsignedShort();
+                        refs2[i] = in.readUnsignedShort();
+                        break;
+                    case 15:                    // MethodHandle
+                        in.readUnsignedByte();
+                        in.readUnsignedShort();
+                        break;
+                    default:
+                        throw new IOException(file + ": unknown constant pool tag " + tag);
+                }
+            }
+            for (int i = 1; i < count; i++) {
+                if (tags[i] == CLASS) {
+                    checkClass(className, utf[refs[i]]);
+                } else if (tags[i] == FIELD_REF || tags[i] == METHOD_REF || tags[i] == INTERFACE_METHOD_REF) {
+                    String owner = utf[refs[refs[i]]];
+                    int nameAndType = refs2[i];
+                    checkMember(className, owner, utf[refs[nameAndType]], utf[refs2[nameAndType]]);
+                } else if (tags[i] == INVOKE_DYNAMIC) {
+                    report(className, "invokedynamic, as for a lambda");
+                }
+            }
+            in.readUnsignedShort();             // access flags
+            in.readUnsignedShort();             // this class
+            in.readUnsignedShort();             // super class
+            in.skipBytes(2 * in.readUnsignedShort());
+            for (int members = 0; members < 2; members++) {
+                int n = in.readUnsignedShort();
+                for (int m = 0; m < n; m++) {
+                    in.skipBytes(6);            // access flags, name, descriptor
+                    checkAttributes(in, className, utf);
+                }
+            }
+            checkAttributes(in, className, utf);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void checkAttributes(DataInputStream in, String className, String[] utf) throws IOException {
+        int n = in.readUnsignedShort();
+        for (int a = 0; a < n; a++) {
+            String name = utf[in.readUnsignedShort()];
+            int length = in.readInt();
+            if ("Signature".equals(name)) {
+                report(className, "generic signature");
+            }
+            in.skipBytes(length);
+        }
+    }
+
+    private void checkClass(String className, String name) {
+        while (name.startsWith("[")) {
+            name = name.substring(1);
+        }
+        if (name.startsWith("L") && name.endsWith(";")) {
+            name = name.substring(1, name.length() - 1);
+        }
+        if (isPlatform(name) && !api.contains(name)) {
+            report(className, name);
+        }
+    }
+
+    private void checkMember(String className, String owner, String name, String descriptor) {
+        if (!isPlatform(owner)) {
+            return;
+        }
+        String member = owner + "." + name;
+        String params = member + descriptor.substring(0, descriptor.indexOf(')') + 1);
+        if (!api.contains(member) && !api.contains(params)) {
+            report(className, params);
+        }
+    }
+
+    private static boolean isPlatform(String name) {
+        return name.startsWith("java/") || name.startsWith("javax/");
+    }
+
+    private void report(String className, String what) {
+        violations++;
+        System.out.println(className.replace('/', '.') + ": not in CLDC: " + what);
+    }
+
+    public int getClasses() {
+        return classes;
+    }
+
+    public int getViolations() {
+        return violations;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CldcCheck api-file classes-dir [skipped-package ...]");
+            System.exit(2);
+        }
+        CldcCheck check = new CldcCheck(new File(args[0]));
+        for (int i = 2; i < args.length; i++) {
+            check.skip(args[i]);
+        }
+        check.checkTree(new File(args[1]), "");
+        System.out.println(check.getClasses() + " classes checked, " + check.getViolations() + " not in CLDC");
+        System.exit(check.getViolations() == 0 ? 0 : 1);
+    }
+}
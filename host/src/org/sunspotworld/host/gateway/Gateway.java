@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.gateway;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.sunspotworld.HotaruNode;
+import org.sunspotworld.HotaruWisper;
+import org.sunspotworld.Metrics;
+import org.sunspotworld.host.capture.CaptureFile;
+import org.sunspotworld.host.capture.CaptureWriter;
+import org.sunspotworld.host.sim.ByteArrayPacket;
+
+/**
+ * Collects what basestations hear from the swarm into a {@link TimeSeriesFile}.
+ *<p>
+ * Basestations forward the radiograms they receive as {@link LinkFrame}s
+ * over one or more {@link Transport}s. One thread runs a selector over all
+ * of them. Each round drains every ready channel, decodes the beacons and
+ * the metrics replies, appends one record per beacon or metric value
+ * straight into the mapped file and commits the whole batch at once.
+ * Decoding reuses one packet and one {@link HotaruWisper}, so ingesting
+ * allocates nothing. The file is forced to disk every FORCE_INTERVAL_MSEC.
+ * The radiograms on the broadcast port can also be recorded as they are
+ * into a capture, for {@link org.sunspotworld.host.capture.Replay}.
+ *<p>
+ * Usage: Gateway [name=value ...], see {@link #main}.
+ */
+public class Gateway implements LinkFrame.Sink, Closeable {
+
+    private static final int BEACON_PORT = Integer.parseInt(HotaruNode.BROADCAST_PORT);
+    private static final int METRICS_PORT = Integer.parseInt(HotaruNode.METRICS_PORT);
+    private static final long FORCE_INTERVAL_MSEC = 1000;
+    // Magic, version, op, address, section and count before the values
+    private static final int REPLY_HEADER_LENGTH = 13;
+    private final Selector selector;
+    private final TimeSeriesFile store;
+    private final List<Transport> transports = new ArrayList<Transport>();
+    private final byte[] payload = new byte[LinkFrame.MAX_PAYLOAD];
+    private final ByteArrayPacket packet = new ByteArrayPacket(LinkFrame.MAX_PAYLOAD);
+    private final HotaruWisper wisper = new HotaruWisper();
+    private CaptureWriter capture;
+    private long station;
+    private volatile boolean running;
+    private long now;
+    private long lastForce;
+    // Statistics
+    private volatile long frames;
+    private volatile long beacons;
+    private volatile long metrics;
+    private volatile long rejects;
+    private volatile long malformed;
+    private volatile long batches;
+
+    public Gateway(TimeSeriesFile store) throws IOException {
+        this.store = store;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Also record every radiogram on the broadcast port; call before {@link #run}.
+     *
+     * @param station IEEE address of the basestation, the receiver in the capture
+     */
+    public void setCapture(CaptureWriter capture, long station) {
+        this.capture = capture;
+        this.station = station;
+    }
+
+    /**
+     * Open a transport and start serving it; call before {@link #run}.
+     */
+    public void add(Transport transport) throws IOException {
+        transport.register(selector, this);
+        transports.add(transport);
+    }
+
+    /**
+     * Serve the transports until {@link #stop} is called.
+     */
+    public void run() throws IOException {
+        running = true;
+        lastForce = System.currentTimeMillis();
+        while (running) {
+            selector.select(FORCE_INTERVAL_MSEC);
+            now = System.currentTimeMillis();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    ((Transport.Handler) key.attachment()).ready(key);
+                } catch (IOException ex) {
+                    System.err.println("Closing " + key.channel() + ": " + ex);
+                    key.cancel();
+                    key.channel().close();
+                }
+            }
+            if (store.commit()) {
+                batches++;
+            }
+            if (now - lastForce >= FORCE_INTERVAL_MSEC) {
+                store.force();
+                if (capture != null) {
+                    capture.force();
+                }
+                lastForce = now;
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void close() throws IOException {
+        for (Transport t : transports) {
+            t.close();
+        }
+        selector.close();
+        store.close();
+        if (capture != null) {
+            capture.close();
+        }
+    }
+
+    public void frame(int port, int rssi, int linkQuality, long source, ByteBuffer buf) {
+        frames++;
+        int length = buf.remaining();
+        buf.get(payload, 0, length);
+        packet.fill(payload, 0, length);
+        if (port == BEACON_PORT && capture != null) {
+            try {
+                capture.append(now, now, station, rssi, linkQuality, payload, 0, length);
+            } catch (IOException ex) {
+                System.err.println("Stopping the capture: " + ex);
+                capture = null;
+            }
+        }
+        try {
+            if (port == BEACON_PORT && wisper.readFrom(packet.getInput())) {
+                store.appendBeacon(now, wisper.selfAddress, wisper.masterAddress, wisper.interval,
+                        wisper.delay, wisper.masterState, wisper.hops, wisper.seq, rssi, linkQuality,
+                        wisper.channel, wisper.group);
+                beacons++;
+            } else if (port == METRICS_PORT && readReply(length, rssi, linkQuality)) {
+                metrics++;
+            } else {
+                rejects++;
+            }
+        } catch (IOException ex) {
+            rejects++;                          // truncated
+        }
+    }
+
+    /**
+     * Store the values of a metrics reply in the packet, one record each.
+     * Metrics.readReply() folds a reply into a Metrics object; the file
+     * wants the single values with their section. A truncated reply is
+     * rejected before anything of it is stored.
+     */
+    private boolean readReply(int length, int rssi, int linkQuality) throws IOException {
+        DataInput in = packet.getInput();
+        if (in.readByte() != Metrics.PACKET_MAGIC || in.readUnsignedByte() != Metrics.PACKET_VERSION ||
+                in.readUnsignedByte() != Metrics.OP_REPLY) {
+            return false;
+        }
+        long node = in.readLong();
+        int section = in.readUnsignedByte();
+        int n = in.readUnsignedByte();
+        if (n * 4 > length - REPLY_HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            store.appendMetric(now, node, (section << 8) | i, in.readInt(), rssi, linkQuality);
+        }
+        return true;
+    }
+
+    public void malformed() {
+        malformed++;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getBeacons() {
+        return beacons;
+    }
+
+    /**
+     * Return the number of metrics replies stored.
+     */
+    public long getMetricsReplies() {
+        return metrics;
+    }
+
+    /**
+     * Return the number of frames that were neither a beacon nor a metrics reply.
+     */
+    public long getRejects() {
+        return rejects;
+    }
+
+    /**
+     * Return the number of datagrams or connections dropped because they
+     * did not hold frames.
+     */
+    public long getMalformed() {
+        return malformed;
+    }
+
+    /**
+     * Return the number of commits, one per selector round that stored something.
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Options, all name=value:
+     *<pre>
+     *   file=hotaru.ts   time series file to append to
+     *   bind=127.0.0.1   address to listen on
+     *   udp=7676         UDP port, 0 for none
+     *   tcp=7677         TCP port, 0 for none
+     *   report=10        seconds between progress lines, 0 for none
+     *   dump=0           print the last this many records of the file and exit
+     *   capture=         capture file to also record the beacon port in
+     *   station=0        IEEE address of the basestation, the receiver in the capture
+     *</pre>
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> opts = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0) {
+                System.err.println("Expected name=value: " + args[i]);
+                System.exit(1);
+            }
+            opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        File path = new File(opt(opts, "file", "hotaru.ts"));
+        String bind = opt(opts, "bind", "127.0.0.1");
+        int udp = Integer.parseInt(opt(opts, "udp", "7676"));
+        int tcp = Integer.parseInt(opt(opts, "tcp", "7677"));
+        final long report = Long.parseLong(opt(opts, "report", "10"));
+        int dump = Integer.parseInt(opt(opts, "dump", "0"));
+
+        final TimeSeriesFile store = new TimeSeriesFile(path);
+        if (dump > 0) {
+            TimeSeriesFile.Record r = new TimeSeriesFile.Record();
+            for (long i = Math.max(0, store.size() - dump); i < store.size(); i++) {
+                store.read(i, r);
+                System.out.println(r);
+            }
+            System.out.println(store.size() + " records");
+            store.close();
+            return;
+        }
+        final Gateway gateway = new Gateway(store);
+        String capture = opt(opts, "capture", "");
+        if (capture.length() > 0) {
+            gateway.setCapture(new CaptureWriter(new File(capture)),
+                    CaptureFile.parseAddress(opt(opts, "station", "0")));
+        }
+        if (udp > 0) {
+            gateway.add(new UdpTransport(new InetSocketAddress(bind, udp)));
+        }
+        if (tcp > 0) {
+            gateway.add(new TcpTransport(new InetSocketAddress(bind, tcp)));
+        }
+        System.out.println("Gateway on " + gateway.transports + ", appending to " + path +
+                " (" + store.size() + " records)");
+        final Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+
+            public void run() {
+                gateway.stop();
+                try {
+                    main.join(FORCE_INTERVAL_MSEC);     // let it commit and close the file
+                } catch (InterruptedException ex) {
+                }
+            }
+        });
+        if (report > 0) {
+            Thread reporter = new Thread() {
+
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    long lastFrames = 0;
+                    while (true) {
+                        try {
+                            Thread.sleep(report * 1000);
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                        long f = gateway.getFrames();
+                        System.out.println("[" + (System.currentTimeMillis() - start) / 1000 + "s] frames: " + f +
+                                " (" + (f - lastFrames) / report + "/s), beacons: " + gateway.getBeacons() +
+                                ", metrics replies: " + gateway.getMetricsReplies() +
+                                ", rejects: " + gateway.getRejects() +
+                                ", malformed: " + gateway.getMalformed() +
+                                ", batches: " + gateway.getBatches());
+                        lastFrames = f;
+                    }
+                }
+            };
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+        gateway.run();
+        gateway.close();
+    }
+
+    private static String opt(Map<String, String> opts, String name, String def) {
+        String v = opts.get(name);
+        return v != null ? v : def;
+    }
+}
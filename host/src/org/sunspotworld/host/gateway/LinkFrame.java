@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.gateway;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Envelope of a radiogram a basestation forwards to the {@link Gateway}.
+ *<p>
+ * Layout:
+ *<pre>
+ *   byte     MAGIC
+ *   byte     VERSION
+ *   ubyte    port          radiogram port the packet came in on
+ *   byte     rssi          signal strength in dBm
+ *   ubyte    linkQuality   0-255
+ *   long     source        IEEE address of the radio that sent it
+ *   ubyte    length
+ *   byte[]   payload       the radiogram, length bytes
+ *</pre>
+ * Frames follow each other back to back: a datagram may carry several,
+ * and a stream connection carries any number.
+ */
+public final class LinkFrame {
+
+    public static final byte MAGIC = 0x48;
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 14;
+    public static final int MAX_PAYLOAD = 255;
+
+    /**
+     * Receives the decoded frames.
+     */
+    public interface Sink {
+
+        /**
+         * Take one frame. The payload is the buffer between its position
+         * and limit, only valid during the call.
+         */
+        void frame(int port, int rssi, int linkQuality, long source, ByteBuffer payload);
+
+        /**
+         * Note data that is not a frame; the rest of it was skipped.
+         */
+        void malformed();
+    }
+
+    private LinkFrame() {
+    }
+
+    /**
+     * Hand every complete frame from the buffer's position on to the sink.
+     * The position is left at the first incomplete frame.
+     *
+     * @returns the number of frames, or -1 if the data is not a frame
+     */
+    public static int decode(ByteBuffer buf, Sink sink) {
+        int frames = 0;
+        int limit = buf.limit();
+        while (buf.remaining() >= HEADER_LENGTH) {
+            int start = buf.position();
+            if (buf.get(start) != MAGIC || buf.get(start + 1) != VERSION) {
+                return -1;
+            }
+            int length = buf.get(start + HEADER_LENGTH - 1) & 0xFF;
+            int end = start + HEADER_LENGTH + length;
+            if (end > limit) {
+                break;
+            }
+            int port = buf.get(start + 2) & 0xFF;
+            int rssi = buf.get(start + 3);
+            int linkQuality = buf.get(start + 4) & 0xFF;
+            long source = buf.getLong(start + 5);
+            buf.limit(end).position(start + HEADER_LENGTH);
+            sink.frame(port, rssi, linkQuality, source, buf);
+            buf.limit(limit).position(end);
+            frames++;
+        }
+        return frames;
+    }
+
+    /**
+     * Append one frame to the buffer.
+     */
+    public static void encode(ByteBuffer buf, int port, int rssi, int linkQuality, long source,
+            byte[] payload, int offset, int length) {
+        if (length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload too long: " + length);
+        }
+        buf.put(MAGIC);
+        buf.put((byte) VERSION);
+        buf.put((byte) port);
+        buf.put((byte) rssi);
+        buf.put((byte) linkQuality);
+        buf.putLong(source);
+        buf.put((byte) length);
+        buf.put(payload, offset, length);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.gateway;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.sunspotworld.HotaruNode;
+import org.sunspotworld.HotaruWisper;
+import org.sunspotworld.Metrics;
+import org.sunspotworld.host.sim.ByteArrayPacket;
+
+/**
+ * Stands in for the basestations of a large swarm to load a {@link Gateway}.
+ *<p>
+ * Every node sends a beacon rate times a second, as a relay of one master's
+ * beacon, and every metrics seconds all nodes answer a metrics query. The
+ * frames are paced evenly over each second and sent over UDP, batch frames
+ * to a datagram, or over one TCP connection.
+ *<p>
+ * Usage: LoadGenerator [name=value ...], see {@link #main}.
+ */
+public class LoadGenerator {
+
+    private static final long ADDRESS_BASE = 0x00144F0100000000L;
+    private static final int BEACON_PORT = Integer.parseInt(HotaruNode.BROADCAST_PORT);
+    private static final int METRICS_PORT = Integer.parseInt(HotaruNode.METRICS_PORT);
+    private final long[] addresses;
+    private final Random random;
+    private final ByteArrayPacket packet = new ByteArrayPacket(LinkFrame.MAX_PAYLOAD);
+    private final HotaruWisper wisper = new HotaruWisper();
+    private final Metrics nodeMetrics = new Metrics();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+    private final WritableByteChannel channel;
+    private final int batch;
+    private int batched;
+    private long frames;
+    private long writes;
+    private int seq;
+
+    public LoadGenerator(int nodes, long seed, WritableByteChannel channel, int batch) {
+        this.random = new Random(seed);
+        this.channel = channel;
+        this.batch = batch;
+        addresses = new long[nodes];
+        for (int i = 0; i < nodes; i++) {
+            addresses[i] = ADDRESS_BASE | (random.nextInt() & 0xFFFFFFFFL);
+        }
+    }
+
+    /**
+     * Queue the beacon of one node.
+     */
+    void beacon(int node, long now, int interval) throws IOException {
+        wisper.clear();
+        wisper.masterAddress = addresses[0];
+        wisper.selfAddress = addresses[node];
+        wisper.masterState = (int) (now / 1000) & 1;
+        wisper.delay = (int) (now % 1000);
+        wisper.interval = interval;
+        wisper.seq = seq & 0xFF;
+        wisper.hops = node == 0 ? 0 : 1 + random.nextInt(4);
+        packet.reset();
+        wisper.writeTo(packet.getOutput());
+        add(BEACON_PORT, addresses[node]);
+        if (node == 0) {
+            seq++;
+        }
+    }
+
+    /**
+     * Queue the metrics replies of one node, one frame per section.
+     */
+    void metrics(int node) throws IOException {
+        for (int section = 0; section < Metrics.SECTIONS; section++) {
+            packet.reset();
+            nodeMetrics.writeReply(packet.getOutput(), addresses[node], section);
+            add(METRICS_PORT, addresses[node]);
+        }
+    }
+
+    private void add(int port, long source) throws IOException {
+        if (buffer.remaining() < LinkFrame.HEADER_LENGTH + packet.getLength()) {
+            flush();
+        }
+        LinkFrame.encode(buffer, port, -40 - random.nextInt(50), 64 + random.nextInt(192), source,
+                packet.getBuffer(), 0, packet.getLength());
+        frames++;
+        if (++batched >= batch) {
+            flush();
+        }
+    }
+
+    void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        batched = 0;
+        writes++;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Return the number of datagrams, or writes to the connection, sent.
+     */
+    public long getWrites() {
+        return writes;
+    }
+
+    /**
+     * Send for the given time, each node beaconing rate times a second.
+     */
+    public void run(long seconds, int rate, long metricsSeconds) throws IOException, InterruptedException {
+        int nodes = addresses.length;
+        long start = System.currentTimeMillis();
+        long end = start + seconds * 1000;
+        long nextMetrics = metricsSeconds > 0 ? start + metricsSeconds * 1000 : Long.MAX_VALUE;
+        long sent = 0;
+        long now;
+        while ((now = System.currentTimeMillis()) < end) {
+            long due = (now - start) * nodes * rate / 1000;
+            for (; sent < due; sent++) {
+                beacon((int) (sent % nodes), now, 1000 / rate);
+            }
+            if (now >= nextMetrics) {
+                for (int i = 0; i < nodes; i++) {
+                    metrics(i);
+                }
+                nextMetrics += metricsSeconds * 1000;
+            }
+            flush();
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Options, all name=value:
+     *<pre>
+     *   nodes=5000       number of nodes
+     *   rate=5           beacons a second per node
+     *   seconds=10       time to send for
+     *   metrics=5        seconds between metrics replies of all nodes, 0 for none
+     *   host=127.0.0.1   gateway address
+     *   udp=7676         gateway UDP port
+     *   tcp=0            gateway TCP port; if set, used instead of UDP
+     *   batch=1          frames per datagram or write
+     *   seed=1           random seed
+     *</pre>
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> opts = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0) {
+                System.err.println("Expected name=value: " + args[i]);
+                System.exit(1);
+            }
+            opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        int nodes = Integer.parseInt(opt(opts, "nodes", "5000"));
+        int rate = Integer.parseInt(opt(opts, "rate", "5"));
+        long seconds = Long.parseLong(opt(opts, "seconds", "10"));
+        long metricsSeconds = Long.parseLong(opt(opts, "metrics", "5"));
+        String host = opt(opts, "host", "127.0.0.1");
+        int udp = Integer.parseInt(opt(opts, "udp", "7676"));
+        int tcp = Integer.parseInt(opt(opts, "tcp", "0"));
+        int batch = Integer.parseInt(opt(opts, "batch", "1"));
+        long seed = Long.parseLong(opt(opts, "seed", "1"));
+
+        WritableByteChannel channel;
+        if (tcp > 0) {
+            channel = SocketChannel.open(new InetSocketAddress(host, tcp));
+        } else {
+            DatagramChannel dc = DatagramChannel.open();
+            dc.connect(new InetSocketAddress(host, udp));
+            channel = dc;
+        }
+        LoadGenerator load = new LoadGenerator(nodes, seed, channel, batch);
+        long start = System.currentTimeMillis();
+        load.run(seconds, rate, metricsSeconds);
+        load.flush();
+        channel.close();
+        long wall = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println("Frames sent      : " + load.getFrames() + " (" + load.getFrames() * 1000 / wall + "/s)");
+        System.out.println("Writes           : " + load.getWrites());
+    }
+
+    private static String opt(Map<String, String> opts, String name, String def) {
+        String v = opts.get(name);
+        return v != null ? v : def;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.gateway;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * {@link Transport} accepting stream connections that carry
+ * {@link LinkFrame}s back to back; on the basestation's own host this is
+ * the local socket. A connection that sends something other than a frame
+ * is closed, as its stream can no longer be followed.
+ */
+public class TcpTransport implements Transport, Transport.Handler {
+
+    private static final int BUFFER_SIZE = 65536;
+    /**
+     * Reads per readiness, so other channels get their turn.
+     */
+    private static final int MAX_READS = 16;
+    private final InetSocketAddress address;
+    private final Set<SocketChannel> connections = new HashSet<SocketChannel>();
+    private ServerSocketChannel server;
+    private LinkFrame.Sink sink;
+
+    public TcpTransport(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    public void register(Selector selector, LinkFrame.Sink sink) throws IOException {
+        this.sink = sink;
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT, this);
+    }
+
+    /**
+     * Accept the pending connections.
+     */
+    public void ready(SelectionKey key) throws IOException {
+        SocketChannel conn;
+        while ((conn = server.accept()) != null) {
+            conn.configureBlocking(false);
+            conn.register(key.selector(), SelectionKey.OP_READ, new Connection(conn));
+            connections.add(conn);
+        }
+    }
+
+    public void close() throws IOException {
+        for (SocketChannel conn : connections) {
+            conn.close();
+        }
+        connections.clear();
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    public String toString() {
+        return "tcp " + address;
+    }
+
+    private class Connection implements Transport.Handler {
+
+        private final SocketChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public void ready(SelectionKey key) throws IOException {
+            int n = 0;
+            for (int i = 0; i < MAX_READS && (n = channel.read(buffer)) > 0; i++) {
+                buffer.flip();
+                int frames = LinkFrame.decode(buffer, sink);
+                buffer.compact();
+                if (frames < 0) {
+                    sink.malformed();
+                    n = -1;
+                    break;
+                }
+            }
+            if (n < 0) {
+                connections.remove(channel);
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.gateway;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.sunspotworld.HotaruNode;
+
+/**
+ * Append-only file of fixed size records, written through memory maps.
+ *<p>
+ * The file is a HEADER_SIZE byte header followed by the records. The header
+ * holds MAGIC, VERSION, RECORD_SIZE and the number of committed records.
+ * Appends go straight into the mapped segment at the end of the file and
+ * become part of the file once {@link #commit()} updates that number, so a
+ * crashed writer leaves at most one uncommitted batch behind, which the
+ * next writer overwrites. {@link #force()} also writes them to the disk.
+ *<p>
+ * Record layout, RECORD_SIZE bytes:
+ *<pre>
+ *   long     time       host receive time, ms since 1970
+ *   long     node       sender of a beacon, node that sent a metric
+ *   long     value      master address of a beacon, or the metric value
+ *   int      interval   beacon interval in ms, or the metric id
+ *   ushort   delay      beacon delay in ms
+ *   byte     kind       KIND_BEACON or KIND_METRIC
+ *   byte     state      blink state of the master
+ *   byte     hops       times relayed, -1 without route
+ *   ubyte    seq        beacon sequence number
+ *   byte     rssi       dBm at the basestation
+ *   ubyte    linkQuality
+ *   ubyte    channel    channel announced in the beacon, 0 for none
+ *   ubyte    group      swarm of a beacon
+ *   byte[2]  reserved
+ *</pre>
+ * A metric id is the reply section times 256 plus the index of the value
+ * in it, see {@link org.sunspotworld.Metrics}. Only one thread may use a file.
+ */
+public class TimeSeriesFile implements Closeable {
+
+    public static final long MAGIC = 0x484F544152555453L;     // "HOTARUTS"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 40;
+    public static final int KIND_BEACON = 1;
+    public static final int KIND_METRIC = 2;
+    private static final int COUNT_OFFSET = 16;
+    /**
+     * Records per mapped segment; the file grows a segment at a time.
+     */
+    private static final int SEGMENT_RECORDS = 1 << 18;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer segment;
+    private long segmentFirst = -1;
+    private boolean segmentDirty = false;
+    // segments left behind with appends not yet forced
+    private final List<MappedByteBuffer> unforced = new ArrayList<MappedByteBuffer>();
+    private long count;
+    private long committed;
+
+    /**
+     * Open a file for appending, creating it if needed.
+     */
+    public TimeSeriesFile(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        boolean empty = channel.size() == 0;
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (empty) {
+            header.putLong(0, MAGIC);
+            header.putInt(8, VERSION);
+            header.putInt(12, RECORD_SIZE);
+            header.putLong(COUNT_OFFSET, 0);
+        } else if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION || header.getInt(12) != RECORD_SIZE) {
+            channel.close();
+            throw new IOException("Not a time series file: " + path);
+        }
+        count = committed = header.getLong(COUNT_OFFSET);
+    }
+
+    /**
+     * Return the segment holding the given record, positioned at it.
+     */
+    private MappedByteBuffer seek(long index) throws IOException {
+        long first = index - index % SEGMENT_RECORDS;
+        if (first != segmentFirst) {
+            if (segmentDirty) {
+                unforced.add(segment);
+                segmentDirty = false;
+            }
+            segment = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + first * RECORD_SIZE, (long) SEGMENT_RECORDS * RECORD_SIZE);
+            segmentFirst = first;
+        }
+        segment.position((int) (index - first) * RECORD_SIZE);
+        return segment;
+    }
+
+    public void appendBeacon(long time, long node, long master, int interval, int delay, int state,
+            int hops, int seq, int rssi, int linkQuality, int announcedChannel, int group) throws IOException {
+        MappedByteBuffer b = seek(count++);
+        segmentDirty = true;
+        b.putLong(time);
+        b.putLong(node);
+        b.putLong(master);
+        b.putInt(interval);
+        b.putShort((short) delay);
+        b.put((byte) KIND_BEACON);
+        b.put((byte) state);
+        b.put((byte) hops);
+        b.put((byte) seq);
+        b.put((byte) rssi);
+        b.put((byte) linkQuality);
+        b.put((byte) announcedChannel);
+        b.put((byte) group);
+        b.put((byte) 0).put((byte) 0);
+    }
+
+    public void appendMetric(long time, long node, int id, long value, int rssi, int linkQuality) throws IOException {
+        MappedByteBuffer b = seek(count++);
+        segmentDirty = true;
+        b.putLong(time);
+        b.putLong(node);
+        b.putLong(value);
+        b.putInt(id);
+        b.putShort((short) 0);
+        b.put((byte) KIND_METRIC);
+        b.put((byte) 0).put((byte) 0).put((byte) 0);
+        b.put((byte) rssi);
+        b.put((byte) linkQuality);
+        b.put((byte) 0);
+        b.put((byte) 0).put((byte) 0).put((byte) 0);
+    }
+
+    /**
+     * Make the records appended so far part of the file.
+     *
+     * @returns false if there was nothing to commit
+     */
+    public boolean commit() {
+        if (count == committed) {
+            return false;
+        }
+        header.putLong(COUNT_OFFSET, count);
+        committed = count;
+        return true;
+    }
+
+    /**
+     * Write the committed records and the header to the disk, including
+     * those in segments the file has grown past since the last force.
+     */
+    public void force() {
+        for (MappedByteBuffer b : unforced) {
+            b.force();
+        }
+        unforced.clear();
+        if (segmentDirty) {
+            segment.force();
+            segmentDirty = false;
+        }
+        header.force();
+    }
+
+    /**
+     * Return the number of committed records.
+     */
+    public long size() {
+        return committed;
+    }
+
+    /**
+     * Read a committed record.
+     */
+    public void read(long index, Record r) throws IOException {
+        if (index < 0 || index >= committed) {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + committed);
+        }
+        MappedByteBuffer b = seek(index);
+        r.time = b.getLong();
+        r.node = b.getLong();
+        r.value = b.getLong();
+        r.interval = b.getInt();
+        r.delay = b.getShort() & 0xFFFF;
+        r.kind = b.get();
+        r.state = b.get();
+        r.hops = b.get();
+        r.seq = b.get() & 0xFF;
+        r.rssi = b.get();
+        r.linkQuality = b.get() & 0xFF;
+        r.channel = b.get() & 0xFF;
+        r.group = b.get() & 0xFF;
+    }
+
+    /**
+     * Commit, force and close. The file keeps the size of its last mapped
+     * segment; the header tells how much of it holds records.
+     */
+    public void close() throws IOException {
+        commit();
+        force();
+        file.close();
+    }
+
+    /**
+     * One record, as read by {@link #read}.
+     */
+    public static class Record {
+
+        public long time;
+        public long node;
+        public long value;
+        public int interval;
+        public int delay;
+        public int kind;
+        public int state;
+        public int hops;
+        public int seq;
+        public int rssi;
+        public int linkQuality;
+        public int channel;
+        public int group;
+
+        public String toString() {
+            if (kind == KIND_METRIC) {
+                return time + " metric " + HotaruNode.toDottedHex(node) + " " + (interval >> 8) + "." +
+                        (interval & 0xFF) + " = " + value;
+            }
+            return time + " beacon " + HotaruNode.toDottedHex(node) + " master " + HotaruNode.toDottedHex(value) +
+                    " state " + state + " hops " + hops + " seq " + seq + " interval " + interval +
+                    " delay " + delay + " rssi " + rssi + " lqi " + linkQuality +
+                    (channel != 0 ? " channel " + channel : "") + (group != 0 ? " group " + group : "");
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.gateway;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * {@link Transport} receiving datagrams of one or more {@link LinkFrame}s.
+ * A datagram holds whole frames; one that does not is dropped.
+ */
+public class UdpTransport implements Transport, Transport.Handler {
+
+    /**
+     * Datagrams read per readiness, so other channels get their turn.
+     */
+    private static final int MAX_DATAGRAMS = 1024;
+    private static final int RECEIVE_BUFFER = 4 << 20;
+    private final InetSocketAddress address;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+    private DatagramChannel channel;
+    private LinkFrame.Sink sink;
+
+    public UdpTransport(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    public void register(Selector selector, LinkFrame.Sink sink) throws IOException {
+        this.sink = sink;
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+        channel.bind(address);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    public void ready(SelectionKey key) throws IOException {
+        for (int i = 0; i < MAX_DATAGRAMS; i++) {
+            buffer.clear();
+            if (channel.receive(buffer) == null) {
+                break;
+            }
+            buffer.flip();
+            if (LinkFrame.decode(buffer, sink) < 0 || buffer.hasRemaining()) {
+                sink.malformed();
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    public String toString() {
+        return "udp " + address;
+    }
+}
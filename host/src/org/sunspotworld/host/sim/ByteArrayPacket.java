@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.sunspotworld.hal.RadioPacket;
+
+/**
+ * {@link RadioPacket} over a fixed byte array.
+ * Reading and writing reuse the same buffer and never allocate. Unless
+ * {@link #setLink} says otherwise, packets arrive over a perfect link.
+ */
+public class ByteArrayPacket implements RadioPacket {
+
+    private final byte[] buffer;
+    private int length;
+    private int readPos;
+    private int rssi = 0;
+    private int linkQuality = 255;
+    private final DataOutputStream out = new DataOutputStream(new OutputStream() {
+
+        public void write(int b) throws IOException {
+            if (length >= buffer.length) {
+                throw new IOException("Packet full");
+            }
+            buffer[length++] = (byte) b;
+        }
+    });
+    private final DataInputStream in = new DataInputStream(new InputStream() {
+
+        public int read() {
+            return readPos < length ? buffer[readPos++] & 0xFF : -1;
+        }
+    });
+
+    public ByteArrayPacket(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    public void reset() {
+        length = 0;
+        readPos = 0;
+    }
+
+    public DataInput getInput() {
+        return in;
+    }
+
+    public DataOutput getOutput() {
+        return out;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public int getLinkQuality() {
+        return linkQuality;
+    }
+
+    /**
+     * Set the signal strength in dBm and the link quality, 0-255, the
+     * packet is received with.
+     */
+    public void setLink(int rssi, int linkQuality) {
+        this.rssi = rssi;
+        this.linkQuality = linkQuality;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Replace the contents with a copy of the given bytes, ready to be read.
+     */
+    public void fill(byte[] data, int offset, int len) {
+        if (len > buffer.length) {
+            len = buffer.length;
+        }
+        System.arraycopy(data, offset, buffer, 0, len);
+        length = len;
+        readPos = 0;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+/**
+ * Priority queue of simulation events ordered by time, then by insertion.
+ *<p>
+ * Events are (time, node, type) triples kept in parallel primitive arrays
+ * forming a binary heap, so scheduling allocates nothing once the arrays
+ * have grown to the working size.
+ */
+final class EventQueue {
+
+    private long[] times = new long[1024];
+    private long[] seqs = new long[1024];
+    private int[] nodes = new int[1024];
+    private int[] types = new int[1024];
+    private int size;
+    private long nextSeq;
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(long time, int node, int type) {
+        if (size == times.length) {
+            grow();
+        }
+        long seq = nextSeq++;
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(time, seq, times[parent], seqs[parent])) {
+                break;
+            }
+            move(parent, i);
+            i = parent;
+        }
+        set(i, time, seq, node, type);
+    }
+
+    long headTime() {
+        return times[0];
+    }
+
+    int headNode() {
+        return nodes[0];
+    }
+
+    int headType() {
+        return types[0];
+    }
+
+    /**
+     * Drop the head event.
+     */
+    void remove() {
+        int last = --size;
+        if (last == 0) {
+            return;
+        }
+        long time = times[last];
+        long seq = seqs[last];
+        int node = nodes[last];
+        int type = types[last];
+        int i = 0;
+        int half = last >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < last && before(times[right], seqs[right], times[child], seqs[child])) {
+                child = right;
+            }
+            if (!before(times[child], seqs[child], time, seq)) {
+                break;
+            }
+            move(child, i);
+            i = child;
+        }
+        set(i, time, seq, node, type);
+    }
+
+    private static boolean before(long t1, long s1, long t2, long s2) {
+        return t1 < t2 || (t1 == t2 && s1 < s2);
+    }
+
+    private void move(int from, int to) {
+        times[to] = times[from];
+        seqs[to] = seqs[from];
+        nodes[to] = nodes[from];
+        types[to] = types[from];
+    }
+
+    private void set(int i, long time, long seq, int node, int type) {
+        times[i] = time;
+        seqs[i] = seq;
+        nodes[i] = node;
+        types[i] = type;
+    }
+
+    private void grow() {
+        int n = times.length * 2;
+        long[] t = new long[n];
+        long[] s = new long[n];
+        int[] nd = new int[n];
+        int[] ty = new int[n];
+        System.arraycopy(times, 0, t, 0, size);
+        System.arraycopy(seqs, 0, s, 0, size);
+        System.arraycopy(nodes, 0, nd, 0, size);
+        System.arraycopy(types, 0, ty, 0, size);
+        times = t;
+        seqs = s;
+        nodes = nd;
+        types = ty;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+import org.sunspotworld.HealthSummary;
+
+/**
+ * Checks the health rounds on the threaded path: runs a {@link VirtualSwarm},
+ * whose nodes use their own receive thread and event loop, until a master
+ * completes a round that counts every node, and exits with status 1 if
+ * none does in time. Health rounds only start once the beacons have
+ * slowed down, which takes about a minute of real time.
+ *<p>
+ * Usage: HealthCheck [nodes [seconds [seed]]]
+ */
+public class HealthCheck {
+
+    private static final long SAMPLE_INTERVAL = 500;
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 15;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 240;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 3;
+        VirtualSwarm swarm = new VirtualSwarm(count, seed);
+        long start = System.currentTimeMillis();
+        long end = start + seconds * 1000L;
+        HealthSummary health = null;
+        swarm.start();
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(SAMPLE_INTERVAL);
+            health = swarm.getSwarmHealth();
+            if (health != null && health.getNodes() == count) {
+                break;
+            }
+        }
+        swarm.stop();
+        boolean ok = health != null && health.getNodes() == count;
+        System.out.println("Swarm health     : " + (health != null ? health.toString() : "no round completed"));
+        System.out.println((ok ? "OK" : "FAILED") + ": " + (health != null ? health.getNodes() : 0) + " of " +
+                count + " nodes counted after " + (System.currentTimeMillis() - start) + "ms");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A shared broadcast channel for {@link VirtualPlatform}s in one JVM.
+ *<p>
+ * Every packet sent on a port is delivered to all other listeners on the same
+ * port, channel and PAN whose receiver is on. There is no range limit and
+ * no loss, only a bounded receive queue per listener.
+ */
+public class InMemoryMedium {
+
+    /**
+     * Largest payload of a radiogram.
+     */
+    public static final int MAX_PACKET_LENGTH = 100;
+    private final List<MediumConnection> listeners = new ArrayList<MediumConnection>();
+    private long packetsSent;
+    private long packetsDelivered;
+    private long packetsDropped;
+
+    synchronized void attach(MediumConnection conn) {
+        listeners.add(conn);
+    }
+
+    synchronized void detach(MediumConnection conn) {
+        listeners.remove(conn);
+    }
+
+    void broadcast(VirtualPlatform from, String port, byte[] data, int length) {
+        MediumConnection[] targets;
+        synchronized (this) {
+            packetsSent++;
+            targets = listeners.toArray(new MediumConnection[listeners.size()]);
+        }
+        VirtualRadioPolicy src = from.getVirtualRadioPolicy();
+        for (MediumConnection conn : targets) {
+            VirtualRadioPolicy dst = conn.getPlatform().getVirtualRadioPolicy();
+            if (conn.getPlatform() == from || !conn.getPort().equals(port) || !dst.isRxOn() ||
+                    dst.getChannelNumber() != src.getChannelNumber() || dst.getPanId() != src.getPanId()) {
+                continue;
+            }
+            boolean queued = conn.enqueue(data, length);
+            synchronized (this) {
+                if (queued) {
+                    packetsDelivered++;
+                } else {
+                    packetsDropped++;
+                }
+            }
+        }
+    }
+
+    public synchronized long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public synchronized long getPacketsDelivered() {
+        return packetsDelivered;
+    }
+
+    /**
+     * Return the number of deliveries lost because a receive queue was full.
+     */
+    public synchronized long getPacketsDropped() {
+        return packetsDropped;
+    }
+}
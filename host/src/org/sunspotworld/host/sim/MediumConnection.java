@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import org.sunspotworld.hal.RadioConnection;
+import org.sunspotworld.hal.RadioPacket;
+import org.sunspotworld.hal.RadioTimeoutException;
+
+/**
+ * {@link RadioConnection} on an {@link InMemoryMedium}.
+ */
+class MediumConnection implements RadioConnection {
+
+    /**
+     * Packets a listener buffers before further ones are dropped.
+     */
+    private static final int QUEUE_LIMIT = 32;
+    private final InMemoryMedium medium;
+    private final VirtualPlatform platform;
+    private final String port;
+    private final boolean listening;
+    private final LinkedList<byte[]> queue = new LinkedList<byte[]>();
+    private long timeout = -1;
+    private boolean closed;
+
+    MediumConnection(InMemoryMedium medium, VirtualPlatform platform, String port, boolean listening) {
+        this.medium = medium;
+        this.platform = platform;
+        this.port = port;
+        this.listening = listening;
+        if (listening) {
+            medium.attach(this);
+        }
+    }
+
+    VirtualPlatform getPlatform() {
+        return platform;
+    }
+
+    String getPort() {
+        return port;
+    }
+
+    synchronized boolean enqueue(byte[] data, int length) {
+        if (closed || queue.size() >= QUEUE_LIMIT) {
+            return false;
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        queue.addLast(copy);
+        notifyAll();
+        return true;
+    }
+
+    public RadioPacket newPacket() {
+        return new ByteArrayPacket(InMemoryMedium.MAX_PACKET_LENGTH);
+    }
+
+    public void send(RadioPacket packet) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        ByteArrayPacket p = (ByteArrayPacket) packet;
+        medium.broadcast(platform, port, p.getBuffer(), p.getLength());
+    }
+
+    public synchronized void receive(RadioPacket packet) throws IOException {
+        if (!listening) {
+            throw new IOException("Broadcast connections cannot receive");
+        }
+        long deadline = timeout < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+        while (queue.isEmpty()) {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                throw new RadioTimeoutException("Receive timed out");
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException ex) {
+                throw new IOException("Interrupted");
+            }
+        }
+        byte[] data = queue.removeFirst();
+        ((ByteArrayPacket) packet).fill(data, 0, data.length);
+    }
+
+    public void setTimeout(long millis) {
+        this.timeout = millis;
+    }
+
+    public void setMaxBroadcastHops(int hops) {
+    }
+
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            if (listening) {
+                medium.detach(this);
+            }
+            notifyAll();
+        }
+    }
+}
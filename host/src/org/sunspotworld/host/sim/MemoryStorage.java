@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+import org.sunspotworld.hal.Storage;
+
+/**
+ * {@link Storage} in memory. It outlives a node rebooted on the same
+ * platform, but not the JVM.
+ */
+public class MemoryStorage implements Storage {
+
+    private volatile byte[] data;
+    private volatile int saves;
+
+    public byte[] load() {
+        byte[] d = data;
+        return d != null ? d.clone() : null;
+    }
+
+    public void save(byte[] data) {
+        this.data = data.clone();
+        saves++;
+    }
+
+    /**
+     * Return how often the record was saved, to see the wear it causes.
+     */
+    public int getSaves() {
+        return saves;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+import java.util.Random;
+
+/**
+ * Parameters of the simulated radio environment used by {@link SwarmSimulator}.
+ *<p>
+ * Nodes hear each other within {@link #getRange()} metres. A link's loss
+ * probability grows linearly from the base loss at distance 0 to the edge
+ * loss at the range limit, and so does its link quality indication fall
+ * from 255 to the edge quality. The signal strength follows a log-distance
+ * path loss. Overlapping frames at a receiver destroy each
+ * other when collisions are enabled, and a node cannot receive while it is
+ * transmitting. With CSMA a sender that hears the channel busy backs off a
+ * random number of 320us units, as unslotted 802.15.4 CSMA-CA does, and
+ * gives up after {@link #getMaxBackoffs()} tries. Outside interference,
+ * such as WiFi, takes a share of the air time of a channel: a clear channel
+ * assessment finds the channel busy and a frame is lost with that
+ * probability.
+ */
+public class RadioModel {
+
+    /**
+     * Nodes scattered uniformly over a square area.
+     */
+    public static final int DISC = 0;
+    /**
+     * Nodes on a square grid.
+     */
+    public static final int GRID = 1;
+    private int topology = DISC;
+    private double area = 100;
+    private double spacing = 5;
+    private double range = 30;
+    private double baseLoss = 0.01;
+    private double edgeLoss = 0.2;
+    private int edgeLinkQuality = 64;
+    private double rssiAt1m = -40;
+    private double pathLossExponent = 3;
+    private boolean collisions = true;
+    private int bitRate = 250000;
+    private int frameOverhead = 19;
+    private double maxDriftPpm = 40;
+    private boolean csma = true;
+    private int maxBackoffs = 4;
+    private final int[] noise = new int[27];
+
+    public int getTopology() {
+        return topology;
+    }
+
+    public void setTopology(int topology) {
+        this.topology = topology;
+    }
+
+    /**
+     * Return the side in metres of the square the DISC topology scatters nodes over.
+     */
+    public double getArea() {
+        return area;
+    }
+
+    public void setArea(double area) {
+        this.area = area;
+    }
+
+    /**
+     * Return the distance in metres between neighbouring GRID nodes.
+     */
+    public double getSpacing() {
+        return spacing;
+    }
+
+    public void setSpacing(double spacing) {
+        this.spacing = spacing;
+    }
+
+    public double getRange() {
+        return range;
+    }
+
+    public void setRange(double range) {
+        this.range = range;
+    }
+
+    public double getBaseLoss() {
+        return baseLoss;
+    }
+
+    public void setBaseLoss(double baseLoss) {
+        this.baseLoss = baseLoss;
+    }
+
+    public double getEdgeLoss() {
+        return edgeLoss;
+    }
+
+    public void setEdgeLoss(double edgeLoss) {
+        this.edgeLoss = edgeLoss;
+    }
+
+    /**
+     * Return the link quality indication, 0-255, at the range limit.
+     */
+    public int getEdgeLinkQuality() {
+        return edgeLinkQuality;
+    }
+
+    public void setEdgeLinkQuality(int edgeLinkQuality) {
+        this.edgeLinkQuality = edgeLinkQuality;
+    }
+
+    /**
+     * Return the signal strength in dBm one metre from a sender.
+     */
+    public double getRssiAt1m() {
+        return rssiAt1m;
+    }
+
+    public void setRssiAt1m(double rssiAt1m) {
+        this.rssiAt1m = rssiAt1m;
+    }
+
+    public double getPathLossExponent() {
+        return pathLossExponent;
+    }
+
+    public void setPathLossExponent(double pathLossExponent) {
+        this.pathLossExponent = pathLossExponent;
+    }
+
+    public boolean isCollisions() {
+        return collisions;
+    }
+
+    public void setCollisions(boolean collisions) {
+        this.collisions = collisions;
+    }
+
+    /**
+     * Return the air bit rate; 250 kbit/s for 802.15.4 at 2.4 GHz.
+     */
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    public void setBitRate(int bitRate) {
+        this.bitRate = bitRate;
+    }
+
+    /**
+     * Return the bytes sent on air besides the payload: PHY preamble and
+     * header plus MAC header and checksum.
+     */
+    public int getFrameOverhead() {
+        return frameOverhead;
+    }
+
+    public void setFrameOverhead(int frameOverhead) {
+        this.frameOverhead = frameOverhead;
+    }
+
+    /**
+     * Return the largest clock rate error, in parts per million, a node may have.
+     */
+    public double getMaxDriftPpm() {
+        return maxDriftPpm;
+    }
+
+    public void setMaxDriftPpm(double maxDriftPpm) {
+        this.maxDriftPpm = maxDriftPpm;
+    }
+
+    public boolean isCsma() {
+        return csma;
+    }
+
+    public void setCsma(boolean csma) {
+        this.csma = csma;
+    }
+
+    public int getMaxBackoffs() {
+        return maxBackoffs;
+    }
+
+    public void setMaxBackoffs(int maxBackoffs) {
+        this.maxBackoffs = maxBackoffs;
+    }
+
+    /**
+     * Return the share of air time, in permille, outside interference
+     * takes on a channel.
+     */
+    public int getNoise(int channel) {
+        return noise[channel];
+    }
+
+    public void setNoise(int channel, int permille) {
+        noise[channel] = permille;
+    }
+
+    /**
+     * Return a random backoff in microseconds before the given retry, with the
+     * backoff exponent growing from 3 to 5.
+     */
+    public long backoff(int attempt, Random random) {
+        int exponent = Math.min(3 + attempt, 5);
+        return (1 + random.nextInt(1 << exponent)) * 320L;
+    }
+
+    /**
+     * Return the loss probability of a link of the given length.
+     */
+    public double lossAt(double distance) {
+        return baseLoss + (edgeLoss - baseLoss) * (distance / range);
+    }
+
+    /**
+     * Return the link quality indication of a link of the given length.
+     */
+    public int linkQualityAt(double distance) {
+        return (int) (255 - (255 - edgeLinkQuality) * (distance / range));
+    }
+
+    /**
+     * Return the signal strength in dBm of a link of the given length.
+     */
+    public int rssiAt(double distance) {
+        return (int) Math.round(rssiAt1m - 10 * pathLossExponent * Math.log10(Math.max(distance, 1)));
+    }
+
+    /**
+     * Return the time in microseconds a frame with the given payload occupies the air.
+     */
+    public long airtime(int payloadLength) {
+        return (payloadLength + frameOverhead) * 8L * 1000000L / bitRate;
+    }
+}
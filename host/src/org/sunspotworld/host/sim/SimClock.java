@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+import org.sunspotworld.hal.Clock;
+
+/**
+ * Local clock of a simulated node: the virtual time of the
+ * {@link SwarmSimulator}, running fast or slow by a fixed drift and shifted
+ * by a boot offset.
+ */
+class SimClock implements Clock {
+
+    private final SwarmSimulator sim;
+    private final double rate;
+    private final long offsetMillis;
+
+    SimClock(SwarmSimulator sim, double driftPpm, long offsetMillis) {
+        this.sim = sim;
+        this.rate = 1.0 + driftPpm / 1000000.0;
+        this.offsetMillis = offsetMillis;
+    }
+
+    public long currentTimeMillis() {
+        return (long) (sim.now() * rate / 1000.0) + offsetMillis;
+    }
+
+    /**
+     * Nothing may block in a discrete event simulation.
+     */
+    public void sleep(long millis) {
+        throw new UnsupportedOperationException("sleep() in simulation");
+    }
+
+    /**
+     * Convert a local duration in milliseconds to virtual microseconds.
+     */
+    long toVirtual(long millis) {
+        return (long) (millis * 1000.0 / rate);
+    }
+}
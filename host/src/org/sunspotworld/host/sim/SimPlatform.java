@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+import java.io.IOException;
+import org.sunspotworld.hal.Battery;
+import org.sunspotworld.hal.Clock;
+import org.sunspotworld.hal.Led;
+import org.sunspotworld.hal.LightSensor;
+import org.sunspotworld.hal.Platform;
+import org.sunspotworld.hal.RadioConnection;
+import org.sunspotworld.hal.RadioPacket;
+import org.sunspotworld.hal.RadioPolicy;
+import org.sunspotworld.hal.Storage;
+import org.sunspotworld.hal.Switch;
+import org.sunspotworld.hal.TriColorLed;
+
+/**
+ * {@link Platform} of a node in a {@link SwarmSimulator}.
+ * Its connections can only send; the simulator delivers received packets itself.
+ */
+class SimPlatform implements Platform {
+
+    private final SwarmSimulator sim;
+    private final int index;
+    private final SimClock clock;
+    private final VirtualLed[] leds = new VirtualLed[8];
+    private final Switch[] switches = {new VirtualPlatform.VirtualSwitch(), new VirtualPlatform.VirtualSwitch()};
+    private final VirtualLed greenLed = new VirtualLed();
+    private final VirtualLed redLed = new VirtualLed();
+    private final VirtualRadioPolicy radioPolicy;
+    private final SimConnection conn = new SimConnection();
+    private final MemoryStorage storage = new MemoryStorage();
+    private final int batteryMillivolts;
+    private final Battery battery = new Battery() {
+
+        public int getMillivolts() {
+            return batteryMillivolts;
+        }
+    };
+    private final LightSensor light = new LightSensor() {
+
+        public int getValue() {
+            return 300;
+        }
+    };
+
+    SimPlatform(SwarmSimulator sim, int index, long address, SimClock clock, int batteryMillivolts) {
+        this.sim = sim;
+        this.index = index;
+        this.clock = clock;
+        this.batteryMillivolts = batteryMillivolts;
+        this.radioPolicy = new VirtualRadioPolicy(address) {
+
+            public boolean isChannelClear() {
+                return SimPlatform.this.sim.isChannelClear(SimPlatform.this.index);
+            }
+        };
+        for (int i = 0; i < leds.length; i++) {
+            leds[i] = new VirtualLed();
+        }
+    }
+
+    public TriColorLed[] getLeds() {
+        return leds;
+    }
+
+    /**
+     * Return the writes to all LEDs of this node so far.
+     */
+    int getLedWrites() {
+        int writes = 0;
+        for (int i = 0; i < leds.length; i++) {
+            writes += leds[i].getWrites();
+        }
+        return writes;
+    }
+
+    public Switch[] getSwitches() {
+        return switches;
+    }
+
+    public LightSensor getLightSensor() {
+        return light;
+    }
+
+    public Battery getBattery() {
+        return battery;
+    }
+
+    public Led getGreenLed() {
+        return greenLed;
+    }
+
+    public Led getRedLed() {
+        return redLed;
+    }
+
+    public RadioPolicy getRadioPolicy() {
+        return radioPolicy;
+    }
+
+    VirtualRadioPolicy getVirtualRadioPolicy() {
+        return radioPolicy;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    SimClock getSimClock() {
+        return clock;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    MemoryStorage getMemoryStorage() {
+        return storage;
+    }
+
+    public RadioConnection openBroadcast(String port) {
+        return conn;
+    }
+
+    public RadioConnection openListener(String port) {
+        return conn;
+    }
+
+    SimConnection getConnection() {
+        return conn;
+    }
+
+    class SimConnection implements RadioConnection {
+
+        public RadioPacket newPacket() {
+            return new ByteArrayPacket(InMemoryMedium.MAX_PACKET_LENGTH);
+        }
+
+        public void send(RadioPacket packet) {
+            ByteArrayPacket p = (ByteArrayPacket) packet;
+            sim.beginTransmission(index, p.getBuffer(), p.getLength());
+        }
+
+        public void receive(RadioPacket packet) throws IOException {
+            throw new IOException("Receive is driven by the simulator");
+        }
+
+        public void setTimeout(long millis) {
+        }
+
+        public void setMaxBroadcastHops(int hops) {
+        }
+
+        public void close() {
+        }
+    }
+}
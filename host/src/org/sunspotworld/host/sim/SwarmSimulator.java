@@ -0,0 +1,1140 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.sunspotworld.HealthSummary;
+import org.sunspotworld.HotaruNode;
+import org.sunspotworld.Metrics;
+import org.sunspotworld.host.capture.CaptureWriter;
+
+/**
+ * Discrete event simulation of a Hotaru swarm.
+ *<p>
+ * All nodes run their unmodified strategies on one thread. Time is virtual
+ * (microseconds) and only advances from one event to the next, so a long
+ * deployment runs as fast as the events can be processed. Every random
+ * choice comes from one seeded generator: the same arguments always give
+ * the same result.
+ *<p>
+ * Usage: SwarmSimulator [name=value ...], see {@link #main}.
+ */
+public class SwarmSimulator {
+
+    // Event types
+    private static final int BOOT = 0;
+    private static final int XMIT = 1;
+    private static final int TX_END = 2;
+    private static final int RX_TIMEOUT = 3;
+    private static final int SAMPLE = 4;
+    private static final int BACKOFF = 5;
+    private static final int KILL = 6;
+    private static final int BROWNOUT = 7;
+    /**
+     * Microseconds the power stays off in a brownout.
+     */
+    private static final long POWER_OFF = 1000000L;
+    /**
+     * Microseconds between LED flips of a master.
+     */
+    private static final long FLIP_PERIOD = 1000000L;
+    private static final long ADDRESS_BASE = 0x00144F0100000000L;
+    private final RadioModel model;
+    private final Random random;
+    private final int count;
+    private final HotaruNode[] nodes;
+    private final SimPlatform[] platforms;
+    private final Map<Long, Integer> indexOf = new HashMap<Long, Integer>();
+    private final EventQueue queue = new EventQueue();
+    private long now;
+    // Topology
+    private final double[] x;
+    private final double[] y;
+    private int[][] neighbours;
+    private float[][] linkLoss;
+    private byte[][] linkRssi;
+    private byte[][] linkQuality;
+    // Radio state per node
+    private final boolean[] booted;
+    private final long[] busyUntil;
+    private final int[] incoming;
+    private final boolean[] corrupted;
+    private final long[] txEnd;
+    private final byte[][] txData;
+    private final int[] txLength;
+    private final int[] txAttempts;
+    private final boolean[] txPending;
+    private final long[] recvDeadline;
+    private final boolean[] recvTimerQueued;
+    private final long[] xmitDue;
+    // LED flips, to measure the phase error
+    private final int[] shownState;
+    private final long[] lastFlip;
+    // Election progress
+    private final boolean[] isMaster;
+    private long masterStarts;
+    private long mastersChanged;
+    // Recovery after the masters are switched off, or all nodes rebooted
+    private long killAt = -1;
+    private int killed;
+    private final boolean[] dead;
+    private long brownoutAt = -1;
+    private long disruptedAt = -1;
+    private long recoveredAt = -1;
+    private long startsBefore;
+    private final boolean[] orphan;
+    private int orphans;
+    // Configuration, applied again to rebooted nodes
+    private final long bootSpread;
+    private int syncMode = HotaruNode.SYNC_MASTER_SLAVE;
+    private int groups = 1;
+    private boolean randomBackoff = false;
+    private boolean dutyCycled = false;
+    private int failoverBeacons = -1;                   // -1: the node's default
+    private boolean warmStart = true;
+    private final ByteArrayPacket xmitPacket = new ByteArrayPacket(InMemoryMedium.MAX_PACKET_LENGTH);
+    private final ByteArrayPacket recvPacket = new ByteArrayPacket(InMemoryMedium.MAX_PACKET_LENGTH);
+    // Statistics
+    private long events;
+    private long transmissions;
+    private long deliveries;
+    private long collisions;
+    private long losses;
+    private long accessFailures;
+    private long missedAsleep;
+    private long sampleInterval = 60000000L;
+    private SampleListener sampleListener;
+    private CaptureWriter capture;
+
+    /**
+     * Called at every sample point of {@link #run}.
+     */
+    public interface SampleListener {
+
+        void sample(SwarmSimulator sim);
+    }
+
+    public SwarmSimulator(int count, RadioModel model, long seed, long bootSpreadMillis) {
+        this.count = count;
+        this.model = model;
+        this.random = new Random(seed);
+        nodes = new HotaruNode[count];
+        platforms = new SimPlatform[count];
+        x = new double[count];
+        y = new double[count];
+        booted = new boolean[count];
+        busyUntil = new long[count];
+        incoming = new int[count];
+        corrupted = new boolean[count];
+        txEnd = new long[count];
+        txData = new byte[count][InMemoryMedium.MAX_PACKET_LENGTH];
+        txLength = new int[count];
+        txAttempts = new int[count];
+        txPending = new boolean[count];
+        recvDeadline = new long[count];
+        recvTimerQueued = new boolean[count];
+        xmitDue = new long[count];
+        shownState = new int[count];
+        lastFlip = new long[count];
+        isMaster = new boolean[count];
+        orphan = new boolean[count];
+        dead = new boolean[count];
+        this.bootSpread = bootSpreadMillis * 1000;
+        for (int i = 0; i < count; i++) {
+            long address;
+            do {
+                address = ADDRESS_BASE | (random.nextInt() & 0xFFFFFFFFL);
+            } while (indexOf.containsKey(Long.valueOf(address)));
+            indexOf.put(Long.valueOf(address), Integer.valueOf(i));
+            double drift = (random.nextDouble() * 2 - 1) * model.getMaxDriftPpm();
+            long offset = random.nextInt(1000000);
+            int battery = 3500 + (int) ((address & 0xFFFFFFFFL) % 700);    // not drawn, so runs stay comparable
+            platforms[i] = new SimPlatform(this, i, address, new SimClock(this, drift, offset), battery);
+            nodes[i] = createNode(i);
+            incoming[i] = -1;
+            shownState[i] = -1;
+            queue.add((long) (random.nextDouble() * bootSpreadMillis * 1000), i, BOOT);
+        }
+        placeNodes();
+        connect();
+    }
+
+    /**
+     * Make the node of a platform, set up as configured.
+     */
+    private HotaruNode createNode(int i) {
+        HotaruNode node = new HotaruNode(platforms[i]);
+        node.setLogLevel(HotaruNode.ERROR + 1);
+        final int index = i;
+        node.setTransmitRequestListener(new HotaruNode.TransmitRequestListener() {
+
+            public void transmitRequested() {
+                xmitDue[index] = now;
+                queue.add(now, index, XMIT);
+            }
+        });
+        node.setSyncMode(syncMode);
+        node.setGroup(i % groups);
+        node.setRandomBackoff(randomBackoff);
+        node.setDutyCycled(dutyCycled);
+        if (failoverBeacons >= 0) {
+            node.setFailoverBeacons(failoverBeacons);
+        }
+        node.setWarmStart(warmStart);
+        return node;
+    }
+
+    /**
+     * Return the current virtual time in microseconds.
+     */
+    public long now() {
+        return now;
+    }
+
+    public HotaruNode[] getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Set the sync mode of every node; call before {@link #run}.
+     *
+     * @param mode HotaruNode.SYNC_MASTER_SLAVE or HotaruNode.SYNC_FIREFLY
+     */
+    public void setSyncMode(int mode) {
+        this.syncMode = mode;
+        for (int i = 0; i < count; i++) {
+            nodes[i].setSyncMode(mode);
+        }
+    }
+
+    /**
+     * Split the nodes into swarm groups sharing the channel, node i joining
+     * group i % groups; call before {@link #run}.
+     */
+    public void setGroups(int groups) {
+        this.groups = groups;
+        for (int i = 0; i < count; i++) {
+            nodes[i].setGroup(i % groups);
+        }
+    }
+
+    /**
+     * Let nodes whose relays go unechoed move a random number of transmit
+     * slots on instead of rehashing their slot.
+     */
+    public void setRandomBackoff(boolean randomBackoff) {
+        this.randomBackoff = randomBackoff;
+        for (int i = 0; i < count; i++) {
+            nodes[i].setRandomBackoff(randomBackoff);
+        }
+    }
+
+    /**
+     * Set how many beacons of its master a backup misses before taking
+     * over, 0 for no backups.
+     */
+    public void setFailoverBeacons(int beacons) {
+        this.failoverBeacons = beacons;
+        for (int i = 0; i < count; i++) {
+            nodes[i].setFailoverBeacons(beacons);
+        }
+    }
+
+    /**
+     * Switch off every node acting as master at the given virtual time,
+     * and measure how long the others take to follow a live master again.
+     */
+    public void setKillTime(long millis) {
+        this.killAt = millis * 1000;
+    }
+
+    /**
+     * Cut the power of every node at the given virtual time. They come
+     * back a second later, within the boot spread, as new nodes on the
+     * same platforms, which keep their storage and clocks.
+     */
+    public void setBrownoutTime(long millis) {
+        this.brownoutAt = millis * 1000;
+    }
+
+    /**
+     * Choose whether rebooted nodes come back with their saved state.
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+        for (int i = 0; i < count; i++) {
+            nodes[i].setWarmStart(warmStart);
+        }
+    }
+
+    /**
+     * Let slaves power their receivers down between beacons.
+     */
+    public void setDutyCycled(boolean dutyCycled) {
+        this.dutyCycled = dutyCycled;
+        for (int i = 0; i < count; i++) {
+            nodes[i].setDutyCycled(dutyCycled);
+        }
+    }
+
+    /**
+     * Record every delivered radiogram, stamped with the virtual time and
+     * the receiver's clock, for {@link org.sunspotworld.host.capture.Replay}.
+     */
+    public void setCapture(CaptureWriter capture) {
+        this.capture = capture;
+    }
+
+    public void setSampleListener(long intervalMillis, SampleListener listener) {
+        this.sampleInterval = intervalMillis * 1000;
+        this.sampleListener = listener;
+    }
+
+    private void placeNodes() {
+        if (model.getTopology() == RadioModel.GRID) {
+            int columns = (int) Math.ceil(Math.sqrt(count));
+            for (int i = 0; i < count; i++) {
+                x[i] = (i % columns) * model.getSpacing();
+                y[i] = (i / columns) * model.getSpacing();
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                x[i] = random.nextDouble() * model.getArea();
+                y[i] = random.nextDouble() * model.getArea();
+            }
+        }
+    }
+
+    /**
+     * Build the neighbour lists, bucketing nodes into cells one range wide so
+     * only adjacent cells have to be compared.
+     */
+    private void connect() {
+        double range = model.getRange();
+        double maxX = 0;
+        double maxY = 0;
+        for (int i = 0; i < count; i++) {
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        int cols = (int) (maxX / range) + 1;
+        int rows = (int) (maxY / range) + 1;
+        int[] cellStart = new int[cols * rows + 1];
+        int[] cellOf = new int[count];
+        for (int i = 0; i < count; i++) {
+            cellOf[i] = (int) (y[i] / range) * cols + (int) (x[i] / range);
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (int c = 0; c < cols * rows; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] members = new int[count];
+        int[] fill = new int[cols * rows];
+        for (int i = 0; i < count; i++) {
+            members[cellStart[cellOf[i]] + fill[cellOf[i]]++] = i;
+        }
+        neighbours = new int[count][];
+        linkLoss = new float[count][];
+        linkRssi = new byte[count][];
+        linkQuality = new byte[count][];
+        int[] found = new int[count];
+        float[] loss = new float[count];
+        byte[] rssi = new byte[count];
+        byte[] quality = new byte[count];
+        for (int i = 0; i < count; i++) {
+            int n = 0;
+            int cx = cellOf[i] % cols;
+            int cy = cellOf[i] / cols;
+            for (int gy = Math.max(0, cy - 1); gy <= Math.min(rows - 1, cy + 1); gy++) {
+                for (int gx = Math.max(0, cx - 1); gx <= Math.min(cols - 1, cx + 1); gx++) {
+                    int c = gy * cols + gx;
+                    for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                        int j = members[k];
+                        double d = Math.sqrt((x[i] - x[j]) * (x[i] - x[j]) + (y[i] - y[j]) * (y[i] - y[j]));
+                        if (j != i && d <= range) {
+                            found[n] = j;
+                            loss[n] = (float) model.lossAt(d);
+                            rssi[n] = (byte) model.rssiAt(d);
+                            quality[n] = (byte) model.linkQualityAt(d);
+                            n++;
+                        }
+                    }
+                }
+            }
+            neighbours[i] = new int[n];
+            linkLoss[i] = new float[n];
+            linkRssi[i] = new byte[n];
+            linkQuality[i] = new byte[n];
+            System.arraycopy(found, 0, neighbours[i], 0, n);
+            System.arraycopy(loss, 0, linkLoss[i], 0, n);
+            System.arraycopy(rssi, 0, linkRssi[i], 0, n);
+            System.arraycopy(quality, 0, linkQuality[i], 0, n);
+        }
+    }
+
+    /**
+     * Run the simulation until the given virtual time.
+     *
+     * @param endMillis virtual time to stop at, in milliseconds
+     */
+    public void run(long endMillis) throws IOException {
+        long end = endMillis * 1000;
+        if (sampleListener != null) {
+            queue.add(sampleInterval, -1, SAMPLE);
+        }
+        if (killAt >= 0) {
+            queue.add(killAt, -1, KILL);
+        }
+        if (brownoutAt >= 0) {
+            queue.add(brownoutAt, -1, BROWNOUT);
+        }
+        while (!queue.isEmpty() && queue.headTime() <= end) {
+            now = queue.headTime();
+            int node = queue.headNode();
+            int type = queue.headType();
+            queue.remove();
+            events++;
+            switch (type) {
+                case BOOT:
+                    boot(node);
+                    break;
+                case XMIT:
+                    xmit(node);
+                    break;
+                case TX_END:
+                    endTransmission(node);
+                    break;
+                case RX_TIMEOUT:
+                    recvTimeout(node);
+                    break;
+                case BACKOFF:
+                    attemptTransmission(node);
+                    break;
+                case KILL:
+                    killMasters();
+                    break;
+                case BROWNOUT:
+                    brownout();
+                    break;
+                case SAMPLE:
+                    sampleListener.sample(this);
+                    queue.add(now + sampleInterval, -1, SAMPLE);
+                    break;
+            }
+        }
+        now = end;
+    }
+
+    private void boot(int i) {
+        nodes[i].initialize();
+        booted[i] = true;
+        noteState(i);
+        xmitDue[i] = now;
+        queue.add(now, i, XMIT);
+        recvDeadline[i] = now + platforms[i].getSimClock().toVirtual(nodes[i].getRecvTimeout());
+        if (!recvTimerQueued[i]) {
+            queue.add(recvDeadline[i], i, RX_TIMEOUT);  // unless the one from before a reboot is still queued
+            recvTimerQueued[i] = true;
+        }
+    }
+
+    /**
+     * Switch the masters off. A switched off node neither sends nor receives
+     * and its timers stop.
+     */
+    private void killMasters() {
+        for (int i = 0; i < count; i++) {
+            if (booted[i] && nodes[i].getMasterAddress() == nodes[i].getAddress()) {
+                booted[i] = false;
+                dead[i] = true;
+                txPending[i] = false;
+                killed++;
+            }
+        }
+        disrupted();
+    }
+
+    /**
+     * Cut the power of every node and boot it again as a new node.
+     */
+    private void brownout() {
+        for (int i = 0; i < count; i++) {
+            if (booted[i]) {
+                booted[i] = false;
+                txPending[i] = false;
+                platforms[i].getVirtualRadioPolicy().setRxOn(true);  // the radio resets too
+                nodes[i] = createNode(i);
+                isMaster[i] = false;
+                queue.add(now + POWER_OFF + (long) (random.nextDouble() * bootSpread), i, BOOT);
+            }
+        }
+        disrupted();
+    }
+
+    private void disrupted() {
+        disruptedAt = now;
+        recoveredAt = -1;
+        startsBefore = masterStarts;
+        for (int i = 0; i < count; i++) {
+            noteOrphan(i);
+        }
+    }
+
+    /**
+     * Keep count of the nodes that are powered, or about to be, and follow
+     * no live master.
+     */
+    private void noteOrphan(int i) {
+        Integer m = indexOf.get(Long.valueOf(nodes[i].getMasterAddress()));
+        boolean o = !dead[i] && (!booted[i] || m == null || !booted[m.intValue()]);
+        if (o != orphan[i]) {
+            orphan[i] = o;
+            orphans += o ? 1 : -1;
+        }
+        if (orphans == 0 && recoveredAt < 0) {
+            recoveredAt = now;
+        }
+    }
+
+    private void xmit(int i) throws IOException {
+        if (now != xmitDue[i] || !booted[i]) {
+            return;                     // superseded by a transmit request
+        }
+        long next = now + platforms[i].getSimClock().toVirtual(nodes[i].getXmitInterval());
+        nodes[i].transmit(platforms[i].getConnection(), xmitPacket);
+        noteState(i);
+        if (xmitDue[i] == now) {
+            xmitDue[i] = next;
+            queue.add(next, i, XMIT);
+        }
+    }
+
+    private void recvTimeout(int i) {
+        if (!booted[i]) {
+            recvTimerQueued[i] = false;
+            return;
+        }
+        if (now >= recvDeadline[i]) {
+            nodes[i].receiveTimedOut();
+            noteState(i);
+            recvDeadline[i] = now + platforms[i].getSimClock().toVirtual(nodes[i].getRecvTimeout());
+        }
+        queue.add(recvDeadline[i], i, RX_TIMEOUT);
+    }
+
+    /**
+     * Queue a frame for sending; it goes on air once the channel is clear.
+     */
+    void beginTransmission(int sender, byte[] data, int length) {
+        if (txPending[sender] || txEnd[sender] > now) {
+            return;                     // still sending the previous frame
+        }
+        System.arraycopy(data, 0, txData[sender], 0, length);
+        txLength[sender] = length;
+        txAttempts[sender] = 0;
+        txPending[sender] = true;
+        attemptTransmission(sender);
+    }
+
+    /**
+     * Put a pending frame on air. Receivers already busy with another frame lose both.
+     */
+    private void attemptTransmission(int sender) {
+        if (!booted[sender]) {
+            return;
+        }
+        int channel = platforms[sender].getVirtualRadioPolicy().getChannelNumber();
+        if (model.isCsma() && (busyUntil[sender] > now || isNoisy(channel))) {
+            if (txAttempts[sender] >= model.getMaxBackoffs()) {
+                txPending[sender] = false;
+                accessFailures++;
+            } else {
+                queue.add(now + model.backoff(txAttempts[sender]++, random), sender, BACKOFF);
+            }
+            return;
+        }
+        txPending[sender] = false;
+        transmissions++;
+        long end = now + model.airtime(txLength[sender]);
+        txEnd[sender] = end;
+        corrupted[sender] = true;       // half duplex: whatever it was receiving is gone
+        int[] ns = neighbours[sender];
+        for (int k = 0; k < ns.length; k++) {
+            int r = ns[k];
+            if (platforms[r].getVirtualRadioPolicy().getChannelNumber() != channel) {
+                continue;               // another channel does not hear it
+            }
+            if (busyUntil[r] > now) {
+                if (model.isCollisions()) {
+                    corrupted[r] = true;
+                    collisions++;
+                }
+            } else {
+                incoming[r] = sender;
+                corrupted[r] = txEnd[r] > now;
+            }
+            if (end > busyUntil[r]) {
+                busyUntil[r] = end;
+            }
+        }
+        queue.add(end, sender, TX_END);
+    }
+
+    private void endTransmission(int sender) throws IOException {
+        int[] ns = neighbours[sender];
+        float[] loss = linkLoss[sender];
+        VirtualRadioPolicy src = platforms[sender].getVirtualRadioPolicy();
+        for (int k = 0; k < ns.length; k++) {
+            int r = ns[k];
+            boolean heard;
+            if (model.isCollisions()) {
+                heard = incoming[r] == sender && !corrupted[r];
+                if (incoming[r] == sender) {
+                    incoming[r] = -1;
+                }
+            } else {
+                heard = txEnd[r] <= now - model.airtime(txLength[sender]);
+            }
+            if (!heard || !booted[r]) {
+                continue;
+            }
+            if (random.nextFloat() < loss[k]) {
+                losses++;
+                continue;
+            }
+            VirtualRadioPolicy dst = platforms[r].getVirtualRadioPolicy();
+            if (dst.getChannelNumber() != src.getChannelNumber() || dst.getPanId() != src.getPanId()) {
+                continue;
+            }
+            if (isNoisy(dst.getChannelNumber())) {
+                losses++;
+                continue;
+            }
+            if (!dst.isRxOn()) {
+                missedAsleep++;
+                continue;
+            }
+            deliveries++;
+            if (capture != null) {
+                capture.append(now / 1000, platforms[r].getClock().currentTimeMillis(), dst.getIEEEAddress(),
+                        linkRssi[sender][k], linkQuality[sender][k] & 0xFF, txData[sender], 0, txLength[sender]);
+            }
+            recvPacket.fill(txData[sender], 0, txLength[sender]);
+            recvPacket.setLink(linkRssi[sender][k], linkQuality[sender][k] & 0xFF);
+            nodes[r].receive(recvPacket);
+            noteState(r);
+            recvDeadline[r] = now + platforms[r].getSimClock().toVirtual(nodes[r].getRecvTimeout());
+        }
+    }
+
+    /**
+     * Return whether outside interference occupies a channel at this moment.
+     */
+    private boolean isNoisy(int channel) {
+        int noise = model.getNoise(channel);
+        return noise > 0 && random.nextInt(1000) < noise;
+    }
+
+    /**
+     * Clear channel assessment of a node.
+     */
+    boolean isChannelClear(int i) {
+        return busyUntil[i] <= now && !isNoisy(platforms[i].getVirtualRadioPolicy().getChannelNumber());
+    }
+
+    /**
+     * Return how many nodes are on each channel, indexed by channel number.
+     */
+    public int[] countChannels() {
+        int[] counts = new int[27];
+        for (int i = 0; i < count; i++) {
+            counts[platforms[i].getVirtualRadioPolicy().getChannelNumber()]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Return the number of nodes currently acting as master.
+     */
+    public int countMasters() {
+        int masters = 0;
+        for (int i = 0; i < count; i++) {
+            if (booted[i] && nodes[i].getMasterAddress() == nodes[i].getAddress()) {
+                masters++;
+            }
+        }
+        return masters;
+    }
+
+    /**
+     * Return the number of nodes showing the same LED state as the master
+     * they follow, or, for nodes without a master, as most other nodes.
+     */
+    public int countInSync() {
+        int lit = 0;
+        for (int i = 0; i < count; i++) {
+            if (booted[i] && nodes[i].getHotaruState() == 0) {
+                lit++;
+            }
+        }
+        int majority = lit * 2 >= count ? 0 : 1;
+        int synced = 0;
+        for (int i = 0; i < count; i++) {
+            if (!booted[i]) {
+                continue;
+            }
+            Integer m = indexOf.get(Long.valueOf(nodes[i].getMasterAddress()));
+            int expected = m != null ? nodes[m.intValue()].getHotaruState() : majority;
+            if (nodes[i].getHotaruState() == expected) {
+                synced++;
+            }
+        }
+        return synced;
+    }
+
+    private void noteState(int i) {
+        int state = nodes[i].getHotaruState();
+        if (state != shownState[i]) {
+            shownState[i] = state;
+            lastFlip[i] = now;
+        }
+        boolean master = nodes[i].getMasterAddress() == nodes[i].getAddress();
+        if (master != isMaster[i]) {
+            isMaster[i] = master;
+            if (master) {
+                masterStarts++;
+            }
+            mastersChanged = now;
+        }
+        if (disruptedAt >= 0 && recoveredAt < 0) {
+            noteOrphan(i);
+        }
+    }
+
+    /**
+     * Return how far the last LED flip of a node is from the last flip of
+     * its master, in microseconds, or -1 if it has no master in the swarm.
+     */
+    private long phaseError(int i) {
+        Integer m = indexOf.get(Long.valueOf(nodes[i].getMasterAddress()));
+        if (!booted[i] || m == null || m.intValue() == i) {
+            return -1;
+        }
+        long d = Math.abs(lastFlip[i] - lastFlip[m.intValue()]) % FLIP_PERIOD;
+        return Math.min(d, FLIP_PERIOD - d);
+    }
+
+    /**
+     * Return the mean phase error of the nodes following a master, in
+     * microseconds.
+     */
+    public long getMeanPhaseError() {
+        long sum = 0;
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            long e = phaseError(i);
+            if (e >= 0) {
+                sum += e;
+                n++;
+            }
+        }
+        return n == 0 ? 0 : sum / n;
+    }
+
+    /**
+     * Return the largest phase error of the nodes following a master, in
+     * microseconds.
+     */
+    public long getMaxPhaseError() {
+        long max = 0;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, phaseError(i));
+        }
+        return max;
+    }
+
+    /**
+     * Return the mean number of neighbours in range.
+     */
+    public double getMeanDegree() {
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += neighbours[i].length;
+        }
+        return (double) sum / count;
+    }
+
+    /**
+     * Return the counters and histograms of all nodes added up.
+     */
+    public Metrics getTotalMetrics() {
+        Metrics total = new Metrics();
+        for (int i = 0; i < count; i++) {
+            total.add(nodes[i].getMetrics());
+        }
+        return total;
+    }
+
+    /**
+     * Return the writes to the LEDs of all nodes so far.
+     */
+    public long getLedWrites() {
+        long writes = 0;
+        for (int i = 0; i < count; i++) {
+            writes += platforms[i].getLedWrites();
+        }
+        return writes;
+    }
+
+    /**
+     * Return the number of packets not received because the receiver was off.
+     */
+    public long getMissedAsleep() {
+        return missedAsleep;
+    }
+
+    /**
+     * Return the mean share of time the receivers were on, in permille.
+     */
+    public long getMeanRxOnPermille() {
+        long sum = 0;
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (booted[i]) {
+                sum += nodes[i].getMetrics().getGauge(Metrics.RX_ON_PERMILLE);
+                n++;
+            }
+        }
+        return n == 0 ? 0 : sum / n;
+    }
+
+    /**
+     * Return how often a node became master.
+     */
+    public long getMasterStarts() {
+        return masterStarts;
+    }
+
+    /**
+     * Return the virtual time in microseconds at which the set of masters
+     * last changed.
+     */
+    public long getMastersChanged() {
+        return mastersChanged;
+    }
+
+    /**
+     * Return the number of masters switched off.
+     */
+    public int getKilled() {
+        return killed;
+    }
+
+    /**
+     * Return the microseconds from switching the masters off, or from a
+     * brownout, until every node left followed a live master again, or -1
+     * if that did not happen.
+     */
+    public long getRecoveryTime() {
+        return recoveredAt < 0 ? -1 : recoveredAt - disruptedAt;
+    }
+
+    /**
+     * Return how often a node became master since the masters were switched
+     * off or the brownout.
+     */
+    public long getMasterStartsSinceDisruption() {
+        return masterStarts - startsBefore;
+    }
+
+    /**
+     * Return the writes to the nodes' storage so far.
+     */
+    public long getStateSaves() {
+        long saves = 0;
+        for (int i = 0; i < count; i++) {
+            saves += platforms[i].getMemoryStorage().getSaves();
+        }
+        return saves;
+    }
+
+    /**
+     * Return the master with the largest health summary of its swarm, or
+     * -1 if no master completed a health round.
+     */
+    public int findHealthMaster() {
+        int best = -1;
+        for (int i = 0; i < count; i++) {
+            HealthSummary h = booted[i] ? nodes[i].getSwarmHealth() : null;
+            if (h != null && (best < 0 || h.getNodes() > nodes[best].getSwarmHealth().getNodes())) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Return the powered nodes that follow a master, the master included.
+     */
+    public int countFollowers(int master) {
+        long address = nodes[master].getAddress();
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (booted[i] && nodes[i].getMasterAddress() == address) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Return the lowest battery voltage of the powered nodes that follow a
+     * master, the master included.
+     */
+    public int getMinBattery(int master) {
+        long address = nodes[master].getAddress();
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (booted[i] && nodes[i].getMasterAddress() == address) {
+                min = Math.min(min, platforms[i].getBattery().getMillivolts());
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Return the health rounds completed by all masters.
+     */
+    public long getHealthRounds() {
+        long rounds = 0;
+        for (int i = 0; i < count; i++) {
+            rounds += nodes[i].getHealthRounds();
+        }
+        return rounds;
+    }
+
+    public long getEvents() {
+        return events;
+    }
+
+    public long getTransmissions() {
+        return transmissions;
+    }
+
+    public long getDeliveries() {
+        return deliveries;
+    }
+
+    public long getCollisions() {
+        return collisions;
+    }
+
+    public long getLosses() {
+        return losses;
+    }
+
+    /**
+     * Return the number of frames dropped because the channel stayed busy.
+     */
+    public long getAccessFailures() {
+        return accessFailures;
+    }
+
+    /**
+     * Return a digest of the final node states, to compare runs.
+     */
+    public long digest() {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < count; i++) {
+            h = (h ^ nodes[i].getMasterAddress()) * 0x100000001b3L;
+            h = (h ^ nodes[i].getHotaruState()) * 0x100000001b3L;
+        }
+        h = (h ^ transmissions) * 0x100000001b3L;
+        h = (h ^ deliveries) * 0x100000001b3L;
+        return h;
+    }
+
+    /**
+     * Options, all name=value:
+     *<pre>
+     *   nodes=1000       number of nodes
+     *   seconds=3600     simulated time
+     *   seed=1           random seed
+     *   sync=master      master (master/slave election) or firefly
+     *   topology=disc    disc or grid
+     *   area=100         side of the disc topology's square in metres
+     *   spacing=5        grid spacing in metres
+     *   range=30         radio range in metres
+     *   loss=0.01        loss probability of a short link
+     *   edgeLoss=0.2     loss probability at the range limit
+     *   collisions=true  whether overlapping frames destroy each other
+     *   csma=true        whether senders back off while the channel is busy
+     *   drift=40         largest clock error in ppm
+     *   boot=2000        nodes boot within this many milliseconds
+     *   duty=false       whether slaves power the receiver down between beacons
+     *   groups=1         number of swarms sharing the channel
+     *   backoff=hash     how a node leaves a colliding transmit slot: hash or random
+     *   failover=2       beacons a backup misses before taking over, 0 for no backups
+     *   kill=0           seconds after which the masters are switched off, 0 for never
+     *   brownout=0       seconds after which all nodes reboot, 0 for never
+     *   warm=true        whether rebooted nodes come back with their saved state
+     *   noise=26:300,... permille of air time interference takes per channel
+     *   capture=         file to record every delivered radiogram in
+     *   report=60        seconds between progress lines
+     *</pre>
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> opts = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0) {
+                System.err.println("Expected name=value: " + args[i]);
+                System.exit(1);
+            }
+            opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        RadioModel model = new RadioModel();
+        model.setTopology("grid".equals(opt(opts, "topology", "disc")) ? RadioModel.GRID : RadioModel.DISC);
+        model.setArea(Double.parseDouble(opt(opts, "area", "100")));
+        model.setSpacing(Double.parseDouble(opt(opts, "spacing", "5")));
+        model.setRange(Double.parseDouble(opt(opts, "range", "30")));
+        model.setBaseLoss(Double.parseDouble(opt(opts, "loss", "0.01")));
+        model.setEdgeLoss(Double.parseDouble(opt(opts, "edgeLoss", "0.2")));
+        model.setCollisions(Boolean.valueOf(opt(opts, "collisions", "true")).booleanValue());
+        model.setCsma(Boolean.valueOf(opt(opts, "csma", "true")).booleanValue());
+        model.setMaxDriftPpm(Double.parseDouble(opt(opts, "drift", "40")));
+        String noise = opt(opts, "noise", "");
+        if (noise.length() > 0) {
+            for (String entry : noise.split(",")) {
+                int colon = entry.indexOf(':');
+                model.setNoise(Integer.parseInt(entry.substring(0, colon)), Integer.parseInt(entry.substring(colon + 1)));
+            }
+        }
+        int nodes = Integer.parseInt(opt(opts, "nodes", "1000"));
+        long seconds = Long.parseLong(opt(opts, "seconds", "3600"));
+        long seed = Long.parseLong(opt(opts, "seed", "1"));
+        long boot = Long.parseLong(opt(opts, "boot", "2000"));
+        long report = Long.parseLong(opt(opts, "report", "60"));
+
+        long wallStart = System.currentTimeMillis();
+        SwarmSimulator sim = new SwarmSimulator(nodes, model, seed, boot);
+        if ("firefly".equals(opt(opts, "sync", "master"))) {
+            sim.setSyncMode(HotaruNode.SYNC_FIREFLY);
+        }
+        sim.setDutyCycled(Boolean.valueOf(opt(opts, "duty", "false")).booleanValue());
+        sim.setRandomBackoff("random".equals(opt(opts, "backoff", "hash")));
+        sim.setGroups(Integer.parseInt(opt(opts, "groups", "1")));
+        sim.setFailoverBeacons(Integer.parseInt(opt(opts, "failover", "2")));
+        long kill = Long.parseLong(opt(opts, "kill", "0"));
+        if (kill > 0) {
+            sim.setKillTime(kill * 1000);
+        }
+        long brownout = Long.parseLong(opt(opts, "brownout", "0"));
+        if (brownout > 0) {
+            sim.setBrownoutTime(brownout * 1000);
+        }
+        sim.setWarmStart(Boolean.valueOf(opt(opts, "warm", "true")).booleanValue());
+        String capture = opt(opts, "capture", "");
+        if (capture.length() > 0) {
+            sim.setCapture(new CaptureWriter(new File(capture)));
+        }
+        System.out.println("Nodes: " + nodes + ", mean neighbours: " + sim.getMeanDegree());
+        sim.setSampleListener(report * 1000, new SampleListener() {
+
+            public void sample(SwarmSimulator s) {
+                System.out.println("[" + (s.now() / 1000000) + "s] masters: " + s.countMasters() +
+                        ", in sync: " + s.countInSync() +
+                        ", phase error: " + s.getMeanPhaseError() / 1000 + "/" +
+                        s.getMaxPhaseError() / 1000 + "ms" +
+                        ", tx: " + s.getTransmissions() +
+                        ", collisions: " + s.getCollisions());
+            }
+        });
+        sim.run(seconds * 1000);
+        long wall = Math.max(1, System.currentTimeMillis() - wallStart);
+        if (sim.capture != null) {
+            sim.capture.close();
+        }
+        System.out.println("Simulated        : " + seconds + "s in " + wall + "ms");
+        System.out.println("Events           : " + sim.getEvents() + " (" + (sim.getEvents() * 1000 / wall) + "/s)");
+        System.out.println("Masters          : " + sim.countMasters());
+        System.out.println("Master starts    : " + sim.getMasterStarts() + ", last change at " +
+                sim.getMastersChanged() / 1000 + "ms");
+        long recovery = sim.getRecoveryTime();
+        String recovered = (recovery < 0 ? "not all nodes follow a live master" :
+                "all nodes follow a live master " + recovery / 1000 + "ms later") +
+                ", " + sim.getMasterStartsSinceDisruption() + " master starts";
+        if (kill > 0) {
+            System.out.println("Masters killed   : " + sim.getKilled() + " at " + kill + "s, " + recovered);
+        }
+        if (brownout > 0) {
+            System.out.println("Brownout         : at " + brownout + "s, " + recovered);
+        }
+        System.out.println("In sync          : " + sim.countInSync() + "/" + nodes);
+        System.out.println("Phase error      : " + sim.getMeanPhaseError() / 1000 + "ms mean, " +
+                sim.getMaxPhaseError() / 1000 + "ms max");
+        System.out.println("LED writes       : " + sim.getLedWrites());
+        System.out.println("Transmissions    : " + sim.getTransmissions());
+        System.out.println("Deliveries       : " + sim.getDeliveries());
+        System.out.println("Collisions       : " + sim.getCollisions());
+        System.out.println("Link losses      : " + sim.getLosses());
+        System.out.println("Access failures  : " + sim.getAccessFailures());
+        System.out.println("Missed asleep    : " + sim.getMissedAsleep());
+        System.out.println("Receiver on      : " + sim.getMeanRxOnPermille() / 10.0 + "% mean");
+        System.out.println("State saves      : " + sim.getStateSaves());
+        int healthMaster = sim.findHealthMaster();
+        if (healthMaster >= 0) {
+            HealthSummary h = sim.nodes[healthMaster].getSwarmHealth();
+            System.out.println("Swarm health     : " + h.getNodes() + " of " + sim.countFollowers(healthMaster) +
+                    " nodes, sync error " + h.getSyncMean() + "ms mean, " + h.getSyncMax() + "ms max, loss " +
+                    h.getLossMean() + " permille, battery " + h.getBatteryMin() + "mV min (" +
+                    sim.getMinBattery(healthMaster) + "mV)");
+        }
+        long reports = sim.getTotalMetrics().getCounter(Metrics.REPORTS_SENT);
+        long rounds = sim.getHealthRounds();
+        System.out.println("Health reports   : " + reports + " in " + rounds + " rounds" +
+                (rounds > 0 ? ", " + reports * 100 / (rounds * Math.max(1, nodes - 1)) / 100.0 + " per node and round" : ""));
+        StringBuilder channels = new StringBuilder();
+        int[] perChannel = sim.countChannels();
+        for (int c = 0; c < perChannel.length; c++) {
+            if (perChannel[c] != 0) {
+                channels.append(channels.length() == 0 ? "" : ", ").append(c).append('=').append(perChannel[c]);
+            }
+        }
+        System.out.println("Channels         : " + channels);
+        System.out.println("Digest           : " + Long.toHexString(sim.digest()));
+        if (sim.capture != null) {
+            System.out.println("Captured         : " + sim.capture.getRecords() + " radiograms to " + capture);
+        }
+        System.out.println("Metrics of all nodes:");
+        sim.getTotalMetrics().print(System.out);
+    }
+
+    private static String opt(Map<String, String> opts, String name, String def) {
+        String v = opts.get(name);
+        return v != null ? v : def;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+import org.sunspotworld.hal.LedColor;
+import org.sunspotworld.hal.TriColorLed;
+
+/**
+ * LED that only remembers its state and counts how often it was written to.
+ */
+public class VirtualLed implements TriColorLed {
+
+    private volatile int rgb;
+    private volatile boolean on;
+    private volatile int writes;
+
+    public void setColor(LedColor color) {
+        setRGB(color.red(), color.green(), color.blue());
+    }
+
+    public void setRGB(int red, int green, int blue) {
+        rgb = (red << 16) | (green << 8) | blue;
+        writes++;
+    }
+
+    public void setOn() {
+        setOn(true);
+    }
+
+    public void setOff() {
+        setOn(false);
+    }
+
+    public void setOn(boolean on) {
+        this.on = on;
+        writes++;
+    }
+
+    public boolean isOn() {
+        return on;
+    }
+
+    /**
+     * Return the color packed as 0xRRGGBB.
+     */
+    public int getRGB() {
+        return rgb;
+    }
+
+    /**
+     * Return the number of color and on/off writes so far.
+     */
+    public int getWrites() {
+        return writes;
+    }
+}
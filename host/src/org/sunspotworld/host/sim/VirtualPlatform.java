@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.sunspotworld.hal.Battery;
+import org.sunspotworld.hal.Clock;
+import org.sunspotworld.hal.Led;
+import org.sunspotworld.hal.LightSensor;
+import org.sunspotworld.hal.Platform;
+import org.sunspotworld.hal.RadioConnection;
+import org.sunspotworld.hal.RadioPolicy;
+import org.sunspotworld.hal.Storage;
+import org.sunspotworld.hal.Switch;
+import org.sunspotworld.hal.SwitchListener;
+import org.sunspotworld.hal.TriColorLed;
+
+/**
+ * {@link Platform} of a virtual firefly attached to an {@link InMemoryMedium}.
+ */
+public class VirtualPlatform implements Platform {
+
+    private final InMemoryMedium medium;
+    private final Clock clock;
+    private final VirtualLed[] leds = new VirtualLed[8];
+    private final VirtualSwitch[] switches = {new VirtualSwitch(), new VirtualSwitch()};
+    private final VirtualLed greenLed = new VirtualLed();
+    private final VirtualLed redLed = new VirtualLed();
+    private final VirtualRadioPolicy radioPolicy;
+    private volatile Storage storage = new MemoryStorage();
+    private volatile int lightValue = 300;
+    private volatile int batteryMillivolts = 4000;
+    private final LightSensor light = new LightSensor() {
+
+        public int getValue() {
+            return lightValue;
+        }
+    };
+    private final Battery battery = new Battery() {
+
+        public int getMillivolts() {
+            return batteryMillivolts;
+        }
+    };
+
+    public VirtualPlatform(InMemoryMedium medium, long address, Clock clock) {
+        this.medium = medium;
+        this.clock = clock;
+        this.radioPolicy = new VirtualRadioPolicy(address);
+        for (int i = 0; i < leds.length; i++) {
+            leds[i] = new VirtualLed();
+        }
+    }
+
+    public TriColorLed[] getLeds() {
+        return leds;
+    }
+
+    public Switch[] getSwitches() {
+        return switches;
+    }
+
+    public LightSensor getLightSensor() {
+        return light;
+    }
+
+    public void setLightValue(int value) {
+        this.lightValue = value;
+    }
+
+    public Battery getBattery() {
+        return battery;
+    }
+
+    public void setBatteryMillivolts(int millivolts) {
+        this.batteryMillivolts = millivolts;
+    }
+
+    public Led getGreenLed() {
+        return greenLed;
+    }
+
+    public Led getRedLed() {
+        return redLed;
+    }
+
+    public RadioPolicy getRadioPolicy() {
+        return radioPolicy;
+    }
+
+    public VirtualRadioPolicy getVirtualRadioPolicy() {
+        return radioPolicy;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Keep the node state somewhere else than in memory, in a
+     * {@link FileStorage} for instance; call before the node initializes.
+     */
+    public void setStorage(Storage storage) {
+        this.storage = storage;
+    }
+
+    public RadioConnection openBroadcast(String port) throws IOException {
+        return new MediumConnection(medium, this, port, false);
+    }
+
+    public RadioConnection openListener(String port) throws IOException {
+        return new MediumConnection(medium, this, port, true);
+    }
+
+    /**
+     * Return the switch at index 0 (SW1) or 1 (SW2) so it can be pressed.
+     */
+    public VirtualSwitch getSwitch(int index) {
+        return switches[index];
+    }
+
+    public static class VirtualSwitch implements Switch {
+
+        private volatile boolean closed;
+        private final List<SwitchListener> listeners = new CopyOnWriteArrayList<SwitchListener>();
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public void addListener(SwitchListener listener) {
+            listeners.add(listener);
+        }
+
+        /**
+         * Press or release the switch, telling the listeners on the calling
+         * thread.
+         */
+        public void setClosed(boolean closed) {
+            if (closed == this.closed) {
+                return;
+            }
+            this.closed = closed;
+            for (SwitchListener l : listeners) {
+                if (closed) {
+                    l.switchPressed(this);
+                } else {
+                    l.switchReleased(this);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+import org.sunspotworld.hal.RadioPolicy;
+
+/**
+ * {@link RadioPolicy} that only remembers its settings.
+ */
+public class VirtualRadioPolicy implements RadioPolicy {
+
+    private final long address;
+    private volatile int channel = DEFAULT_CHANNEL;
+    private volatile short panId = DEFAULT_PAN_ID;
+    private volatile int power;
+    private volatile boolean rxOn = true;
+
+    public VirtualRadioPolicy(long address) {
+        this.address = address;
+    }
+
+    public void setChannelNumber(int channel) {
+        this.channel = channel;
+    }
+
+    public void setPanId(short panId) {
+        this.panId = panId;
+    }
+
+    public void setOutputPower(int power) {
+        this.power = power;
+    }
+
+    public long getIEEEAddress() {
+        return address;
+    }
+
+    public int getChannelNumber() {
+        return channel;
+    }
+
+    public short getPanId() {
+        return panId;
+    }
+
+    public int getOutputPower() {
+        return power;
+    }
+
+    public void setRxOn(boolean on) {
+        this.rxOn = on;
+    }
+
+    public boolean isRxOn() {
+        return rxOn;
+    }
+
+    /**
+     * Always clear; an in memory medium has no interference.
+     */
+    public boolean isChannelClear() {
+        return true;
+    }
+}
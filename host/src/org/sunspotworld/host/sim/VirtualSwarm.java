@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.host.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.sunspotworld.HealthSummary;
+import org.sunspotworld.HotaruNode;
+import org.sunspotworld.Metrics;
+import org.sunspotworld.hal.RadioConnection;
+import org.sunspotworld.hal.RadioPacket;
+import org.sunspotworld.hal.RadioTimeoutException;
+import org.sunspotworld.hal.SystemClock;
+
+/**
+ * Runs a swarm of virtual fireflies on an {@link InMemoryMedium} in real time
+ * and reports how fast they converge on a single master and how much radio
+ * traffic that costs. At the end the nodes are asked for their metrics over
+ * the radio, as a base station would.
+ *<p>
+ * With a state directory each node keeps its saved state in a
+ * {@link FileStorage} there, so a second run with the same seed starts
+ * warm from where the first one stopped.
+ *<p>
+ * Usage: VirtualSwarm [nodes [seconds [seed [stateDir]]]]
+ */
+public class VirtualSwarm {
+
+    private static final long ADDRESS_BASE = 0x00144F0100000000L;
+    private static final long SAMPLE_INTERVAL = 100;
+    private static final long STATION_ADDRESS = 0x00144F01FFFFFFFFL;
+    private static final long QUERY_WAIT = 3000;
+    private final InMemoryMedium medium = new InMemoryMedium();
+    private final HotaruNode[] nodes;
+
+    public VirtualSwarm(int count, long seed) {
+        this(count, seed, null);
+    }
+
+    /**
+     * @param stateDir directory for the nodes' saved state, null to keep it
+     *     in memory
+     */
+    public VirtualSwarm(int count, long seed, File stateDir) {
+        Random random = new Random(seed);
+        Set<Long> used = new HashSet<Long>();
+        SystemClock clock = new SystemClock();
+        nodes = new HotaruNode[count];
+        for (int i = 0; i < count; i++) {
+            long address;
+            do {
+                address = ADDRESS_BASE | (random.nextInt() & 0xFFFFFFFFL);
+            } while (!used.add(address));
+            VirtualPlatform platform = new VirtualPlatform(medium, address, clock);
+            if (stateDir != null) {
+                platform.setStorage(new FileStorage(new File(stateDir, Long.toHexString(address) + ".state")));
+            }
+            nodes[i] = new HotaruNode(platform);
+            nodes[i].setLogLevel(HotaruNode.WARN);
+        }
+    }
+
+    public HotaruNode[] getNodes() {
+        return nodes;
+    }
+
+    public InMemoryMedium getMedium() {
+        return medium;
+    }
+
+    public void start() {
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i].initialize();
+            nodes[i].start();
+        }
+    }
+
+    public void stop() {
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i].stop();
+        }
+    }
+
+    /**
+     * Return the number of nodes currently acting as master.
+     */
+    public int countMasters() {
+        int masters = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i].getMasterAddress() == nodes[i].getAddress()) {
+                masters++;
+            }
+        }
+        return masters;
+    }
+
+    /**
+     * Return true if every node follows the same single master.
+     */
+    public boolean isConverged() {
+        long master = nodes[0].getMasterAddress();
+        for (int i = 1; i < nodes.length; i++) {
+            if (nodes[i].getMasterAddress() != master) {
+                return false;
+            }
+        }
+        return countMasters() == 1;
+    }
+
+    /**
+     * Return the largest swarm health summary a master completed, or null
+     * if none has.
+     */
+    public HealthSummary getSwarmHealth() {
+        HealthSummary best = null;
+        for (int i = 0; i < nodes.length; i++) {
+            HealthSummary h = nodes[i].getSwarmHealth();
+            if (h != null && (best == null || h.getNodes() > best.getNodes())) {
+                best = h;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Ask every node for its metrics over the radio, the way a base station
+     * would, and return the replies by node address.
+     */
+    public Map<Long, Metrics> queryMetrics(long waitMillis) throws IOException {
+        VirtualPlatform station = new VirtualPlatform(medium, STATION_ADDRESS, new SystemClock());
+        RadioConnection rx = station.openListener(HotaruNode.METRICS_PORT);
+        RadioConnection tx = station.openBroadcast(HotaruNode.METRICS_PORT);
+        Map<Long, Metrics> replies = new HashMap<Long, Metrics>();
+        try {
+            RadioPacket packet = tx.newPacket();
+            Metrics.writeQuery(packet.getOutput(), 0);
+            tx.send(packet);
+            long end = System.currentTimeMillis() + waitMillis;
+            for (long wait; (wait = end - System.currentTimeMillis()) > 0; ) {
+                rx.setTimeout(wait);
+                packet.reset();
+                try {
+                    rx.receive(packet);
+                } catch (RadioTimeoutException ex) {
+                    break;
+                }
+                Metrics reply = new Metrics();
+                long address = reply.readReply(packet.getInput());
+                if (address < 0) {
+                    continue;
+                }
+                Metrics m = replies.get(address);
+                if (m == null) {
+                    replies.put(address, reply);    // section 0 comes first
+                } else {
+                    m.add(reply);
+                }
+            }
+        } finally {
+            rx.close();
+            tx.close();
+        }
+        return replies;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        File stateDir = null;
+        if (args.length > 3) {
+            stateDir = new File(args[3]);
+            stateDir.mkdirs();
+        }
+        VirtualSwarm swarm = new VirtualSwarm(count, seed, stateDir);
+        long start = System.currentTimeMillis();
+        long end = start + seconds * 1000L;
+        long convergedAt = -1;
+        swarm.start();
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(SAMPLE_INTERVAL);
+            long now = System.currentTimeMillis() - start;
+            if (swarm.isConverged()) {
+                if (convergedAt < 0) {
+                    convergedAt = now;
+                    System.out.println("[" + now + "ms] converged on 1 master");
+                }
+            } else if (convergedAt >= 0) {
+                convergedAt = -1;
+                System.out.println("[" + now + "ms] lost convergence, masters: " + swarm.countMasters());
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        InMemoryMedium medium = swarm.getMedium();
+        System.out.println("Nodes            : " + count);
+        System.out.println("Converged after  : " + (convergedAt < 0 ? "never" : convergedAt + "ms"));
+        System.out.println("Masters at end   : " + swarm.countMasters());
+        System.out.println("Packets sent     : " + medium.getPacketsSent() +
+                " (" + (medium.getPacketsSent() * 1000 / elapsed) + "/s)");
+        System.out.println("Packets delivered: " + medium.getPacketsDelivered());
+        System.out.println("Packets dropped  : " + medium.getPacketsDropped());
+        HealthSummary health = swarm.getSwarmHealth();
+        System.out.println("Swarm health     : " + (health != null ? health.toString() : "no round completed"));
+        Map<Long, Metrics> replies;
+        try {
+            replies = swarm.queryMetrics(QUERY_WAIT);
+        } catch (IOException ex) {
+            replies = new HashMap<Long, Metrics>();
+        }
+        swarm.stop();
+        Metrics total = new Metrics();
+        for (Metrics m : replies.values()) {
+            total.add(m);
+        }
+        System.out.println("Metrics replies  : " + replies.size() + "/" + count);
+        total.print(System.out);
+        System.exit(0);
+    }
+}
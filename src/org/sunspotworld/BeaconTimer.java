@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+/**
+ * Trickle style beacon timer.
+ *<p>
+ * The interval starts at the minimum and doubles after every beacon up to
+ * the maximum, as long as nothing disagrees with us. {@link #reset} brings
+ * it back to the minimum and makes the next beacon due soon.
+ */
+class BeaconTimer {
+
+    private final int minInterval;
+    private final int maxInterval;
+    private int interval;
+    private long nextBeacon;
+
+    /**
+     * @param minInterval milliseconds between beacons when fast
+     * @param maxInterval milliseconds between beacons when everything agrees
+     * @param now the current local time
+     */
+    BeaconTimer(int minInterval, int maxInterval, long now) {
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.interval = minInterval;
+        this.nextBeacon = now;
+    }
+
+    /**
+     * Something is inconsistent: go back to the fast rate, beaconing after
+     * delay unless a beacon is due within the minimum interval anyway.
+     */
+    void reset(long now, int delay) {
+        interval = minInterval;
+        if (nextBeacon > now + minInterval) {
+            nextBeacon = now + delay;
+        }
+    }
+
+    boolean isDue(long now) {
+        return now >= nextBeacon;
+    }
+
+    /**
+     * Record that a beacon was sent.
+     *
+     * @returns milliseconds until the next beacon
+     */
+    int beaconSent(long now) {
+        nextBeacon = now + interval;
+        int gap = interval;
+        interval = Math.min(interval * 2, maxInterval);
+        return gap;
+    }
+
+    long timeUntilDue(long now) {
+        return nextBeacon - now;
+    }
+
+    int getMinInterval() {
+        return minInterval;
+    }
+
+    int getMaxInterval() {
+        return maxInterval;
+    }
+}
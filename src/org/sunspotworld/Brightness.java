@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import org.sunspotworld.hal.LedColor;
+
+/**
+ * LED brightness that follows the ambient light.
+ *<p>
+ * Light sensor readings are averaged and mapped onto LEVELS steps between
+ * the dim colours, at LIGHT_DIM and below, and the full colours, at
+ * LIGHT_FULL and above; above LIGHT_WHITE blue turns white. The level only
+ * moves once the average is HYSTERESIS past the reading it was set at, so
+ * light flickering around a step does not make the LEDs flicker.
+ *<p>
+ * The steps are even in perceived brightness: the colours of every level
+ * are looked up once, in a table of CIE 1976 lightness, when the class is
+ * loaded, so showing a colour costs nothing.
+ *<p>
+ * Only the event loop may use a brightness.
+ */
+class Brightness {
+
+    static final int LEVELS = 32;
+    /**
+     * Light sensor readings: at or below LIGHT_DIM the LEDs are dim, at or
+     * above LIGHT_FULL they are at full colour, above LIGHT_WHITE blue is white.
+     */
+    static final int LIGHT_DIM = 200;
+    static final int LIGHT_FULL = 600;
+    static final int LIGHT_WHITE = 725;
+    /**
+     * Change in the averaged reading needed to move the level back.
+     */
+    static final int HYSTERESIS = 16;
+    private static final int AVERAGE_SHIFT = 2;         // weight 1/4
+    private static final int FIXED_SHIFT = 4;           // the average keeps 4 fraction bits
+    /**
+     * PWM value, 0 to 255, that looks i/255 as bright as 255 does.
+     */
+    private static final byte[] LIGHTNESS = new byte[256];
+    private static final LedColor[] RED;
+    private static final LedColor[] GREEN;
+    private static final LedColor[] BLUE;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            LIGHTNESS[i] = (byte) luminance(i);
+        }
+        RED = palette(50, 0, 0);
+        GREEN = palette(0, 20, 0);
+        BLUE = palette(0, 0, 50);
+    }
+    private int average = -1;
+    private int level = 0;
+    private int levelReading = 0;                       // average the level was set at
+    private boolean white = false;
+
+    /**
+     * Return the relative luminance, 0 to 255, of the lightness i/255 as
+     * CIE 1976 defines it, in integers since CLDC has no Math.pow().
+     */
+    private static int luminance(int i) {
+        long l = i * 100L;                              // L* times 255
+        if (l <= 8 * 255) {
+            return (int) ((i * 1000L + 4516) / 9033);   // linear part, Y = L* / 903.3
+        }
+        long t = l + 16 * 255;
+        long d = 116L * 255;
+        return (int) ((255 * t * t * t + d * d * d / 2) / (d * d * d));
+    }
+
+    /**
+     * Return the colour of every level, from the given dim colour up to
+     * full brightness of the same channels, evenly spaced in lightness.
+     */
+    private static LedColor[] palette(int red, int green, int blue) {
+        int dim = Math.max(red, Math.max(green, blue));
+        int from = 0;
+        while (from < 255 && gamma(from) < dim) {
+            from++;
+        }
+        LedColor[] colors = new LedColor[LEVELS];
+        for (int k = 0; k < LEVELS; k++) {
+            int value = k == 0 ? dim : gamma(from + (255 - from) * k / (LEVELS - 1));
+            colors[k] = new LedColor(red > 0 ? value : 0, green > 0 ? value : 0, blue > 0 ? value : 0);
+        }
+        return colors;
+    }
+
+    /**
+     * Return the PWM value, 0 to 255, that looks perceived/255 as bright as 255.
+     */
+    static int gamma(int perceived) {
+        return LIGHTNESS[perceived] & 0xFF;
+    }
+
+    /**
+     * Scale an LED value by a perceived brightness.
+     *
+     * @param perceived 0 to 255
+     * @param value LED value at full brightness, 0 to 255
+     */
+    static int scale(int perceived, int value) {
+        return (gamma(perceived) * value + 127) / 255;
+    }
+
+    private static int levelAt(int reading) {
+        if (reading <= LIGHT_DIM) {
+            return 0;
+        }
+        if (reading >= LIGHT_FULL) {
+            return LEVELS - 1;
+        }
+        return (reading - LIGHT_DIM) * (LEVELS - 1) / (LIGHT_FULL - LIGHT_DIM);
+    }
+
+    /**
+     * Fold in a light sensor reading.
+     *
+     * @returns true if the colours changed
+     */
+    boolean sample(int reading) {
+        int value = reading << FIXED_SHIFT;
+        if (average < 0) {
+            average = value;
+            levelReading = -HYSTERESIS;                 // the first reading sets the level
+        } else {
+            average += (value - average) >> AVERAGE_SHIFT;
+        }
+        int smooth = average >> FIXED_SHIFT;
+        boolean changed = false;
+        int target = levelAt(smooth);
+        if (target != level && Math.abs(smooth - levelReading) >= HYSTERESIS) {
+            level = target;
+            levelReading = smooth;
+            changed = true;
+        }
+        boolean w = white ? smooth > LIGHT_WHITE - HYSTERESIS : smooth > LIGHT_WHITE;
+        if (w != white) {
+            white = w;
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Return the current level, 0 (dim) to LEVELS - 1 (full).
+     */
+    int getLevel() {
+        return level;
+    }
+
+    LedColor red() {
+        return RED[level];
+    }
+
+    LedColor green() {
+        return GREEN[level];
+    }
+
+    LedColor blue() {
+        return white ? LedColor.WHITE : BLUE[level];
+    }
+}
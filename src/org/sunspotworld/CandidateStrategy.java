@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import java.util.Random;
+import org.sunspotworld.hal.LedColor;
+
+/**
+ * Listens before standing for master.
+ *<p>
+ * A node that boots, or loses its master, stays silent for a random time
+ * between LISTEN_MSEC and LISTEN_MSEC + LISTEN_SPREAD_MSEC. If it heard a
+ * master higher than itself over a well connected link by then, it follows
+ * the highest of those, and it never announces itself; the first one heard
+ * over a poor link only puts the announcement off, once, by LISTEN_MSEC, so
+ * the node has another beacon interval to hear it relayed better. Only a node
+ * that heard no better master becomes a MasterStrategy. With nodes waking
+ * in random order, a node announces only if it is higher than every master
+ * announced before it, which happens about ln(N) times among N nodes
+ * instead of N times, and waiting out the silence spares the node the
+ * masters announced during it.
+ *<p>
+ * When the node had a blink phase, it keeps blinking on it while listening
+ * and as master, so losing a master does not make the LEDs jump.
+ *<p>
+ * After a reboot the node may remember the master it had. It follows that
+ * master as soon as one of its packets comes in, without waiting out the
+ * silence, and waits LISTEN_SPREAD_MSEC longer than usual for it to boot
+ * too. A node that remembers being master itself only listens for
+ * WARM_LISTEN_MSEC, so after a power cut across the swarm the old master
+ * is back before anyone else stands.
+ */
+class CandidateStrategy extends Strategy {
+
+    /**
+     * Shortest silence before announcing. A master the swarm agrees with
+     * beacons only every MAX_BEACON_INTERVAL, so the silence covers one of
+     * those and a second for the relays and the slots to bring it in.
+     */
+    static final int LISTEN_MSEC = HotaruNode.MAX_BEACON_INTERVAL + 1000;
+    /**
+     * Width of the random part of the silence.
+     */
+    static final int LISTEN_SPREAD_MSEC = 2000;
+    /**
+     * Silence of a node that remembers being master: still a whole beacon
+     * interval, in case another master took over, but shorter than any
+     * other node's.
+     */
+    static final int WARM_LISTEN_MSEC = HotaruNode.MAX_BEACON_INTERVAL + 500;
+    private final int blinkIntervalMsec;
+    private final long epoch;
+    private final long remembered;
+    private long announceAt;
+    /**
+     * Latest beacon of the highest master heard, and when it came in.
+     */
+    private final HotaruWisper best = new HotaruWisper();
+    private long bestHeard = -1;
+    private boolean putOff = false;
+
+    /**
+     * @param blinkInterval milliseconds the LEDs stay on, and then off
+     * @param epoch local time of a flip to state 1 to keep blinking on, or -1
+     */
+    public CandidateStrategy(HotaruNode node, int blinkInterval, long epoch) {
+        this(node, blinkInterval, epoch, 0);
+    }
+
+    /**
+     * @param remembered master the node had before it rebooted, 0 if none
+     */
+    CandidateStrategy(HotaruNode node, int blinkInterval, long epoch, long remembered) {
+        super(node);
+        this.blinkIntervalMsec = blinkInterval;
+        this.epoch = epoch;
+        this.remembered = remembered;
+        Random random = new Random(selfAddress ^ node.getClock().currentTimeMillis());
+        int silence = LISTEN_MSEC + random.nextInt(LISTEN_SPREAD_MSEC);
+        if (remembered == selfAddress) {
+            silence = WARM_LISTEN_MSEC;
+        } else if (remembered != 0) {
+            silence += LISTEN_SPREAD_MSEC;
+        }
+        this.announceAt = node.getClock().currentTimeMillis() + silence;
+    }
+
+    public String getName() {
+        return "Candidate";
+    }
+
+    protected void recv(HotaruWisper packet) {
+        if (remembered != 0 && remembered != selfAddress && packet.masterAddress == remembered) {
+            SlaveStrategy.follow(node, packet);
+            return;
+        }
+        if (packet.masterAddress <= selfAddress || (bestHeard >= 0 && packet.masterAddress < best.masterAddress)) {
+            return;
+        }
+        long now = node.getClock().currentTimeMillis();
+        if (isWellConnected(packet)) {
+            best.copyFrom(packet);
+            bestHeard = now;
+        } else if (!putOff) {
+            announceAt = Math.max(announceAt, now + LISTEN_MSEC);
+            putOff = true;
+        }
+    }
+
+    protected void onRecvTimeout() {
+    }
+
+    /**
+     * Called every xmitInterval(): keeps blinking, and when the silence is
+     * over follows the best master heard or announces.
+     */
+    protected HotaruWisper createWisper() {
+        long now = node.getClock().currentTimeMillis();
+        if (now >= announceAt && bestHeard >= 0) {
+            best.delay += (int) (now - bestHeard);     // as if it just came in
+            SlaveStrategy.follow(node, best);
+        } else if (now >= announceAt) {
+            node.setStrategy(new MasterStrategy(node, blinkIntervalMsec, epoch >= 0 ? epoch : now));
+            node.requestTransmit();
+        } else if (epoch >= 0) {
+            int state = (int) (((now - epoch) / blinkIntervalMsec + 1) & 1);
+            if (state != node.getHotaruState()) {
+                node.setHotaruState(state);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wake up for the next flip or the end of the silence.
+     */
+    protected long xmitInterval() {
+        long now = node.getClock().currentTimeMillis();
+        long next = announceAt - now;
+        if (epoch >= 0) {
+            next = Math.min(next, blinkIntervalMsec - (now - epoch) % blinkIntervalMsec);
+        }
+        return Math.max(1, next);
+    }
+
+    public LedColor getStatusColor() {
+        return LedColor.YELLOW;
+    }
+
+    /**
+     * A candidate follows no master yet.
+     */
+    public long getMasterAddress() {
+        return 0;
+    }
+
+    long getEpoch(long now) {
+        return epoch;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+/**
+ * How clean each 2.4 GHz channel, FIRST_CHANNEL to LAST_CHANNEL, looked
+ * to this node.
+ *<p>
+ * Noise is the share of clear channel assessments that found a channel
+ * busy. The node samples its own channel as it goes and visits the others
+ * in turn for a moment between beacons. Loss is the share of the master's
+ * beacons that went missing, so it is only known for channels the swarm
+ * has used. Both are in parts per SCALE and averaged like the figures of
+ * the NeighbourTable, over about eight visits. A channel's score is its
+ * noise plus its loss; lower is better.
+ *<p>
+ * Only the event loop may use a survey.
+ */
+class ChannelSurvey {
+
+    static final int FIRST_CHANNEL = 11;
+    static final int LAST_CHANNEL = 26;
+    static final int CHANNELS = LAST_CHANNEL - FIRST_CHANNEL + 1;
+    static final int SCALE = 1000;
+    /**
+     * Visits before a channel's figures are trusted.
+     */
+    static final int MIN_VISITS = 4;
+    /**
+     * Milliseconds after which figures not refreshed are no longer trusted.
+     */
+    static final int MAX_AGE_MSEC = 180000;
+    private static final int AVERAGE_SHIFT = 3;         // weight 1/8
+    private static final int FIXED_SHIFT = 4;           // averages keep 4 fraction bits
+    private final int[] noise = new int[CHANNELS];
+    private final int[] loss = new int[CHANNELS];
+    private final int[] visits = new int[CHANNELS];
+    private final long[] visited = new long[CHANNELS];
+    private int nextVisit = 0;
+
+    static boolean isValid(int channel) {
+        return channel >= FIRST_CHANNEL && channel <= LAST_CHANNEL;
+    }
+
+    /**
+     * Record the clear channel assessments of one visit.
+     *
+     * @param busy how many of the samples found the channel busy
+     */
+    void sampled(int channel, int busy, int samples, long now) {
+        if (samples <= 0) {
+            return;
+        }
+        int i = channel - FIRST_CHANNEL;
+        int value = (busy * SCALE / samples) << FIXED_SHIFT;
+        if (visits[i] == 0) {
+            noise[i] = value;
+        } else {
+            noise[i] += (value - noise[i]) >> AVERAGE_SHIFT;
+        }
+        if (visits[i] < Integer.MAX_VALUE) {
+            visits[i]++;
+        }
+        visited[i] = now;
+    }
+
+    /**
+     * Record the loss rate of the master's beacons on a channel, in parts
+     * per SCALE.
+     */
+    void setLoss(int channel, int lossRate) {
+        loss[channel - FIRST_CHANNEL] = lossRate;
+    }
+
+    int getNoise(int channel) {
+        return noise[channel - FIRST_CHANNEL] >> FIXED_SHIFT;
+    }
+
+    int getLoss(int channel) {
+        return loss[channel - FIRST_CHANNEL];
+    }
+
+    int getVisits(int channel) {
+        return visits[channel - FIRST_CHANNEL];
+    }
+
+    int getScore(int channel) {
+        return getNoise(channel) + getLoss(channel);
+    }
+
+    /**
+     * Return whether a channel was visited MIN_VISITS times, the last one
+     * within MAX_AGE_MSEC.
+     */
+    boolean isKnown(int channel, long now) {
+        int i = channel - FIRST_CHANNEL;
+        return visits[i] >= MIN_VISITS && now - visited[i] <= MAX_AGE_MSEC;
+    }
+
+    /**
+     * Return the channel to visit next, going round all but the current one.
+     */
+    int nextToVisit(int current) {
+        int channel = FIRST_CHANNEL + nextVisit;
+        nextVisit = (nextVisit + 1) % CHANNELS;
+        if (channel == current) {
+            channel = FIRST_CHANNEL + nextVisit;
+            nextVisit = (nextVisit + 1) % CHANNELS;
+        }
+        return channel;
+    }
+
+    /**
+     * Return the known channel with the lowest score other than the
+     * current one, or -1 if none is known.
+     */
+    int best(int current, long now) {
+        int best = -1;
+        for (int channel = FIRST_CHANNEL; channel <= LAST_CHANNEL; channel++) {
+            if (channel != current && isKnown(channel, now) &&
+                    (best < 0 || getScore(channel) < getScore(best))) {
+                best = channel;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import org.sunspotworld.hal.Clock;
+
+/**
+ * Runs timers and events of one node on a single thread.
+ *<p>
+ * Other threads {@link #post} events; an event is a bit in a flags word, so
+ * posting never blocks on a full queue and the same event posted twice
+ * before the loop gets to it is handled once. The loop hands pending events
+ * to the {@link Handler}, lowest bit first, then fires due timers and
+ * sleeps until the next one.
+ *<p>
+ * CLDC 1.1 has no atomic compare-and-set, so setting a bit in the word
+ * takes the loop's monitor, which also wakes the loop; the loop holds it
+ * only to swap the word out. A post of an event that is still pending reads
+ * the volatile word and returns without the monitor, so the receive thread,
+ * posting once per packet, only takes it when the loop has caught up.
+ *<p>
+ * Timers sit in a hashed timer wheel of SLOTS slots, one per millisecond;
+ * a timer further out than one turn stays in its slot until its turn comes.
+ * Scheduling and cancelling are constant time, and the loop keeps a bound
+ * on the nearest deadline so it only searches the wheel once that has
+ * passed. When the clock steps back, the wheel is moved back with it,
+ * keeping the time left on every timer. Timers may only be scheduled and
+ * cancelled from the loop thread, or before the loop is started.
+ */
+class EventLoop implements Runnable {
+
+    /**
+     * Slots in the wheel, a power of two.
+     */
+    static final int SLOTS = 256;
+    /**
+     * Longest sleep while no timer is due, in milliseconds.
+     */
+    private static final int MAX_WAIT = SLOTS;
+
+    /**
+     * Receives the posted events on the loop thread.
+     */
+    interface Handler {
+
+        /**
+         * @param event the number of the event bit, 0 to 31
+         */
+        void handleEvent(int event);
+    }
+
+    /**
+     * Something to run at a given time on the loop thread.
+     */
+    static abstract class Timer {
+
+        private Timer prev;
+        private Timer next;
+        private long due;
+        private boolean scheduled;
+
+        abstract void expired();
+
+        boolean isScheduled() {
+            return scheduled;
+        }
+    }
+    private final Clock clock;
+    private final Handler handler;
+    private final Timer[] wheel = new Timer[SLOTS];
+    /**
+     * The first millisecond whose timers have not run yet.
+     */
+    private long current;
+    /**
+     * No timer is due before this millisecond.
+     */
+    private long nextDue = Long.MAX_VALUE;
+    private volatile int pending = 0;
+    private boolean running = false;
+
+    EventLoop(Clock clock, Handler handler) {
+        this.clock = clock;
+        this.handler = handler;
+        this.current = clock.currentTimeMillis();
+    }
+
+    /**
+     * Post an event; may be called from any thread.
+     */
+    void post(int event) {
+        int bit = 1 << event;
+        if ((pending & bit) != 0) {
+            return;                     // the loop has yet to take it, and will handle it after this
+        }
+        synchronized (this) {
+            pending |= bit;
+            notify();
+        }
+    }
+
+    /**
+     * Run the timer at the given local time, or as soon as possible if that
+     * has passed. A scheduled timer is moved.
+     */
+    void scheduleAt(Timer timer, long time) {
+        if (timer.scheduled) {
+            cancel(timer);
+        }
+        if (time < current) {
+            time = current;
+        }
+        int slot = (int) time & (SLOTS - 1);
+        timer.due = time;
+        timer.prev = null;
+        timer.next = wheel[slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        wheel[slot] = timer;
+        timer.scheduled = true;
+        if (time < nextDue) {
+            nextDue = time;
+        }
+    }
+
+    /**
+     * Run the timer the given number of milliseconds from now.
+     */
+    void schedule(Timer timer, long delay) {
+        scheduleAt(timer, clock.currentTimeMillis() + delay);
+    }
+
+    void cancel(Timer timer) {
+        if (!timer.scheduled) {
+            return;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            wheel[(int) timer.due & (SLOTS - 1)] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.scheduled = false;
+    }
+
+    /**
+     * Make {@link #run} return once the current event is handled.
+     */
+    synchronized void stop() {
+        running = false;
+        notify();
+    }
+
+    public void run() {
+        synchronized (this) {
+            running = true;
+        }
+        while (true) {
+            int events;
+            synchronized (this) {
+                if (!running) {
+                    return;
+                }
+                events = pending;
+                pending = 0;
+            }
+            rewindIfBack(clock.currentTimeMillis());
+            for (int event = 0; events != 0; event++, events >>>= 1) {
+                if ((events & 1) != 0) {
+                    handler.handleEvent(event);
+                }
+            }
+            long now = clock.currentTimeMillis();
+            rewindIfBack(now);
+            runTimers(now);
+            long wait = timeUntilNext(now);
+            synchronized (this) {
+                if (running && pending == 0 && wait > 0) {
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException ex) { /* ignore */ }
+                }
+            }
+        }
+    }
+
+    /**
+     * Fire every timer due at or before now.
+     */
+    private void runTimers(long now) {
+        long last = Math.min(now, current + SLOTS - 1);
+        for (long t = current; t <= last; t++) {
+            current = t;                // timers scheduled for the past go here
+            int slot = (int) t & (SLOTS - 1);
+            Timer timer = firstDue(slot, now);
+            while (timer != null) {
+                cancel(timer);
+                timer.expired();
+                timer = firstDue(slot, now);
+            }
+        }
+        current = Math.max(current, now + 1);
+    }
+
+    private Timer firstDue(int slot, long now) {
+        for (Timer t = wheel[slot]; t != null; t = t.next) {
+            if (t.due <= now) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return milliseconds until the next timer is due, at most MAX_WAIT.
+     * Searches the wheel only when the bound on the nearest deadline has
+     * passed, because that timer fired or was cancelled.
+     */
+    private long timeUntilNext(long now) {
+        if (nextDue < current) {
+            nextDue = findNext();
+        }
+        return Math.min(nextDue - now, MAX_WAIT);
+    }
+
+    /**
+     * Return the first millisecond from current with a timer due, or the
+     * end of this turn of the wheel if there is none.
+     */
+    private long findNext() {
+        for (int i = 0; i < SLOTS; i++) {
+            long t = current + i;
+            for (Timer timer = wheel[(int) t & (SLOTS - 1)]; timer != null; timer = timer.next) {
+                if (timer.due <= t) {
+                    return t;
+                }
+            }
+        }
+        return current + SLOTS;
+    }
+
+    /**
+     * If the clock stepped back before the timers that already ran, move
+     * every timer back by the same step and restart the wheel at now;
+     * otherwise nothing would fire until the clock caught up again.
+     */
+    private void rewindIfBack(long now) {
+        long step = current - 1 - now;
+        if (step <= 0) {
+            return;
+        }
+        Timer all = null;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            Timer timer = wheel[slot];
+            while (timer != null) {
+                Timer next = timer.next;
+                timer.next = all;
+                all = timer;
+                timer = next;
+            }
+            wheel[slot] = null;
+        }
+        current = now;
+        nextDue = Long.MAX_VALUE;
+        while (all != null) {
+            Timer next = all.next;
+            all.scheduled = false;
+            scheduleAt(all, all.due - step);
+            all = next;
+        }
+    }
+}
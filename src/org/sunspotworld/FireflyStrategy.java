@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import org.sunspotworld.hal.LedColor;
+
+/**
+ * Leaderless synchronization after Mirollo and Strogatz.
+ *<p>
+ * Every node runs its own oscillator and flashes whenever its phase reaches
+ * the period. A flash heard from a neighbour pushes the phase forward by
+ * {@code phase' = ALPHA * phase + BETA * period}, which is the pulse response
+ * of the concave state curve with b = 3 and a coupling of 0.1; a node pushed
+ * past the period fires at once and is absorbed into the group it heard.
+ *<p>
+ * A pulse carries the milliseconds since its sender fired as its delay and
+ * no master address, so Master/Slave nodes ignore it. After firing a node
+ * waits a few ticks, picked from its address, before sending its pulse and
+ * stays quiet if it has heard {@link #REDUNDANCY} pulses of the same flash by
+ * then. A synchronized group therefore does not send all its pulses at the
+ * same instant, and the airtime per cycle is bounded by the neighbourhood
+ * rather than by the size of the swarm.
+ */
+class FireflyStrategy extends Strategy {
+
+    /**
+     * Milliseconds between checks of the oscillator.
+     */
+    static final int TICK_MSEC = 20;
+    // Pulse response, in 1/1000: e^(b*eps) and (e^(b*eps) - 1) / (e^b - 1)
+    private static final int ALPHA_PERMILLE = 1350;
+    private static final int BETA_PERMILLE = 18;
+    /**
+     * Pulses fired within this part of the period from our own flash are
+     * echoes of the same flash and do not move the phase.
+     */
+    private static final int REFRACTORY_PERMILLE = 50;
+    private static final int REDUNDANCY = 2;
+    private int periodMsec;
+    private long lastFire;
+    private boolean flashPending = false;
+    private long flashDue;
+    private int echoes = 0;
+
+    /**
+     * @param node the node to drive
+     * @param blinkInterval milliseconds the LEDs stay on, and then off, per cycle
+     */
+    public FireflyStrategy(HotaruNode node, int blinkInterval) {
+        super(node);
+        this.periodMsec = blinkInterval * 2;
+        this.lastFire = node.getClock().currentTimeMillis();
+        metrics.set(Metrics.HOPS, 0);
+        metrics.set(Metrics.CLOCK_SKEW_PPM, 0);
+    }
+
+    public String getName() {
+        return "Firefly";
+    }
+
+    protected void recv(HotaruWisper packet) {
+        if (packet.masterAddress != 0) {
+            return;                     // not a pulse
+        }
+        long now = node.getClock().currentTimeMillis();
+        catchUp(now);
+        long pulse = now - packet.delay;      // when the sender fired
+        long phase = pulse - lastFire;
+        long refractory = periodMsec * REFRACTORY_PERMILLE / 1000;
+        if (phase < refractory && phase > -refractory) {
+            echoes++;
+            return;
+        }
+        if (phase < 0) {
+            return;
+        }
+        long next = (phase * ALPHA_PERMILLE + (long) periodMsec * BETA_PERMILLE) / 1000;
+        if (next >= periodMsec) {
+            fire(pulse);
+            echoes = 1;
+        } else {
+            lastFire = pulse - next;
+        }
+    }
+
+    /**
+     * Fire every flash that fell due since the last look at the oscillator.
+     */
+    private void catchUp(long now) {
+        long phase = now - lastFire;
+        if (phase >= periodMsec) {
+            // keep the cadence when the tick was late, restart when far behind
+            fire(phase < 2 * periodMsec ? lastFire + periodMsec : now);
+        }
+    }
+
+    private void fire(long when) {
+        lastFire = when;
+        echoes = 0;
+        flashPending = true;
+        flashDue = when + ((selfAddress ^ (selfAddress >>> 32)) & 3) * TICK_MSEC;
+    }
+
+    protected HotaruWisper createWisper() {
+        long now = node.getClock().currentTimeMillis();
+        catchUp(now);
+        int state = now - lastFire < periodMsec / 2 ? 0 : 1;
+        if (state != node.getHotaruState()) {
+            node.setHotaruState(state);
+        }
+        if (!flashPending || now < flashDue) {
+            return null;
+        }
+        flashPending = false;
+        if (echoes >= REDUNDANCY) {
+            return null;
+        }
+        HotaruWisper wisp = xmitWisper;
+        wisp.clear();
+        wisp.selfAddress = selfAddress;
+        wisp.delay = (int) (now - lastFire);
+        return wisp;
+    }
+    protected void onRecvTimeout() {
+    }
+
+    protected long xmitInterval() {
+        return TICK_MSEC;
+    }
+
+    protected long recvTimeout() {
+        return periodMsec;
+    }
+
+    public void printInfo() {
+        Log log = node.getLog();
+        log.write(HotaruNode.INFO, Log.TEXT, this.getName());
+        log.write(HotaruNode.INFO, Log.PERIOD, periodMsec);
+    }
+
+    public LedColor getStatusColor() {
+        return LedColor.BLUE;
+    }
+
+    public long getMasterAddress() {
+        return 0;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+/**
+ * Gathers the health of the swarm at the master over a convergecast tree.
+ *<p>
+ * Every REPORT_EVERY beacons, those with a sequence number divisible by it,
+ * start a round, provided the beacons are far enough apart for the round
+ * to finish before the next one starts. The parent of a node is the
+ * sender of the copy of the beacon with the fewest hops, the best connected
+ * of those by NeighbourTable quality, and its depth that hop count plus
+ * one; the nodes that heard the beacon first hand report to the master.
+ * Each node reports in the level of its depth, LEVEL_MSEC long and
+ * (maxHops + 1 - depth) levels after the beacon: the deepest nodes first,
+ * so a report takes in the reports of the node's children, merged into one
+ * HealthSummary with the node's own sync error, beacon loss and battery.
+ *<p>
+ * Reports are not acknowledged, so each is sent several times within the
+ * level, in slots hashed from the address, the round and the copy, and the
+ * parent takes the first copy of each child. A report that covers a
+ * subtree is sent INNER_COPIES times, since losing it loses the subtree,
+ * one of a single node LEAF_COPIES times. Only nodes that relayed the
+ * beacon can be parents, so only those keep the receiver on for the
+ * level of their children when duty cycled.
+ *<p>
+ * At the master, which has depth 0, the round ends with the summary of the
+ * whole swarm instead of a report. A node sends the same few fixed size
+ * packets a round however large the swarm is. Reports lost on the way,
+ * and those of children beyond MAX_CHILDREN, leave their subtree out of
+ * that round's count.
+ *<p>
+ * Rounds need the sequence numbers that relaying adds, so without it,
+ * HotaruNode.getMaxHops() of 0, there are none. Only the event loop may
+ * use the reporter.
+ */
+class HealthReporter {
+
+    static final int REPORT_EVERY = 4;
+    static final int SLOTS = 1024;
+    static final int SLOT_MSEC = 2;
+    /**
+     * Length of a level: the slots, plus the relay delays between a parent
+     * and its children with room to spare.
+     */
+    static final int LEVEL_MSEC = SLOTS * SLOT_MSEC + 128;
+    static final int LEAF_COPIES = 2;
+    static final int INNER_COPIES = 4;
+    /**
+     * Children whose copies are told apart; reports of more are dropped.
+     */
+    static final int MAX_CHILDREN = 128;
+    private static final int AVERAGE_SHIFT = 3;         // weight 1/8
+    private static final int MAX_GAP = 16;
+    private final HotaruNode node;
+    private final long address;
+    private final HealthSummary round = new HealthSummary();
+    private final HealthSummary swarm = new HealthSummary();
+    private final HotaruWisper report = new HotaruWisper();
+    private final long[] merged = new long[MAX_CHILDREN];  // children taken in this round
+    private int mergedCount;
+    private boolean pending = false;            // a round is on and this node has copies to send
+    private int sent;                           // copies sent so far
+    private boolean relayed;
+    private int roundSeq;
+    private long roundStart;
+    private int depth;
+    private long parent;
+    private long levelAt;                       // start of this node's level
+    private boolean haveSwarm = false;
+    private int rounds = 0;
+    private long syncError = -1;                // largest since the last report, -1 if none
+    private boolean haveSeq = false;
+    private int lastSeq;
+    private int loss = 0;                       // parts per NeighbourTable.LOSS_SCALE
+
+    HealthReporter(HotaruNode node) {
+        this.node = node;
+        this.address = node.getAddress();
+    }
+
+    /**
+     * Return the milliseconds a round takes from the beacon to the master.
+     */
+    int roundMsec() {
+        return (node.getMaxHops() + 1) * LEVEL_MSEC;
+    }
+
+    private boolean startsRound(int seq, int interval) {
+        return node.getMaxHops() > 0 && seq % REPORT_EVERY == 0 && (long) interval * REPORT_EVERY > roundMsec();
+    }
+
+    private void start(int seq, int depth, long parent, long now) {
+        round.clear();
+        mergedCount = 0;
+        pending = true;
+        sent = 0;
+        relayed = false;
+        roundSeq = seq;
+        roundStart = now;
+        this.depth = depth;
+        this.parent = parent;
+        node.getNeighbours().pin(NeighbourTable.PIN_PARENT, parent);
+        plan();
+    }
+
+    private void plan() {
+        levelAt = roundStart + (long) (node.getMaxHops() + 1 - depth) * LEVEL_MSEC;
+    }
+
+    /**
+     * Return the number of copies to send: more for a report that covers a
+     * subtree.
+     */
+    private int copies() {
+        return mergedCount > 0 ? INNER_COPIES : LEAF_COPIES;
+    }
+
+    /**
+     * Return when the next copy is due. Copy k of n goes out in the k-th
+     * n-th of the level, in a slot hashed from the address, the round and
+     * k, so that two nodes that collide once do not collide again.
+     */
+    private long reportAt() {
+        if (depth == 0) {
+            return levelAt;
+        }
+        int part = SLOTS / copies();
+        long h = (address + (roundSeq + (sent << 8)) * 0x9E3779B97F4A7C15L) * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 29;
+        return levelAt + (sent * part + (int) ((h >>> 33) % part)) * SLOT_MSEC;
+    }
+
+    /**
+     * Note a sync error measured on a beacon, in milliseconds.
+     */
+    void syncError(long error) {
+        if (error > syncError) {
+            syncError = error;
+        }
+    }
+
+    /**
+     * Note the first copy of a new beacon of the master followed.
+     *
+     * @param depth the hops of the copy plus one
+     * @param sender the node that sent the copy
+     */
+    void beacon(int seq, int depth, long sender, int interval, long now) {
+        if (haveSeq) {
+            int gap = (seq - lastSeq) & 0xFF;
+            for (int k = Math.min(gap, MAX_GAP) - 1; k > 0; k--) {
+                loss += (NeighbourTable.LOSS_SCALE - loss) >> AVERAGE_SHIFT;
+            }
+            loss -= loss >> AVERAGE_SHIFT;
+        }
+        haveSeq = true;
+        lastSeq = seq;
+        if (startsRound(seq, interval)) {
+            start(seq, depth, sender, now);
+        }
+    }
+
+    /**
+     * Note another copy of the current beacon. Its sender becomes the
+     * parent if the copy came over fewer hops, or over as many from a
+     * better connected sender.
+     *
+     * @param depth the hops of the copy plus one
+     */
+    void offered(int seq, int depth, long sender) {
+        if (!pending || sent > 0 || seq != roundSeq || depth <= 0 || depth > this.depth || sender == parent) {
+            return;
+        }
+        if (depth == this.depth) {
+            long now = node.getClock().currentTimeMillis();
+            NeighbourTable neighbours = node.getNeighbours();
+            if (neighbours.getQuality(sender, now) <= neighbours.getQuality(parent, now)) {
+                return;
+            }
+        }
+        this.depth = depth;
+        this.parent = sender;
+        node.getNeighbours().pin(NeighbourTable.PIN_PARENT, sender);
+        plan();
+    }
+
+    /**
+     * Note that this node relayed a beacon, which may make it a parent.
+     */
+    void relayed(int seq) {
+        if (pending && seq == roundSeq) {
+            relayed = true;
+        }
+    }
+
+    /**
+     * Note a beacon this node sent as master.
+     */
+    void masterBeacon(int seq, int interval, long now) {
+        if (startsRound(seq, interval)) {
+            start(seq, 0, 0, now);
+            relayed = true;
+        }
+    }
+
+    /**
+     * Take in a report if it is for this node and this round, and not a
+     * copy of one taken in already.
+     */
+    void received(HotaruWisper packet) {
+        if (!pending || sent > 0 || packet.parentAddress != address || packet.seq != roundSeq) {
+            return;
+        }
+        for (int i = 0; i < mergedCount; i++) {
+            if (merged[i] == packet.selfAddress) {
+                return;
+            }
+        }
+        if (mergedCount == MAX_CHILDREN) {
+            return;
+        }
+        merged[mergedCount++] = packet.selfAddress;
+        round.merge(packet.health);
+    }
+
+    boolean isDue(long now) {
+        return pending && now >= reportAt();
+    }
+
+    /**
+     * Send the next copy of the report of the round.
+     *
+     * @returns the report to send to the parent, or null at the master,
+     *          where the round completes the swarm summary
+     */
+    HotaruWisper report() {
+        if (sent == 0) {
+            round.add(depth > 0 ? syncError : -1, loss, node.getPlatform().getBattery().getMillivolts());
+            syncError = -1;
+        }
+        if (depth == 0) {
+            pending = false;
+            swarm.copyFrom(round);
+            haveSwarm = true;
+            rounds++;
+            return null;
+        }
+        if (++sent >= copies()) {
+            pending = false;
+        }
+        HotaruWisper wisp = report;
+        wisp.clear();
+        wisp.selfAddress = address;
+        wisp.seq = roundSeq;
+        wisp.hops = depth;
+        wisp.parentAddress = parent;
+        wisp.health.copyFrom(round);
+        return wisp;
+    }
+
+    /**
+     * Forget the round, the loss count and the swarm summary; the node
+     * follows another master, or none.
+     */
+    void cancel() {
+        pending = false;
+        haveSeq = false;
+        loss = 0;
+        syncError = -1;
+        haveSwarm = false;
+    }
+
+    /**
+     * Return whether the receiver has to be on for the reports of children.
+     */
+    boolean isListening(long now) {
+        return pending && relayed && sent == 0 && now >= listenFrom() && now < reportAt();
+    }
+
+    /**
+     * Return when the first report of a child may come in: its level
+     * starts LEVEL_MSEC earlier, and its beacon may have come in a relay
+     * window earlier.
+     */
+    private long listenFrom() {
+        return levelAt - LEVEL_MSEC - TransmitSlots.WINDOW_MSEC;
+    }
+
+    /**
+     * Return the milliseconds until the listening for reports starts or a
+     * copy is due, or Long.MAX_VALUE without a round. A copy that is
+     * overdue, because something else went out first, waits a slot.
+     */
+    long untilChange(long now) {
+        if (!pending) {
+            return Long.MAX_VALUE;
+        }
+        long open = listenFrom();
+        if (now < open && relayed && sent == 0) {
+            return open - now;
+        }
+        long at = reportAt();
+        return now < at ? at - now : SLOT_MSEC;
+    }
+
+    boolean isQuietFor(long now, long msec) {
+        return !pending || now + msec < (relayed && sent == 0 ? listenFrom() : reportAt());
+    }
+
+    /**
+     * Return the summary of the last round this node completed as master,
+     * or null.
+     */
+    HealthSummary getSwarm() {
+        return haveSwarm ? swarm : null;
+    }
+
+    int getRounds() {
+        return rounds;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Fixed size health summary of a group of nodes: how many there are, their
+ * sync errors, beacon loss and battery. Summaries merge without growing, so
+ * one fits in a report packet however many nodes it covers.
+ *<p>
+ * Layout, 9 ushorts:
+ *<pre>
+ *   nodes, synced, syncMin, syncMax, syncMean, lossMean, measured, batteryMin, batteryMean
+ *</pre>
+ * Sync errors are in milliseconds over the synced nodes, those that
+ * measured one since their last report. The loss is the share of beacons
+ * missed in parts per thousand, the battery is in millivolts over the
+ * measured nodes. Values are capped at MAX_VALUE; a mean read back is
+ * multiplied out again, so merging loses at most a rounding per hop.
+ */
+public class HealthSummary {
+
+    public static final int MAX_VALUE = 0xFFFF;
+    int nodes;
+    int synced;
+    int syncMin;
+    int syncMax;
+    long syncSum;
+    long lossSum;
+    int measured;
+    int batteryMin;
+    long batterySum;
+
+    public void clear() {
+        nodes = 0;
+        synced = 0;
+        syncMin = 0;
+        syncMax = 0;
+        syncSum = 0;
+        lossSum = 0;
+        measured = 0;
+        batteryMin = 0;
+        batterySum = 0;
+    }
+
+    /**
+     * Count one node.
+     *
+     * @param syncError its sync error in milliseconds, or -1 if not measured
+     * @param loss its beacon loss in parts per thousand
+     * @param millivolts its battery voltage, or 0 if not measured
+     */
+    void add(long syncError, int loss, int millivolts) {
+        nodes++;
+        lossSum += loss;
+        if (syncError >= 0) {
+            int error = (int) Math.min(syncError, MAX_VALUE);
+            syncMin = synced == 0 ? error : Math.min(syncMin, error);
+            syncMax = Math.max(syncMax, error);
+            syncSum += error;
+            synced++;
+        }
+        if (millivolts > 0) {
+            batteryMin = measured == 0 ? millivolts : Math.min(batteryMin, millivolts);
+            batterySum += millivolts;
+            measured++;
+        }
+    }
+
+    /**
+     * Add the nodes of another summary.
+     */
+    void merge(HealthSummary other) {
+        nodes += other.nodes;
+        lossSum += other.lossSum;
+        if (other.synced > 0) {
+            syncMin = synced == 0 ? other.syncMin : Math.min(syncMin, other.syncMin);
+            syncMax = Math.max(syncMax, other.syncMax);
+            syncSum += other.syncSum;
+            synced += other.synced;
+        }
+        if (other.measured > 0) {
+            batteryMin = measured == 0 ? other.batteryMin : Math.min(batteryMin, other.batteryMin);
+            batterySum += other.batterySum;
+            measured += other.measured;
+        }
+    }
+
+    void copyFrom(HealthSummary other) {
+        nodes = other.nodes;
+        synced = other.synced;
+        syncMin = other.syncMin;
+        syncMax = other.syncMax;
+        syncSum = other.syncSum;
+        lossSum = other.lossSum;
+        measured = other.measured;
+        batteryMin = other.batteryMin;
+        batterySum = other.batterySum;
+    }
+
+    public int getNodes() {
+        return nodes;
+    }
+
+    public int getSynced() {
+        return synced;
+    }
+
+    public int getSyncMin() {
+        return syncMin;
+    }
+
+    public int getSyncMax() {
+        return syncMax;
+    }
+
+    public int getSyncMean() {
+        return synced > 0 ? (int) (syncSum / synced) : 0;
+    }
+
+    /**
+     * Return the mean beacon loss in parts per thousand.
+     */
+    public int getLossMean() {
+        return nodes > 0 ? (int) (lossSum / nodes) : 0;
+    }
+
+    public int getMeasured() {
+        return measured;
+    }
+
+    public int getBatteryMin() {
+        return batteryMin;
+    }
+
+    public int getBatteryMean() {
+        return measured > 0 ? (int) (batterySum / measured) : 0;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        writeCapped(out, nodes);
+        writeCapped(out, synced);
+        writeCapped(out, syncMin);
+        writeCapped(out, syncMax);
+        writeCapped(out, getSyncMean());
+        writeCapped(out, getLossMean());
+        writeCapped(out, measured);
+        writeCapped(out, batteryMin);
+        writeCapped(out, getBatteryMean());
+    }
+
+    private static void writeCapped(DataOutput out, int value) throws IOException {
+        out.writeShort(value < MAX_VALUE ? value : MAX_VALUE);
+    }
+
+    void readFrom(DataInput in) throws IOException {
+        nodes = in.readUnsignedShort();
+        synced = in.readUnsignedShort();
+        syncMin = in.readUnsignedShort();
+        syncMax = in.readUnsignedShort();
+        syncSum = (long) in.readUnsignedShort() * synced;
+        lossSum = (long) in.readUnsignedShort() * nodes;
+        measured = in.readUnsignedShort();
+        batteryMin = in.readUnsignedShort();
+        batterySum = (long) in.readUnsignedShort() * measured;
+    }
+
+    public String toString() {
+        return "Health(nodes: " + nodes +
+                ", sync: " + getSyncMean() + " mean, " + syncMin + "-" + syncMax + " over " + synced +
+                ", loss: " + getLossMean() + "/1000" +
+                ", battery: " + getBatteryMean() + "mV mean, " + batteryMin + "mV min over " + measured +
+                ")";
+    }
+}
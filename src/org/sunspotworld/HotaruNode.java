@@ -0,0 +1,1427 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import java.io.*;
+import org.sunspotworld.hal.Clock;
+import org.sunspotworld.hal.LedColor;
+import org.sunspotworld.hal.LightSensor;
+import org.sunspotworld.hal.Platform;
+import org.sunspotworld.hal.RadioConnection;
+import org.sunspotworld.hal.RadioPacket;
+import org.sunspotworld.hal.RadioBusyException;
+import org.sunspotworld.hal.RadioPolicy;
+import org.sunspotworld.hal.RadioTimeoutException;
+import org.sunspotworld.hal.Switch;
+import org.sunspotworld.hal.SwitchListener;
+import org.sunspotworld.hal.TriColorLed;
+
+/**
+ * Hotaru application logic, independent of the device it runs on.
+ *<p>
+ * All hardware access goes through the {@link Platform} given to the
+ * constructor, so the same node runs on a SPOT or on a host JVM.
+ *<p>
+ * {@link #start()} runs the node on two threads: an {@link EventLoop} that
+ * owns the strategy, the LEDs and all timers, and a thread that blocks in
+ * the radio receive and queues the decoded packets for the loop. Switch
+ * presses arrive as events too, so nothing polls. A third thread answers
+ * metrics queries on {@link #METRICS_PORT}. Other drivers, such as
+ * the swarm simulator, call {@link #transmit}, {@link #receive} and
+ * {@link #receiveTimedOut} themselves instead.
+ *<p>
+ * The channel, transmit power, master and blink phase are saved in the
+ * platform's storage a few seconds after they change, and
+ * {@link #initialize()} comes back with them; see {@link SavedState}.
+ */
+public class HotaruNode {
+
+    // O֘A萔
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    /**
+     * AvP[Ṽo[W
+     */
+    static final String VERSION = "1.0";
+    static final int INITIAL_CHANNEL_NUMBER = RadioPolicy.DEFAULT_CHANNEL;
+    static final short PAN_ID = RadioPolicy.DEFAULT_PAN_ID;
+    //static final String BROADCAST_PORT      = "42";
+    /**
+     * Radiogram port of the {@link HotaruWisper} beacons.
+     */
+    public static final String BROADCAST_PORT = "76";
+    /**
+     * Radiogram port on which {@link Metrics} can be queried.
+     */
+    public static final String METRICS_PORT = "77";
+    static final byte PACKET_MAGIC_NUMBER = 0x56;
+    private static final String HEX_DIGITS = "0123456789ABCDEF";
+    static final int BLINK_INTERVAL = 1000;
+    /**
+     * Slowest beacon rate of a master while the swarm agrees. Slaves keep
+     * flipping on the drift their PhaseTracker measured, which holds them
+     * within a few milliseconds of the master over this long.
+     */
+    static final int MAX_BEACON_INTERVAL = 12800;
+    /**
+     * Default for how often a beacon may be relayed by slaves.
+     */
+    static final int MAX_HOPS = 8;
+    /**
+     * Default for how many beacons of its master a backup misses before
+     * taking over.
+     */
+    static final int FAILOVER_BEACONS = 2;
+    /**
+     * Milliseconds a change of the saved state waits before it is written,
+     * so a burst of changes costs one flash write.
+     */
+    static final int SAVE_DELAY_MSEC = 5000;
+    /**
+     * Milliseconds between two steps of the channel survey.
+     */
+    static final int SURVEY_INTERVAL_MSEC = 2000;
+    /**
+     * Clear channel assessments per channel and survey step.
+     */
+    static final int SURVEY_SAMPLES = 8;
+    /**
+     * Quiet time the strategy has to have ahead for a visit to another channel.
+     */
+    static final int SURVEY_VISIT_MSEC = 5;
+    /**
+     * ChannelSurvey score of its channel at which a master looks for a
+     * channel with half the score.
+     */
+    static final int MIGRATE_SCORE = 150;
+    /**
+     * Milliseconds on a channel before a master moves the swarm again.
+     */
+    static final int MIGRATE_HOLDOFF_MSEC = 300000;
+    /**
+     * Milliseconds from announcing a channel to moving to it, enough for
+     * three beacons at the slowest rate.
+     */
+    static final int MIGRATE_NOTICE_MSEC = 3 * MAX_BEACON_INTERVAL;
+    /**
+     * Follow the master with the highest IEEE address.
+     */
+    public static final int SYNC_MASTER_SLAVE = 0;
+    /**
+     * Leaderless pulse coupled oscillators, see {@link FireflyStrategy}.
+     */
+    public static final int SYNC_FIREFLY = 1;
+    /**
+     * Milliseconds between light sensor readings.
+     */
+    private static final int LIGHT_CHECK_INTERVAL = 250;
+    /**
+     * Decoded packets waiting for the event loop, a power of two.
+     */
+    private static final int RX_QUEUE_SIZE = 8;
+    /**
+     * Milliseconds to wait before reopening a failed listener connection.
+     */
+    private static final int REOPEN_DELAY = 1000;
+    /**
+     * Shortest time between two LED updates, in milliseconds.
+     */
+    private static final int FRAME_INTERVAL = 20;
+    /**
+     * Longest time another thread waits for the event loop to take a
+     * snapshot, in milliseconds.
+     */
+    private static final int SNAPSHOT_WAIT = 1000;
+    // Event loop events
+    private static final int EVENT_START = 0;
+    private static final int EVENT_STRATEGY = 1;
+    private static final int EVENT_PACKET = 2;
+    private static final int EVENT_TRANSMIT = 3;
+    private static final int EVENT_SNAPSHOT = 4;
+    private static final int EVENT_PRESSED = 5;     // + switch number
+    private static final int EVENT_RELEASED = 7;    // + switch number
+    // What the switch being handled is doing
+    private static final int UI_SHOW = 0;
+    private static final int UI_CYCLE = 1;
+    private static final int UI_CLEAR = 2;
+    private final Platform platform;
+    private final Clock clock;
+    private final Log log;
+    final Metrics metrics = new Metrics();
+    private final NeighbourTable neighbours = new NeighbourTable();
+    private final ChannelSurvey survey = new ChannelSurvey();
+    private final TransmitSlots slots;
+    private final HealthReporter health;
+    private long nextSurvey;
+    private long masterSince = -1;
+    private long masterMsec = 0;
+    private String metricsPort = METRICS_PORT;
+    private MetricsResponder metricsResponder;
+    private Thread loopThread;
+    // Snapshot of event loop state for other threads, guarded by snapshotLock
+    private final Object snapshotLock = new Object();
+    private int snapshotsAsked = 0;
+    private int snapshotsTaken = 0;
+    private final Metrics snapshotMetrics = new Metrics();
+    private final HealthSummary swarmHealth = new HealthSummary();
+    private boolean haveSwarmHealth = false;
+    private int healthRounds = 0;
+    private Switch sw1;
+    private Switch sw2;
+    private final LedFrame frame;
+    private long lastFrame;
+    private TriColorLed leds[];
+    private TriColorLed statusLED;
+    private LightSensor light;
+    private final Brightness brightness = new Brightness();
+    private int channel = INITIAL_CHANNEL_NUMBER;
+    private long channelSince;
+    private int nextChannel = 0;                        // 0: no move announced
+    private long channelSwitchAt;
+    private int uiChannel;
+    private int power = 32;                             // Start with max transmit power
+    private boolean ledsInUse = false;
+    private Strategy currentStrategy;
+    private int syncMode = SYNC_MASTER_SLAVE;
+    private int group = 0;
+    private int maxHops = MAX_HOPS;
+    private boolean dutyCycled = false;
+    private int failoverBeacons = FAILOVER_BEACONS;
+    private boolean warmStart = true;
+    private final SavedState savedState = new SavedState();
+    private final SavedState newState = new SavedState();
+    private boolean stateSaved = false;                 // savedState is what the storage holds
+    private long saveAt = -1;                           // -1: nothing to save
+    private boolean rxOn = true;
+    private long rxOnSince;
+    private long rxOnMsec = 0;
+    private final long rxAccountingStart;
+    private TransmitRequestListener transmitRequestListener;
+    private final EventLoop loop;
+    private volatile boolean running = false;
+    /**
+     * The radio connections and their packets live as long as the node
+     * runs; strategies come and go underneath them.
+     */
+    private RadioConnection txConn;
+    private RadioPacket txPacket;
+    private RadioConnection rxConn;
+    private RadioPacket rxPacket;
+    /**
+     * Filled by the receive thread at rxHead, emptied by the loop at rxTail.
+     */
+    private final HotaruWisper[] rxQueue = new HotaruWisper[RX_QUEUE_SIZE];
+    private volatile int rxHead = 0;
+    private volatile int rxTail = 0;
+    private int uiSwitch = -1;
+    private int uiPhase;
+    private int uiCount;
+    private final EventLoop.Timer xmitTimer = new EventLoop.Timer() {
+
+        void expired() {
+            xmitTimerExpired();
+        }
+    };
+    private final EventLoop.Timer recvTimer = new EventLoop.Timer() {
+
+        void expired() {
+            receiveTimedOut();
+            loop.schedule(this, getRecvTimeout());
+        }
+    };
+    private final EventLoop.Timer lightTimer = new EventLoop.Timer() {
+
+        void expired() {
+            if (checkLightSensor()) {
+                updateHotaruState();
+            }
+            loop.schedule(this, LIGHT_CHECK_INTERVAL);
+        }
+    };
+    private final EventLoop.Timer frameTimer = new EventLoop.Timer() {
+
+        void expired() {
+            flushFrame();
+        }
+    };
+    private final EventLoop.Timer uiTimer = new EventLoop.Timer() {
+
+        void expired() {
+            uiTimerExpired();
+        }
+    };
+
+    /**
+     * Told when a strategy wants {@link #transmit} called before its current
+     * transmit interval is over. Drivers other than {@link #start()} use this.
+     */
+    public interface TransmitRequestListener {
+
+        void transmitRequested();
+    }
+    private int hotaruState;
+    private final HotaruWisper rxWisper = new HotaruWisper();
+
+    public HotaruNode(Platform platform) {
+        this.platform = platform;
+        this.clock = platform.getClock();
+        this.log = new Log(clock);
+        this.rxAccountingStart = clock.currentTimeMillis();
+        this.rxOnSince = rxAccountingStart;
+        this.sw1 = platform.getSwitches()[0];
+        this.sw2 = platform.getSwitches()[1];
+        this.frame = new LedFrame(platform.getLeds());
+        this.leds = frame.getLeds();
+        this.statusLED = leds[0];
+        this.light = platform.getLightSensor();
+        this.slots = new TransmitSlots(platform.getRadioPolicy().getIEEEAddress(), metrics);
+        this.health = new HealthReporter(this);
+        for (int i = 0; i < RX_QUEUE_SIZE; i++) {
+            rxQueue[i] = new HotaruWisper();
+        }
+        this.loop = new EventLoop(clock, new EventLoop.Handler() {
+
+            public void handleEvent(int event) {
+                HotaruNode.this.handleEvent(event);
+            }
+        });
+    }
+
+    Platform getPlatform() {
+        return platform;
+    }
+
+    Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * 𐧌䂷StrategyύX܂
+     * ݓĂStrategy݂ꍇ́Ahalt܂B.....
+     */
+    void setStrategy(Strategy s) {
+        if (s != currentStrategy) {
+            if (currentStrategy != null) {
+                log.write(INFO, Log.STOPPING, currentStrategy);
+                currentStrategy.halt();
+            }
+            if (s != null) {
+                log.write(INFO, Log.NEW_STRATEGY);
+                s.printInfo();
+                setStatusLed(s.getStatusColor(), true);
+            } else {
+                log.write(INFO, Log.PAUSED);
+                setStatusLed(LedColor.RED, true);
+            }
+            long now = clock.currentTimeMillis();
+            if (masterSince >= 0) {
+                masterMsec += now - masterSince;
+            }
+            masterSince = s instanceof MasterStrategy ? now : -1;
+            metrics.count(Metrics.STRATEGY_CHANGES);
+            stateChanged();
+            health.cancel();
+            neighbours.unpin();
+            setRxOn(true);                      // until the new strategy knows better
+            currentStrategy = s;
+            loop.post(EVENT_STRATEGY);
+        }
+    }
+
+    /**
+     * Return red as bright as the ambient light calls for.
+     *
+     * @returns appropriately bright red LED settings
+     */
+    private LedColor getRed() {
+        return brightness.red();
+    }
+
+    /**
+     * Return green as bright as the ambient light calls for.
+     *
+     * @returns appropriately bright green LED settings
+     */
+    private LedColor getGreen() {
+        return brightness.green();
+    }
+
+    /**
+     * Return blue as bright as the ambient light calls for, white in
+     * really bright light.
+     *
+     * @returns appropriately bright blue LED settings
+     */
+    private LedColor getBlue() {
+        return brightness.blue();
+    }
+
+    /**
+     * Choose how the swarm synchronizes; takes effect on {@link #initialize()}.
+     *
+     * @param mode SYNC_MASTER_SLAVE or SYNC_FIREFLY
+     */
+    public void setSyncMode(int mode) {
+        this.syncMode = mode;
+    }
+
+    /**
+     * Join one of several swarms sharing a channel. The node only hears
+     * the packets of its own group, so each group elects its own master.
+     *
+     * @param group 0-255
+     */
+    public void setGroup(int group) {
+        if (group < 0 || group > 255) {
+            throw new IllegalArgumentException("Group " + group);
+        }
+        this.group = group;
+    }
+
+    public int getGroup() {
+        return group;
+    }
+
+    /**
+     * Let a node whose relays go unechoed move a random number of transmit
+     * slots on, instead of to a slot hashed from its address.
+     */
+    public void setRandomBackoff(boolean randomBackoff) {
+        slots.setRandomBackoff(randomBackoff);
+    }
+
+    TransmitSlots getSlots() {
+        return slots;
+    }
+
+    HealthReporter getHealth() {
+        return health;
+    }
+
+    /**
+     * Return the health of the whole swarm from the last round this node
+     * completed as master, or null if it has none.
+     */
+    public HealthSummary getSwarmHealth() {
+        snapshot();
+        synchronized (snapshotLock) {
+            if (!haveSwarmHealth) {
+                return null;
+            }
+            HealthSummary copy = new HealthSummary();
+            copy.copyFrom(swarmHealth);
+            return copy;
+        }
+    }
+
+    /**
+     * Return the number of health rounds this node completed as master.
+     */
+    public int getHealthRounds() {
+        snapshot();
+        synchronized (snapshotLock) {
+            return healthRounds;
+        }
+    }
+
+    /**
+     * Set how often a beacon may be relayed; 0 turns relaying off.
+     */
+    public void setMaxHops(int hops) {
+        this.maxHops = hops;
+    }
+
+    int getMaxHops() {
+        return maxHops;
+    }
+
+    /**
+     * Let slaves power the receiver down between the expected beacons of
+     * their master. Metrics queries are then only heard while it is up.
+     */
+    public void setDutyCycled(boolean dutyCycled) {
+        this.dutyCycled = dutyCycled;
+        if (!dutyCycled) {
+            setRxOn(true);
+        }
+    }
+
+    boolean isDutyCycled() {
+        return dutyCycled;
+    }
+
+    /**
+     * Set how many beacons of the master the backup it named in them has
+     * to miss before taking over; 0 names no backup, and the swarm elects
+     * a new master once the slaves time out.
+     */
+    public void setFailoverBeacons(int beacons) {
+        this.failoverBeacons = beacons;
+    }
+
+    int getFailoverBeacons() {
+        return failoverBeacons;
+    }
+
+    /**
+     * Choose whether {@link #initialize()} comes back on the channel, power
+     * and master saved before a reboot. The state is saved either way.
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+    }
+
+    /**
+     * Power the receiver up or down, keeping count of the time it is up.
+     */
+    void setRxOn(boolean on) {
+        if (on == rxOn) {
+            return;
+        }
+        long now = clock.currentTimeMillis();
+        if (on) {
+            rxOnSince = now;
+        } else {
+            rxOnMsec += now - rxOnSince;
+        }
+        rxOn = on;
+        platform.getRadioPolicy().setRxOn(on);
+    }
+
+    public void setTransmitRequestListener(TransmitRequestListener listener) {
+        this.transmitRequestListener = listener;
+    }
+
+    /**
+     * Ask for {@link #transmit} to be called as soon as possible.
+     */
+    void requestTransmit() {
+        loop.post(EVENT_TRANSMIT);
+        TransmitRequestListener l = transmitRequestListener;
+        if (l != null) {
+            l.transmitRequested();
+        }
+    }
+
+    public void setLogLevel(int level) {
+        log.setLevel(level);
+    }
+
+    /**
+     * Log a message; it is printed later by the log thread.
+     */
+    public void log(int level, String msg) {
+        log.write(level, Log.TEXT, msg);
+    }
+
+    Log getLog() {
+        return log;
+    }
+
+    /**
+     * Print the most recent log records, including ones already printed.
+     */
+    public void dumpLog(PrintStream out) {
+        log.dump(out);
+    }
+
+    /**
+     * Fold a light sensor reading into the LED brightness.
+     *
+     * @returns true if the LED colours changed
+     */
+    private boolean checkLightSensor() {
+        try {
+            return brightness.sample(light.getValue());
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Initialize any needed variables.
+     */
+    public void initialize() {
+        checkLightSensor();
+        SavedState state = loadState();
+        if (state != null) {
+            channel = state.channel;
+            power = state.power;
+            slots.setSlot(state.slot);
+            log.write(INFO, Log.WARM_START, state.master);
+        }
+        RadioPolicy rpm = platform.getRadioPolicy();
+        rpm.setChannelNumber(channel);
+        rpm.setPanId(PAN_ID);
+        rpm.setOutputPower(power - 32);
+        channelSince = clock.currentTimeMillis();
+        nextSurvey = channelSince + SURVEY_INTERVAL_MSEC;
+        if (syncMode == SYNC_FIREFLY) {
+            setStrategy(new FireflyStrategy(this, BLINK_INTERVAL));
+        } else if (state != null) {
+            setStrategy(new CandidateStrategy(this, BLINK_INTERVAL, state.epoch, state.master));
+        } else {
+            setStrategy(new CandidateStrategy(this, BLINK_INTERVAL, -1));
+        }
+        hotaruState = 0;
+    }
+
+    /**
+     * Return the saved state to come back with, or null for a cold start.
+     */
+    private SavedState loadState() {
+        byte[] data;
+        try {
+            data = platform.getStorage().load();
+        } catch (IOException ex) {
+            log.write(WARN, Log.LOAD_FAILED, ex);
+            return null;
+        }
+        stateSaved = data != null && savedState.fromBytes(data);
+        if (!stateSaved || !warmStart || savedState.group != group || savedState.syncMode != syncMode ||
+                !ChannelSurvey.isValid(savedState.channel) || savedState.power > 32) {
+            return null;
+        }
+        if (clock.currentTimeMillis() < savedState.saved) {
+            savedState.epoch = -1;              // the clock started over, the phase is lost
+        }
+        return savedState;
+    }
+
+    /**
+     * Save the state {@link #SAVE_DELAY_MSEC} from now, unless a save is
+     * already due.
+     */
+    private void stateChanged() {
+        if (saveAt < 0) {
+            saveAt = clock.currentTimeMillis() + SAVE_DELAY_MSEC;
+        }
+    }
+
+    /**
+     * Write the state to storage if it differs from what is there. While
+     * the node follows no master there is none to remember, and the save
+     * waits.
+     */
+    private void saveState(long now) {
+        Strategy s = currentStrategy;
+        long master = s != null ? s.getMasterAddress() : 0;
+        if (master == 0 && syncMode != SYNC_FIREFLY) {
+            saveAt = now + SAVE_DELAY_MSEC;
+            return;
+        }
+        saveAt = -1;
+        SavedState state = newState;
+        state.group = group;
+        state.syncMode = syncMode;
+        state.channel = channel;
+        state.power = power;
+        state.slot = slots.getSlot();
+        state.master = master;
+        state.epoch = s != null ? s.getEpoch(now) : -1;
+        state.saved = now;
+        if (stateSaved && !state.differsFrom(savedState)) {
+            return;
+        }
+        try {
+            platform.getStorage().save(state.toBytes());
+            savedState.copyFrom(state);
+            stateSaved = true;
+        } catch (IOException ex) {
+            log.write(WARN, Log.SAVE_FAILED, ex);
+        }
+    }
+
+    private void setStatusLed(LedColor color, boolean state) {
+        statusLED.setColor(color);
+        statusLED.setOn(state);
+        showFrame();
+    }
+
+    /**
+     * Show the LED changes, at most every FRAME_INTERVAL while the event loop
+     * runs and at once otherwise.
+     */
+    private void showFrame() {
+        if (!frame.isDirty() || frameTimer.isScheduled()) {
+            return;
+        }
+        long now = clock.currentTimeMillis();
+        if (running && now - lastFrame < FRAME_INTERVAL) {
+            loop.scheduleAt(frameTimer, lastFrame + FRAME_INTERVAL);
+        } else {
+            flushFrame();
+        }
+    }
+
+    private void flushFrame() {
+        lastFrame = clock.currentTimeMillis();
+        frame.flush();
+    }
+
+    /**
+     * Start the event loop and the receive thread. The loop also reads the
+     * light sensor every LIGHT_CHECK_INTERVAL to keep the LED brightness in
+     * line with the ambient light. The switches are not watched; call {@link #respondToSwitches()} for that.
+     */
+    public void start() {
+        running = true;
+        log.start();
+        try {
+            openBroadcast();
+        } catch (IOException ex) {
+            log.write(WARN, Log.OPEN_FAILED, ex, 0);
+        }
+        try {
+            openListener();
+        } catch (IOException ex) {
+            log.write(WARN, Log.OPEN_FAILED, ex, 1);
+        }
+        loop.post(EVENT_START);
+        loopThread = new Thread(loop);
+        loopThread.start();             // spawn the thread running the node
+        new Thread() {
+
+            public void run() {
+                recvLoop();
+            }
+        }.start();                      // spawn a thread to receive packets
+        if (metricsPort != null) {
+            metricsResponder = new MetricsResponder(this, metricsPort);
+            new Thread(metricsResponder).start();
+        }
+    }
+
+    /**
+     * Stop both threads and the current strategy.
+     */
+    public void stop() {
+        running = false;
+        loop.stop();
+        if (metricsResponder != null) {
+            metricsResponder.stop();
+        }
+        RadioConnection conn = rxConn;
+        if (conn != null) {
+            try {
+                conn.close();           // wakes up the receive thread
+            } catch (IOException ex) {
+            }
+        }
+        if (txConn != null) {
+            try {
+                txConn.close();
+            } catch (IOException ex) {
+            }
+        }
+        if (currentStrategy != null) {
+            currentStrategy.halt();
+        }
+        log.stop();
+    }
+
+    /**
+     * Called on the event loop for every event posted to it.
+     */
+    private void handleEvent(int event) {
+        switch (event) {
+            case EVENT_START:
+                loop.scheduleAt(xmitTimer, clock.currentTimeMillis());
+                loop.schedule(recvTimer, getRecvTimeout());
+                loop.schedule(lightTimer, LIGHT_CHECK_INTERVAL);
+                break;
+            case EVENT_STRATEGY:
+                if (running) {
+                    loop.scheduleAt(xmitTimer, clock.currentTimeMillis());
+                    loop.schedule(recvTimer, getRecvTimeout());
+                }
+                break;
+            case EVENT_PACKET:
+                while (rxTail != rxHead) {
+                    HotaruWisper packet = rxQueue[rxTail & (RX_QUEUE_SIZE - 1)];
+                    Strategy s = currentStrategy;
+                    if (s != null) {
+                        s.handle(packet);
+                    } else {
+                        heard(packet);
+                    }
+                    rxTail++;
+                    loop.schedule(recvTimer, getRecvTimeout());
+                }
+                break;
+            case EVENT_TRANSMIT:
+                if (running) {
+                    loop.scheduleAt(xmitTimer, clock.currentTimeMillis());
+                }
+                break;
+            case EVENT_SNAPSHOT:
+                takeSnapshot();
+                break;
+            case EVENT_PRESSED:
+            case EVENT_PRESSED + 1:
+                switchPressed(event - EVENT_PRESSED);
+                break;
+            case EVENT_RELEASED:
+            case EVENT_RELEASED + 1:
+                switchReleased(event - EVENT_RELEASED);
+                break;
+        }
+    }
+
+    private void openBroadcast() throws IOException {
+        txConn = platform.openBroadcast(BROADCAST_PORT);
+        txConn.setMaxBroadcastHops(1);      // don't want packets being rebroadcasted
+        txPacket = txConn.newPacket();
+    }
+
+    private void openListener() throws IOException {
+        rxConn = platform.openListener(BROADCAST_PORT);
+        rxPacket = rxConn.newPacket();
+    }
+
+    private void xmitTimerExpired() {
+        long nextTime = clock.currentTimeMillis() + getXmitInterval();
+        try {
+            if (txConn == null) {
+                openBroadcast();
+            }
+            transmit(txConn, txPacket);
+        } catch (RadioBusyException ex) {
+            metrics.count(Metrics.TX_BUSY);     // lost this one, the connection is fine
+        } catch (IOException ex) {
+            log.write(WARN, Log.REOPENING, ex, 0);
+            if (txConn != null) {
+                try {
+                    txConn.close();
+                } catch (IOException e) {
+                }
+                txConn = null;                  // reopen on the next transmit
+            }
+        }
+        if (!xmitTimer.isScheduled()) {
+            loop.scheduleAt(xmitTimer, nextTime);
+        }
+    }
+
+    /**
+     * Display a number (base 2) in LEDs 1-7
+     *
+     * @param val the number to display
+     * @param col the color to display in LEDs
+     */
+    private void displayNumber(int val, LedColor col) {
+        for (int i = 0, mask = 1; i < 7; i++, mask <<= 1) {
+            leds[7 - i].setColor(col);
+            leds[7 - i].setOn((val & mask) != 0);
+        }
+        showFrame();
+    }
+
+
+    /**
+     * Display a vU like level in LEDs 1-7
+     *
+     * @param val the level to display
+     * @param max the maximum value expected
+     * @param min the minimum value expected
+     * @param col the color to display in LEDs
+     */
+    private void displayLevel(int val, int max, int min, LedColor col) {
+        int LEDS_TO_USE = 7;
+        int MAX_LED = 7;
+        int range = max - min + 1;
+        int perLed = range / LEDS_TO_USE;
+        int bucket = (val - min + 1) / perLed;
+        int part = (val - min + 1) - bucket * perLed;
+        for (int i = 0; i < LEDS_TO_USE; i++) {
+            if (bucket > i) {
+                leds[MAX_LED - i].setColor(col);
+                leds[MAX_LED - i].setOn();
+            } else if (bucket == i) {
+                int perceived = part <= 0 ? 0 : part >= perLed ? 255 : part * 255 / perLed;
+                leds[MAX_LED - i].setRGB(Brightness.scale(perceived, col.red()), Brightness.scale(perceived, col.green()), Brightness.scale(perceived, col.blue()));
+                leds[MAX_LED - i].setOn();
+            } else {
+                leds[MAX_LED - i].setOff();
+            }
+        }
+        showFrame();
+    }
+
+    /**
+     * Let the user change the channel with SW1 and the transmit power with
+     * SW2.
+     *<p>
+     * A press displays the current value. After 1 second, if it is still
+     * pressed, cycle through values every 0.5 seconds. After cycling through
+     * 4 new values speed up the cycle time to every 0.3 seconds. When the
+     * cycle reaches the max value minus one revert to the slower speed. The
+     * new value is set when the switch is released. Presses while the other
+     * switch is being handled are ignored.
+     *<p>
+     * Returns at once; presses are handled on the event loop.
+     */
+    public void respondToSwitches() {
+        SwitchListener listener = new SwitchListener() {
+
+            public void switchPressed(Switch sw) {
+                loop.post(EVENT_PRESSED + (sw == sw1 ? 0 : 1));
+            }
+
+            public void switchReleased(Switch sw) {
+                loop.post(EVENT_RELEASED + (sw == sw1 ? 0 : 1));
+            }
+        };
+        sw1.addListener(listener);
+        sw2.addListener(listener);
+    }
+
+    private void switchPressed(int index) {
+        if (uiSwitch >= 0) {
+            return;
+        }
+        uiSwitch = index;
+        uiPhase = UI_SHOW;
+        ledsInUse = true;
+        if (index == 0) {
+            uiChannel = channel;
+            displayNumber(uiChannel, getGreen());
+        } else {
+            displayNumber(power, getRed());
+        }
+        loop.schedule(uiTimer, 1000);           // wait 1.0 second
+    }
+
+    private void switchReleased(int index) {
+        if (index == uiSwitch && uiPhase == UI_CYCLE) {
+            loop.cancel(uiTimer);
+            endCycle();
+        }
+    }
+
+    private void uiTimerExpired() {
+        Switch sw = uiSwitch == 0 ? sw1 : sw2;
+        switch (uiPhase) {
+            case UI_SHOW:
+                if (sw.isClosed()) {
+                    uiPhase = UI_CYCLE;
+                    uiCount = 0;
+                    cycleStep();
+                } else {
+                    uiPhase = UI_CLEAR;
+                    loop.schedule(uiTimer, 1000);   // wait 1.0 second
+                }
+                break;
+            case UI_CYCLE:
+                if (sw.isClosed()) {
+                    cycleStep();
+                } else {
+                    endCycle();
+                }
+                break;
+            case UI_CLEAR:
+                displayNumber(0, getBlue());
+                ledsInUse = false;
+                uiSwitch = -1;
+                updateHotaruState();
+                break;
+        }
+    }
+
+    private void cycleStep() {
+        if (uiSwitch == 0) {
+            uiChannel++;
+            if (uiChannel > 24) {
+                uiCount = 0;
+            }
+            if (uiChannel > 26) {
+                uiChannel = 11;
+            }
+            displayNumber(uiChannel, getGreen());
+        } else {
+            power++;
+            if (power > 30) {
+                uiCount = 0;
+            }
+            if (power > 32) {
+                power = 0;
+            }
+            displayNumber(power, getRed());
+        }
+        uiCount++;
+        loop.schedule(uiTimer, uiCount < 5 ? 500 : 300);    // wait 0.5 second
+    }
+
+    private void endCycle() {
+        if (uiSwitch == 0) {
+            changeChannel(uiChannel);
+        } else {
+            platform.getRadioPolicy().setOutputPower(power - 32);
+            stateChanged();
+        }
+        uiPhase = UI_CLEAR;
+        loop.schedule(uiTimer, 1000);           // wait 1.0 second
+    }
+
+    /**
+     * Loop to receive packets and queue them for the event loop.
+     */
+    private void recvLoop() {
+        while (running) {
+            try {
+                if (rxConn == null) {
+                    openListener();
+                }
+                rxPacket.reset();
+                rxConn.receive(rxPacket);       // listen for a packet
+                if (rxHead - rxTail >= RX_QUEUE_SIZE) {
+                    metrics.count(Metrics.RX_QUEUE_DROPS);  // the loop is behind
+                    continue;
+                }
+                if (decode(rxQueue[rxHead & (RX_QUEUE_SIZE - 1)], rxPacket)) {
+                    rxHead++;
+                    loop.post(EVENT_PACKET);
+                }
+            } catch (RadioTimeoutException ex) {
+                // nothing to do, the loop times out receives
+            } catch (IOException ex) {
+                if (!running) {
+                    break;                      // closed by stop()
+                }
+                log.write(WARN, Log.REOPENING, ex, 1);
+                if (rxConn != null) {
+                    try {
+                        rxConn.close();
+                    } catch (IOException e) {
+                    }
+                    rxConn = null;
+                }
+                try {
+                    clock.sleep(REOPEN_DELAY);
+                } catch (InterruptedException e) { /* ignore */ }
+            }
+        }
+    }
+
+    // -----------------------------------
+    // Single steps of the node, for drivers that do not use
+    // the threads started by start().
+    // -----------------------------------
+
+    /**
+     * Let the current strategy send one packet, or else a health report
+     * that is due. Also moves to an announced channel when it is time,
+     * takes the next step of the channel survey when one is due and saves
+     * a changed state.
+     */
+    public void transmit(RadioConnection conn, RadioPacket packet) throws IOException {
+        if (nextChannel != 0 && clock.currentTimeMillis() >= channelSwitchAt) {
+            switchChannel(nextChannel);
+        }
+        Strategy s = currentStrategy;
+        boolean sent = false;
+        if (s != null) {
+            sent = s.transmit(conn, packet);
+        }
+        long now = clock.currentTimeMillis();
+        if (!sent && health.isDue(now)) {
+            HotaruWisper report = health.report();
+            if (report != null) {
+                packet.reset();
+                report.group = group;
+                report.writeTo(packet.getOutput());
+                conn.send(packet);
+                metrics.count(Metrics.PACKETS_SENT);
+                metrics.count(Metrics.REPORTS_SENT);
+            }
+        }
+        if (now >= nextSurvey) {
+            survey(now);
+        }
+        if (saveAt >= 0 && now >= saveAt) {
+            saveState(now);
+        }
+    }
+
+    /**
+     * Hand a received packet to the current strategy.
+     */
+    public void receive(RadioPacket packet) throws IOException {
+        Strategy s = currentStrategy;
+        if (s != null) {
+            s.receive(packet);
+        }
+    }
+
+    /**
+     * Tell the current strategy that nothing arrived within {@link #getRecvTimeout()}.
+     */
+    public void receiveTimedOut() {
+        Strategy s = currentStrategy;
+        if (s != null) {
+            s.receiveTimedOut();
+        }
+    }
+
+    /**
+     * Return the milliseconds between two calls to {@link #transmit}; while
+     * paused, one blink interval.
+     */
+    public long getXmitInterval() {
+        Strategy s = currentStrategy;
+        long interval = s != null ? s.xmitInterval() : BLINK_INTERVAL;
+        interval = Math.min(interval, health.untilChange(clock.currentTimeMillis()));
+        if (nextChannel != 0) {
+            interval = Math.min(interval, Math.max(1, channelSwitchAt - clock.currentTimeMillis()));
+        }
+        return interval;
+    }
+
+    /**
+     * Return the milliseconds after which a receive times out; while
+     * paused, one blink interval.
+     */
+    public long getRecvTimeout() {
+        Strategy s = currentStrategy;
+        return s != null ? s.recvTimeout() : BLINK_INTERVAL;
+    }
+
+    public int getHotaruState() {
+        return hotaruState;
+    }
+
+    public void setHotaruState(int value) {
+        this.hotaruState = value;
+        this.updateHotaruState();
+    }
+
+    /**
+     * Return the name of the running strategy, or null when paused.
+     */
+    public String getStrategyName() {
+        Strategy s = currentStrategy;
+        return s != null ? s.getName() : null;
+    }
+
+    /**
+     * Return the IEEE address of the master this node follows.
+     * A master returns its own address.
+     */
+    public long getMasterAddress() {
+        Strategy s = currentStrategy;
+        return s != null ? s.getMasterAddress() : 0;
+    }
+
+    public long getAddress() {
+        return platform.getRadioPolicy().getIEEEAddress();
+    }
+
+    protected void updateHotaruState() {
+        if (ledsInUse) {
+            return;
+        }
+        for (int i = 2; i < 8; i++) {
+            leds[i].setColor(getBlue());
+            leds[i].setOn(hotaruState == 0);
+        }
+        showFrame();
+    }
+
+    /**
+     * Decode a received packet into a reused {@link HotaruWisper}.
+     * Only the receiving thread may call this.
+     *
+     * @returns the decoded packet, or null if it is not a Hotaru packet
+     */
+    HotaruWisper decodePacket(RadioPacket rp) throws IOException {
+        return decode(rxWisper, rp) ? rxWisper : null;
+    }
+
+    private boolean decode(HotaruWisper packet, RadioPacket rp) throws IOException {
+        boolean ok;
+        try {
+            DataInput in = rp.getInput();
+            if (!HotaruWisper.readHeader(in, group)) {
+                metrics.count(Metrics.FOREIGN_PACKETS);     // another swarm, or too old to tell
+                return false;
+            }
+            packet.group = group;
+            ok = packet.readBody(in);
+        } catch (EOFException ex) {
+            ok = false;                 // truncated
+        }
+        metrics.count(ok ? Metrics.PACKETS_RECEIVED : Metrics.DECODE_REJECTS);
+        if (ok) {
+            packet.rssi = rp.getRssi();
+            packet.linkQuality = rp.getLinkQuality();
+        }
+        return ok;
+    }
+
+    /**
+     * Note the sender of a decoded packet in the neighbour table, before
+     * the strategy sees the packet. A master's own beacons carry the
+     * sequence numbers its loss rate is measured by.
+     */
+    void heard(HotaruWisper packet) {
+        long now = clock.currentTimeMillis();
+        int seq = packet.hops == 0 ? packet.seq : -1;
+        neighbours.heard(packet.selfAddress, packet.rssi, packet.linkQuality, seq, now);
+        if (packet.channel != 0 && nextChannel == 0 && packet.channel != channel &&
+                ChannelSurvey.isValid(packet.channel) && packet.masterAddress != getAddress() &&
+                packet.masterAddress == getMasterAddress()) {
+            // our master is moving the swarm; a higher one we have not
+            // followed yet could be a stray or forged beacon
+            scheduleChannelSwitch(packet.channel, now + packet.channelSwitch);
+        }
+    }
+
+    // -----------------------------------
+    // Channel survey and migration
+    // -----------------------------------
+
+    public int getChannel() {
+        return channel;
+    }
+
+    /**
+     * Move to another channel: a master takes the swarm along after
+     * MIGRATE_NOTICE_MSEC, any other node moves at once on its own.
+     */
+    private void changeChannel(int newChannel) {
+        if (newChannel == channel) {
+            return;
+        }
+        if (currentStrategy instanceof MasterStrategy) {
+            scheduleChannelSwitch(newChannel, clock.currentTimeMillis() + MIGRATE_NOTICE_MSEC);
+        } else {
+            switchChannel(newChannel);
+        }
+    }
+
+    private void scheduleChannelSwitch(int newChannel, long at) {
+        nextChannel = newChannel;
+        channelSwitchAt = at;
+        log.write(INFO, Log.MIGRATION, newChannel, at - clock.currentTimeMillis());
+    }
+
+    private void switchChannel(int newChannel) {
+        channel = newChannel;
+        nextChannel = 0;
+        channelSince = clock.currentTimeMillis();
+        platform.getRadioPolicy().setChannelNumber(newChannel);
+        metrics.count(Metrics.CHANNEL_SWITCHES);
+        log.write(INFO, Log.CHANNEL, newChannel);
+        stateChanged();
+    }
+
+    /**
+     * Add the announced channel, if any, to a packet about to be sent.
+     */
+    void addChannelSwitch(HotaruWisper packet) {
+        if (nextChannel != 0) {
+            packet.channel = nextChannel;
+            packet.channelSwitch = (int) Math.max(0, channelSwitchAt - clock.currentTimeMillis());
+        }
+    }
+
+    /**
+     * One step of the channel survey: sample the own channel, visit the
+     * next other one, and let a master decide whether to move the swarm.
+     * Sampling keeps the radio busy, so the step waits until neither the
+     * strategy nor the health reports expect a packet for
+     * SURVEY_VISIT_MSEC; a beacon in that time would be lost and counted
+     * against the master. A duty cycled node does not power up its
+     * receiver for the survey; the step waits for its next receive window.
+     */
+    private void survey(long now) {
+        Strategy s = currentStrategy;
+        if (s == null) {
+            nextSurvey = now + SURVEY_INTERVAL_MSEC;
+            return;
+        }
+        if (!rxOn || !s.isQuietFor(now, SURVEY_VISIT_MSEC) || !health.isQuietFor(now, SURVEY_VISIT_MSEC)) {
+            return;                             // still due when the receiver is on and the relays are over
+        }
+        nextSurvey = now + SURVEY_INTERVAL_MSEC;
+        survey.sampled(channel, countBusy(), SURVEY_SAMPLES, now);
+        long master = s.getMasterAddress();
+        int slot = neighbours.find(master);
+        if (slot >= 0 && master != getAddress()) {
+            survey.setLoss(channel, neighbours.getLoss(slot));
+        }
+        int other = survey.nextToVisit(channel);
+        RadioPolicy rpm = platform.getRadioPolicy();
+        rpm.setChannelNumber(other);
+        survey.sampled(other, countBusy(), SURVEY_SAMPLES, now);
+        rpm.setChannelNumber(channel);
+        if (s instanceof MasterStrategy && nextChannel == 0) {
+            considerMigration(now);
+        }
+    }
+
+    private int countBusy() {
+        RadioPolicy rpm = platform.getRadioPolicy();
+        int busy = 0;
+        for (int i = 0; i < SURVEY_SAMPLES; i++) {
+            if (!rpm.isChannelClear()) {
+                busy++;
+            }
+        }
+        return busy;
+    }
+
+    /**
+     * Announce a move once the channel has been used for
+     * MIGRATE_HOLDOFF_MSEC, scores MIGRATE_SCORE or worse and another
+     * channel scores at most half as much.
+     */
+    private void considerMigration(long now) {
+        if (now - channelSince < MIGRATE_HOLDOFF_MSEC || !survey.isKnown(channel, now)) {
+            return;
+        }
+        int score = survey.getScore(channel);
+        int best = survey.best(channel, now);
+        if (score >= MIGRATE_SCORE && best >= 0 && survey.getScore(best) * 2 <= score) {
+            scheduleChannelSwitch(best, now + MIGRATE_NOTICE_MSEC);
+        }
+    }
+
+    /**
+     * Return the nodes this node hears. Only the event loop, or the driver
+     * calling {@link #receive}, may use it.
+     */
+    NeighbourTable getNeighbours() {
+        return neighbours;
+    }
+
+    /**
+     * Choose the radiogram port for metrics queries, null for none; takes
+     * effect on {@link #start()}.
+     */
+    public void setMetricsPort(String port) {
+        this.metricsPort = port;
+    }
+
+    /**
+     * Return a copy of the metrics of this node, with the gauges brought
+     * up to date.
+     */
+    public Metrics getMetrics() {
+        snapshot();
+        Metrics copy = new Metrics();
+        synchronized (snapshotLock) {
+            copy.copyFrom(snapshotMetrics);
+        }
+        return copy;
+    }
+
+    /**
+     * Bring the snapshot up to date. The event loop owns the state, so
+     * while it runs another thread posts EVENT_SNAPSHOT and waits, up to
+     * SNAPSHOT_WAIT, for the loop to take it; otherwise, as in the
+     * simulator, the caller takes it itself.
+     */
+    private void snapshot() {
+        if (!running || Thread.currentThread() == loopThread) {
+            takeSnapshot();
+            return;
+        }
+        synchronized (snapshotLock) {
+            int asked = ++snapshotsAsked;
+            loop.post(EVENT_SNAPSHOT);
+            long end = System.currentTimeMillis() + SNAPSHOT_WAIT;
+            while (snapshotsTaken - asked < 0 && running) {
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;                      // the loop is stuck; use the last one
+                }
+                try {
+                    snapshotLock.wait(wait);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the gauges and copy them, the counters and the swarm health for
+     * other threads. Only the event loop, or the simulator driving the
+     * node, may call this.
+     */
+    private void takeSnapshot() {
+        long now = clock.currentTimeMillis();
+        long master = masterMsec;
+        long since = masterSince;
+        if (since >= 0) {
+            master += now - since;
+        }
+        metrics.set(Metrics.MASTER_MSEC, master);
+        metrics.set(Metrics.FREE_MEMORY, Runtime.getRuntime().freeMemory());
+        metrics.set(Metrics.NEIGHBOURS, neighbours.size());
+        long on = rxOnMsec + (rxOn ? now - rxOnSince : 0);
+        metrics.set(Metrics.RX_ON_PERMILLE, on * 1000 / Math.max(1, now - rxAccountingStart));
+        metrics.set(Metrics.CHANNEL, channel);
+        metrics.set(Metrics.CHANNEL_NOISE, survey.getNoise(channel));
+        metrics.set(Metrics.BATTERY_MV, platform.getBattery().getMillivolts());
+        HealthSummary swarm = health.getSwarm();
+        metrics.set(Metrics.SWARM_NODES, swarm != null ? swarm.getNodes() : 0);
+        metrics.set(Metrics.SWARM_SYNC_MEAN, swarm != null ? swarm.getSyncMean() : 0);
+        metrics.set(Metrics.SWARM_SYNC_MAX, swarm != null ? swarm.getSyncMax() : 0);
+        metrics.set(Metrics.SWARM_LOSS_PERMILLE, swarm != null ? swarm.getLossMean() : 0);
+        metrics.set(Metrics.SWARM_BATTERY_MIN, swarm != null ? swarm.getBatteryMin() : 0);
+        synchronized (snapshotLock) {
+            snapshotMetrics.copyFrom(metrics);
+            haveSwarmHealth = swarm != null;
+            if (swarm != null) {
+                swarmHealth.copyFrom(swarm);
+            }
+            healthRounds = health.getRounds();
+            snapshotsTaken = snapshotsAsked;
+            snapshotLock.notifyAll();
+        }
+    }
+
+    /**
+     * Print the metrics of this node, for example over USB.
+     */
+    public void printMetrics(PrintStream out) {
+        getMetrics().print(out);
+    }
+
+    /**
+     * Format an IEEE address like "0014.4F01.0000.1234".
+     */
+    public static String toDottedHex(long address) {
+        StringBuffer sb = new StringBuffer(19);
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            sb.append(HEX_DIGITS.charAt((int) (address >>> shift) & 0xF));
+            if (shift != 0 && shift % 16 == 0) {
+                sb.append('.');
+            }
+        }
+        return sb.toString();
+    }
+}
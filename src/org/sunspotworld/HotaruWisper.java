@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// -----------------------------------
+// Packet decoders and encoders.
+// -----------------------------------
+/**
+ * Contents of a Hotaru packet and its wire format.
+ *<p>
+ * Layout (version 3):
+ *<pre>
+ *   byte     PACKET_MAGIC_NUMBER
+ *   byte     version
+ *   ubyte    group
+ *   byte     flags
+ *   byte     more       if FLAG_MORE
+ *   address  master     if FLAG_MASTER
+ *   address  sender     if FLAG_SENDER, otherwise the sender is the master
+ *   ushort   delay      if FLAG_DELAY
+ *   ushort   interval   if FLAG_INTERVAL
+ *   ubyte    seq        if FLAG_ROUTE
+ *   ubyte    hops       if FLAG_ROUTE
+ *   ubyte    channel    if MORE_CHANNEL
+ *   ushort   switchIn   if MORE_CHANNEL
+ *   address  backup     if MORE_BACKUP
+ *   address  parent     if MORE_REPORT
+ *   health   summary    if MORE_REPORT, see HealthSummary
+ *</pre>
+ * An address is the low 4 bytes of a SPOT address (0014.4F01.xxxx.xxxx), or
+ * all 8 bytes when FLAG_LONG_ADDRESS is set. A master beacon is 8 bytes.
+ * MORE_CHANNEL announces that the swarm moves to another channel in
+ * switchIn milliseconds, MORE_BACKUP the node that takes over when the
+ * master fails.
+ * MORE_REPORT makes the packet a health report of the sender and its
+ * subtree for its parent in the convergecast tree; it has no master, seq is
+ * the beacon that started the round and hops the sender's depth. See
+ * HealthReporter.
+ *<p>
+ * Several swarms can share a channel: each is a group, and a node only
+ * listens to its own. The first three bytes say whether a packet is for
+ * the group, so {@link #readHeader} drops the packets of other groups
+ * before anything else is read. Version 0, the original fixed 21 byte
+ * layout, and version 1, this one without the group, cannot tell which
+ * swarm they belong to and are dropped the same way, and so is version 2,
+ * which had FLAG_CHANNEL where FLAG_MORE is.
+ *<p>
+ * Instances are reused: the decoded packet handed to a strategy is only
+ * valid until the next packet is received. The class is public so that
+ * host tools can decode packets too.
+ */
+public class HotaruWisper {
+
+    static final int VERSION = 3;
+    static final int FLAG_STATE = 0x01;
+    static final int FLAG_LONG_ADDRESS = 0x02;
+    static final int FLAG_MASTER = 0x04;
+    static final int FLAG_SENDER = 0x08;
+    static final int FLAG_DELAY = 0x10;
+    static final int FLAG_INTERVAL = 0x20;
+    static final int FLAG_ROUTE = 0x40;
+    static final int FLAG_MORE = 0x80;
+    static final int MORE_CHANNEL = 0x01;
+    static final int MORE_BACKUP = 0x02;
+    static final int MORE_REPORT = 0x04;
+    /**
+     * Value of hops for packets without routing information.
+     */
+    static final int NO_ROUTE = -1;
+    private static final long SPOT_ADDRESS_PREFIX = 0x00144F0100000000L;
+    private static final long PREFIX_MASK = 0xFFFFFFFF00000000L;
+    /**
+     * Swarm the packet belongs to, 0-255.
+     */
+    public int group;
+    public long masterAddress;
+    public long selfAddress;
+    public int masterState;
+    /**
+     * Milliseconds between the event the packet reports and its sending.
+     */
+    public int delay;
+    /**
+     * Milliseconds until the sender's next beacon, 0 if unknown.
+     */
+    public int interval;
+    /**
+     * Beacon sequence number of the master, 0-255.
+     */
+    public int seq;
+    /**
+     * Number of times the beacon was relayed, or NO_ROUTE.
+     */
+    public int hops = NO_ROUTE;
+    /**
+     * Channel the swarm moves to, 0 if none is announced.
+     */
+    public int channel;
+    /**
+     * Milliseconds from sending until the swarm moves to channel.
+     */
+    public int channelSwitch;
+    /**
+     * Node the master named to take over from it, 0 if none.
+     */
+    public long backupAddress;
+    /**
+     * Node a health report is for, 0 if the packet is not a report.
+     */
+    public long parentAddress;
+    /**
+     * Health of the nodes a report covers.
+     */
+    public final HealthSummary health = new HealthSummary();
+    /**
+     * Signal strength in dBm and link quality the packet was received
+     * with; not sent.
+     */
+    public int rssi;
+    public int linkQuality;
+
+    public void clear() {
+        group = 0;
+        masterAddress = 0;
+        selfAddress = 0;
+        masterState = 0;
+        delay = 0;
+        interval = 0;
+        seq = 0;
+        hops = NO_ROUTE;
+        channel = 0;
+        channelSwitch = 0;
+        backupAddress = 0;
+        parentAddress = 0;
+        health.clear();
+    }
+
+    /**
+     * Make this packet a copy of another.
+     */
+    public void copyFrom(HotaruWisper other) {
+        group = other.group;
+        masterAddress = other.masterAddress;
+        selfAddress = other.selfAddress;
+        masterState = other.masterState;
+        delay = other.delay;
+        interval = other.interval;
+        seq = other.seq;
+        hops = other.hops;
+        channel = other.channel;
+        channelSwitch = other.channelSwitch;
+        backupAddress = other.backupAddress;
+        parentAddress = other.parentAddress;
+        health.copyFrom(other.health);
+        rssi = other.rssi;
+        linkQuality = other.linkQuality;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        boolean hasSender = selfAddress != masterAddress;
+        int flags = 0;
+        if (masterState != 0) {
+            flags |= FLAG_STATE;
+        }
+        if ((masterAddress != 0 && !isShort(masterAddress)) || (hasSender && !isShort(selfAddress)) ||
+                (backupAddress != 0 && !isShort(backupAddress)) ||
+                (parentAddress != 0 && !isShort(parentAddress))) {
+            flags |= FLAG_LONG_ADDRESS;
+        }
+        if (masterAddress != 0) {
+            flags |= FLAG_MASTER;
+        }
+        if (hasSender) {
+            flags |= FLAG_SENDER;
+        }
+        if (delay != 0) {
+            flags |= FLAG_DELAY;
+        }
+        if (interval != 0) {
+            flags |= FLAG_INTERVAL;
+        }
+        if (hops != NO_ROUTE) {
+            flags |= FLAG_ROUTE;
+        }
+        int more = 0;
+        if (channel != 0) {
+            more |= MORE_CHANNEL;
+        }
+        if (backupAddress != 0) {
+            more |= MORE_BACKUP;
+        }
+        if (parentAddress != 0) {
+            more |= MORE_REPORT;
+        }
+        if (more != 0) {
+            flags |= FLAG_MORE;
+        }
+        out.writeByte(HotaruNode.PACKET_MAGIC_NUMBER);
+        out.writeByte(VERSION);
+        out.writeByte(group);
+        out.writeByte(flags);
+        if (more != 0) {
+            out.writeByte(more);
+        }
+        if ((flags & FLAG_MASTER) != 0) {
+            writeAddress(out, masterAddress, flags);
+        }
+        if ((flags & FLAG_SENDER) != 0) {
+            writeAddress(out, selfAddress, flags);
+        }
+        if ((flags & FLAG_DELAY) != 0) {
+            out.writeShort(delay < 0xFFFF ? delay : 0xFFFF);
+        }
+        if ((flags & FLAG_INTERVAL) != 0) {
+            out.writeShort(interval < 0xFFFF ? interval : 0xFFFF);
+        }
+        if ((flags & FLAG_ROUTE) != 0) {
+            out.writeByte(seq);
+            out.writeByte(hops);
+        }
+        if ((more & MORE_CHANNEL) != 0) {
+            out.writeByte(channel);
+            out.writeShort(channelSwitch < 0xFFFF ? channelSwitch : 0xFFFF);
+        }
+        if ((more & MORE_BACKUP) != 0) {
+            writeAddress(out, backupAddress, flags);
+        }
+        if ((more & MORE_REPORT) != 0) {
+            writeAddress(out, parentAddress, flags);
+            health.writeTo(out);
+        }
+    }
+
+    /**
+     * Read the header of a packet.
+     *
+     * @returns true if the rest is a packet of this version for the group,
+     *          to be read by {@link #readBody}
+     */
+    public static boolean readHeader(DataInput in, int group) throws IOException {
+        return in.readByte() == HotaruNode.PACKET_MAGIC_NUMBER && in.readUnsignedByte() == VERSION &&
+                in.readUnsignedByte() == group;
+    }
+
+    /**
+     * Decode a packet of any group into this object.
+     *
+     * @returns false if the packet is not a Hotaru packet of this version
+     */
+    public boolean readFrom(DataInput in) throws IOException {
+        if (in.readByte() != HotaruNode.PACKET_MAGIC_NUMBER || in.readUnsignedByte() != VERSION) {
+            return false;
+        }
+        group = in.readUnsignedByte();
+        return readBody(in);
+    }
+
+    /**
+     * Decode what follows the header; the caller sets the group.
+     */
+    boolean readBody(DataInput in) throws IOException {
+        int flags = in.readUnsignedByte();
+        int more = (flags & FLAG_MORE) != 0 ? in.readUnsignedByte() : 0;
+        masterState = (flags & FLAG_STATE) != 0 ? 1 : 0;
+        masterAddress = (flags & FLAG_MASTER) != 0 ? readAddress(in, flags) : 0;
+        selfAddress = (flags & FLAG_SENDER) != 0 ? readAddress(in, flags) : masterAddress;
+        delay = (flags & FLAG_DELAY) != 0 ? in.readUnsignedShort() : 0;
+        interval = (flags & FLAG_INTERVAL) != 0 ? in.readUnsignedShort() : 0;
+        if ((flags & FLAG_ROUTE) != 0) {
+            seq = in.readUnsignedByte();
+            hops = in.readUnsignedByte();
+        } else {
+            seq = 0;
+            hops = NO_ROUTE;
+        }
+        if ((more & MORE_CHANNEL) != 0) {
+            channel = in.readUnsignedByte();
+            channelSwitch = in.readUnsignedShort();
+        } else {
+            channel = 0;
+            channelSwitch = 0;
+        }
+        backupAddress = (more & MORE_BACKUP) != 0 ? readAddress(in, flags) : 0;
+        if ((more & MORE_REPORT) != 0) {
+            parentAddress = readAddress(in, flags);
+            health.readFrom(in);
+        } else {
+            parentAddress = 0;
+            health.clear();
+        }
+        return true;
+    }
+
+    private static boolean isShort(long address) {
+        return (address & PREFIX_MASK) == SPOT_ADDRESS_PREFIX;
+    }
+
+    private static void writeAddress(DataOutput out, long address, int flags) throws IOException {
+        if ((flags & FLAG_LONG_ADDRESS) != 0) {
+            out.writeLong(address);
+        } else {
+            out.writeInt((int) address);
+        }
+    }
+
+    private static long readAddress(DataInput in, int flags) throws IOException {
+        if ((flags & FLAG_LONG_ADDRESS) != 0) {
+            return in.readLong();
+        }
+        return SPOT_ADDRESS_PREFIX | (in.readInt() & 0xFFFFFFFFL);
+    }
+
+    public String toString() {
+        return "Wisper(" + (group != 0 ? "group: " + group + ", " : "") +
+                "master: " + HotaruNode.toDottedHex(masterAddress) +
+                ", sender: " + HotaruNode.toDottedHex(selfAddress) +
+                ", state: " + masterState +
+                ", delay: " + delay +
+                ", interval: " + interval +
+                ", seq: " + seq +
+                ", hops: " + hops +
+                (channel != 0 ? ", channel: " + channel + " in " + channelSwitch : "") +
+                (backupAddress != 0 ? ", backup: " + HotaruNode.toDottedHex(backupAddress) : "") +
+                (parentAddress != 0 ? ", parent: " + HotaruNode.toDottedHex(parentAddress) + ", " + health : "") +
+                ")";
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import org.sunspotworld.hal.LedColor;
+import org.sunspotworld.hal.TriColorLed;
+
+/**
+ * Frame buffer in front of a row of LEDs.
+ *<p>
+ * The LEDs returned by {@link #getLeds()} only record what they are told.
+ * {@link #flush()} then pushes to the real LEDs just the colors and on/off
+ * states that differ from what they show. The color of an LED that is off
+ * is not pushed until it is turned on.
+ */
+class LedFrame {
+
+    private final TriColorLed[] device;
+    private final BufferedLed[] leds;
+    /**
+     * Bit i is set when LED i may differ from the device.
+     */
+    private int dirty;
+
+    LedFrame(TriColorLed[] device) {
+        this.device = device;
+        this.leds = new BufferedLed[device.length];
+        for (int i = 0; i < leds.length; i++) {
+            leds[i] = new BufferedLed(i);
+        }
+        this.dirty = (1 << device.length) - 1;
+    }
+
+    TriColorLed[] getLeds() {
+        return leds;
+    }
+
+    boolean isDirty() {
+        return dirty != 0;
+    }
+
+    /**
+     * Push the changed LEDs to the device.
+     *
+     * @returns the number of LEDs written to
+     */
+    int flush() {
+        int written = 0;
+        int d = dirty;
+        dirty = 0;
+        for (int i = 0; d != 0; i++, d >>>= 1) {
+            if ((d & 1) != 0 && leds[i].push(device[i])) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    private class BufferedLed implements TriColorLed {
+
+        private final int bit;
+        private int rgb = 0;
+        private boolean on = false;
+        private int shownRgb = -1;          // unknown
+        private int shownOn = -1;           // unknown, 0 or 1
+
+        BufferedLed(int index) {
+            this.bit = 1 << index;
+        }
+
+        public void setColor(LedColor color) {
+            setRGB(color.red(), color.green(), color.blue());
+        }
+
+        public void setRGB(int red, int green, int blue) {
+            int value = (red & 0xFF) << 16 | (green & 0xFF) << 8 | (blue & 0xFF);
+            if (value != rgb) {
+                rgb = value;
+                dirty |= bit;
+            }
+        }
+
+        public void setOn() {
+            setOn(true);
+        }
+
+        public void setOff() {
+            setOn(false);
+        }
+
+        public void setOn(boolean on) {
+            if (on != this.on) {
+                this.on = on;
+                dirty |= bit;
+            }
+        }
+
+        public boolean isOn() {
+            return on;
+        }
+
+        /**
+         * @returns true if the device LED was written to
+         */
+        boolean push(TriColorLed led) {
+            boolean written = false;
+            if (on && rgb != shownRgb) {
+                led.setRGB(rgb >> 16, (rgb >> 8) & 0xFF, rgb & 0xFF);
+                shownRgb = rgb;
+                written = true;
+            }
+            int state = on ? 1 : 0;
+            if (state != shownOn) {
+                led.setOn(on);
+                shownOn = state;
+                written = true;
+            }
+            return written;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import java.io.PrintStream;
+import org.sunspotworld.hal.Clock;
+
+/**
+ * Log of binary records, formatted later on a low priority thread.
+ *<p>
+ * A record is a level, an event code, the local time, up to three numbers
+ * and optionally an object; nothing is turned into text when it is
+ * written. Records go into a preallocated ring of CAPACITY entries, the
+ * oldest being overwritten, so writing never waits for the console. Writes
+ * below the log level return after one comparison.
+ *<p>
+ * The drain thread prints new records to System.out as "[h:m:s.ms] LEVEL
+ * message". It lives from {@link #start} to {@link #stop}, at the lowest
+ * priority, waiting on the ring between records, so a write only has to
+ * notify it. Records written while it is not running stay in the ring and
+ * are printed once it starts, unless overwritten first. {@link #dump}
+ * prints every record still in the ring.
+ */
+class Log {
+
+    static final int CAPACITY = 64;
+    // Event codes, the index into TEMPLATES
+    static final int TEXT = 0;
+    static final int STOPPING = 1;
+    static final int NEW_STRATEGY = 2;
+    static final int PAUSED = 3;
+    static final int PACKET_RATE = 4;
+    static final int BEACON_INTERVAL = 5;
+    static final int PERIOD = 6;
+    static final int SYNC_MASTER = 7;
+    static final int TIMEOUT = 8;
+    static final int CLOCK_SKEW = 9;
+    static final int OPEN_FAILED = 10;
+    static final int REOPENING = 11;
+    static final int MIGRATION = 12;
+    static final int CHANNEL = 13;
+    static final int WARM_START = 14;
+    static final int LOAD_FAILED = 15;
+    static final int SAVE_FAILED = 16;
+    /**
+     * Message of each event code: %s is the object, %a, %b and %c the
+     * numbers, %x the first number as an IEEE address and %t the first
+     * number as a connection name.
+     */
+    private static final String[] TEMPLATES = {
+        "%s",
+        "Stopping: %s",
+        "New Strategy:",
+        "Paused",
+        "Packets/s: %a",
+        "Beacon interval :%a-%b(ms)",
+        "Period :%a(ms)",
+        "Sync Master :%x",
+        "Timeout :%a(ms)",
+        "Clock skew :%a(ppm)",
+        "Cannot open %t connection: %s",
+        "Reopening %t connection: %s",
+        "Moving to channel %a in %b(ms)",
+        "Channel :%a",
+        "Warm start, master :%x",
+        "Cannot load saved state: %s",
+        "Cannot save state: %s"
+    };
+    private static final String[] LEVELS = {"DEBUG", "INFO", "WARN", "ERROR"};
+    private final Clock clock;
+    private volatile int level = HotaruNode.INFO;
+    // The ring; record n is at n % CAPACITY
+    private final byte[] levels = new byte[CAPACITY];
+    private final short[] events = new short[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private final long[] as = new long[CAPACITY];
+    private final long[] bs = new long[CAPACITY];
+    private final long[] cs = new long[CAPACITY];
+    private final Object[] subjects = new Object[CAPACITY];
+    private long written = 0;
+    private long printed = 0;
+    private Thread drainer;
+
+    Log(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Start the drain thread, unless it is running already.
+     */
+    synchronized void start() {
+        if (drainer != null) {
+            return;
+        }
+        drainer = new Thread() {
+
+            public void run() {
+                drain(this);
+            }
+        };
+        drainer.setPriority(Thread.MIN_PRIORITY);
+        drainer.start();
+    }
+
+    /**
+     * Make the drain thread end once it has printed what is in the ring.
+     */
+    synchronized void stop() {
+        drainer = null;
+        notify();
+    }
+
+    void setLevel(int level) {
+        this.level = level;
+    }
+
+    boolean isEnabled(int level) {
+        return level >= this.level;
+    }
+
+    void write(int level, int event) {
+        write(level, event, null, 0, 0, 0);
+    }
+
+    void write(int level, int event, long a) {
+        write(level, event, null, a, 0, 0);
+    }
+
+    void write(int level, int event, long a, long b) {
+        write(level, event, null, a, b, 0);
+    }
+
+    void write(int level, int event, Object subject) {
+        write(level, event, subject, 0, 0, 0);
+    }
+
+    void write(int level, int event, Object subject, long a) {
+        write(level, event, subject, a, 0, 0);
+    }
+
+    void write(int level, int event, Object subject, long a, long b, long c) {
+        if (level < this.level) {
+            return;
+        }
+        long time = clock.currentTimeMillis();
+        synchronized (this) {
+            int i = (int) (written % CAPACITY);
+            levels[i] = (byte) level;
+            events[i] = (short) event;
+            times[i] = time;
+            as[i] = a;
+            bs[i] = b;
+            cs[i] = c;
+            subjects[i] = subject;
+            written++;
+            notify();
+        }
+    }
+
+    private void drain(Thread self) {
+        StringBuffer sb = new StringBuffer(80);
+        while (true) {
+            long n;
+            long lost = 0;
+            synchronized (this) {
+                while (printed == written) {
+                    if (drainer != self) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) { /* ignore */ }
+                }
+                if (written - printed > CAPACITY) {
+                    lost = written - printed - CAPACITY;
+                    printed = written - CAPACITY;
+                }
+                n = printed++;
+            }
+            if (lost > 0) {
+                System.out.println("... " + lost + " records lost");
+            }
+            sb.setLength(0);
+            if (format(n, sb)) {
+                System.out.println(sb.toString());
+            }
+        }
+    }
+
+    /**
+     * Print every record still in the ring.
+     */
+    void dump(PrintStream out) {
+        long first;
+        long last;
+        synchronized (this) {
+            last = written;
+            first = Math.max(0, last - CAPACITY);
+        }
+        StringBuffer sb = new StringBuffer(80);
+        for (long n = first; n < last; n++) {
+            sb.setLength(0);
+            if (format(n, sb)) {
+                out.println(sb.toString());
+            }
+        }
+    }
+
+    /**
+     * Format record n, unless it was overwritten in the meantime.
+     */
+    private boolean format(long n, StringBuffer sb) {
+        int lvl;
+        int event;
+        long time;
+        long a;
+        long b;
+        long c;
+        Object subject;
+        synchronized (this) {
+            if (written - n > CAPACITY) {
+                return false;
+            }
+            int i = (int) (n % CAPACITY);
+            lvl = levels[i];
+            event = events[i];
+            time = times[i];
+            a = as[i];
+            b = bs[i];
+            c = cs[i];
+            subject = subjects[i];
+        }
+        sb.append('[').append(time / 3600000 % 24).append(':').append(time / 60000 % 60).append(':').append(time / 1000 % 60).append('.').append(time % 1000).append("] ");
+        sb.append(lvl >= 0 && lvl < LEVELS.length ? LEVELS[lvl] : "Level(" + lvl + ")").append("  ");
+        String template = event >= 0 && event < TEMPLATES.length ? TEMPLATES[event] : "Event " + event + " %a %b %c";
+        for (int k = 0; k < template.length(); k++) {
+            char ch = template.charAt(k);
+            if (ch != '%' || k + 1 == template.length()) {
+                sb.append(ch);
+                continue;
+            }
+            switch (template.charAt(++k)) {
+                case 'a':
+                    sb.append(a);
+                    break;
+                case 'b':
+                    sb.append(b);
+                    break;
+                case 'c':
+                    sb.append(c);
+                    break;
+                case 'x':
+                    sb.append(HotaruNode.toDottedHex(a));
+                    break;
+                case 't':
+                    sb.append(a == 0 ? "broadcast" : "listener");
+                    break;
+                case 's':
+                    if (subject instanceof Throwable) {
+                        sb.append(((Throwable) subject).getMessage());
+                    } else {
+                        sb.append(subject);
+                    }
+                    break;
+                default:
+                    sb.append('%').append(template.charAt(k));
+                    break;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import org.sunspotworld.hal.LedColor;
+
+/**
+ * Blinks on its own clock and beacons its blink phase.
+ *<p>
+ * Beacons start at packetPerSecond and slow down, doubling their interval up
+ * to HotaruNode.MAX_BEACON_INTERVAL, while the swarm agrees. A lower master,
+ * or a relay of this node's own beacon blinking more than
+ * PHASE_TOLERANCE_MSEC off this node's phase, brings the rate back up at
+ * once, with the next beacon in this node's TransmitSlots slot so that
+ * masters which heard each other do not answer at the same moment. A
+ * higher master is followed once Strategy.isConfirmedMaster() agrees, and
+ * ignored until then. The relays of a beacon are its echoes for the slots.
+ *<p>
+ * Of the slaves that relay its beacons first hand, the master names the
+ * best connected, by NeighbourTable quality, as its backup in every beacon.
+ * The backup takes over when the master's beacons stop, and the other
+ * slaves follow it without an election; see SlaveStrategy. Another slave
+ * only replaces the backup once it is BACKUP_MARGIN better, so the backup
+ * the slaves know stays the same from beacon to beacon.
+ *<p>
+ * The master's beacons also start the health rounds of HealthReporter,
+ * which end at the master with a summary of the whole swarm.
+ */
+class MasterStrategy extends Strategy {
+
+    int blinkIntervalMsec = 1000;
+    /**
+     * Local time the blinking started; the state flips every blinkIntervalMsec after it.
+     */
+    long epoch;
+    private final BeaconTimer beaconTimer;
+    private int seq = 0;
+    /**
+     * Quality by which a slave has to beat the backup to replace it.
+     */
+    static final int BACKUP_MARGIN = 32;
+    /**
+     * Largest difference, in milliseconds, between the blink phase a relay
+     * carries and the master's own that still counts as agreeing; above
+     * the sync error of a slave several hops out.
+     */
+    static final int PHASE_TOLERANCE_MSEC = 50;
+    private long backup = 0;
+
+    public MasterStrategy(HotaruNode node, int interval) {
+        this(node, interval, node.getClock().currentTimeMillis());
+    }
+
+    /**
+     * @param epoch local time of a flip to state 1 to keep the blink phase of
+     */
+    MasterStrategy(HotaruNode node, int interval, long epoch) {
+        super(node);
+        this.blinkIntervalMsec = interval;
+        this.epoch = epoch;
+        this.beaconTimer = new BeaconTimer(1000 / packetPerSecond, HotaruNode.MAX_BEACON_INTERVAL, epoch);
+        metrics.set(Metrics.HOPS, 0);
+        metrics.set(Metrics.CLOCK_SKEW_PPM, 0);
+    }
+
+    /**
+     * Return the blink state for the current time, starting with 1 at the epoch.
+     */
+    int currentState() {
+        long periods = (node.getClock().currentTimeMillis() - epoch) / blinkIntervalMsec;
+        return (int) ((periods + 1) & 1);
+    }
+
+    protected void recv(HotaruWisper packet) {
+        if (packet.masterAddress > selfAddress) {
+            if (isConfirmedMaster(packet)) {
+                SlaveStrategy.follow(node, packet);
+            }
+            // not confirmed yet: ignore it and keep our rate
+        } else if (packet.masterAddress == selfAddress) {
+            node.getSlots().heard(packet.seq, packet.hops);
+            if (packet.hops == 1) {
+                considerBackup(packet.selfAddress);
+            }
+            if (!isInPhase(packet)) {
+                // a slave blinks out of step; help it catch up
+                beaconTimer.reset(node.getClock().currentTimeMillis(), node.getSlots().offset());
+            }
+        } else if (packet.masterAddress != 0 && packet.masterAddress < selfAddress) {
+            // a lower master that should follow us; let it hear us soon
+            beaconTimer.reset(node.getClock().currentTimeMillis(), node.getSlots().offset());
+        }
+    }
+
+    /**
+     * Return whether the last flip a relay reports lies within
+     * PHASE_TOLERANCE_MSEC of a flip of this node to the same state.
+     */
+    private boolean isInPhase(HotaruWisper packet) {
+        long flip = node.getClock().currentTimeMillis() - packet.delay - SlaveStrategy.LINK_LATENCY_MSEC;
+        long cycle = 2L * blinkIntervalMsec;
+        long offset = ((flip - epoch) % cycle + cycle) % cycle;    // 0 at a flip to state 1
+        long error = offset - (packet.masterState == 1 ? 0 : blinkIntervalMsec);
+        if (error > blinkIntervalMsec) {
+            error -= cycle;
+        } else if (error <= -blinkIntervalMsec) {
+            error += cycle;
+        }
+        return Math.abs(error) <= PHASE_TOLERANCE_MSEC;
+    }
+
+    /**
+     * Name a slave that heard a beacon first hand as backup if it is
+     * connected better than the one named so far.
+     */
+    private void considerBackup(long slave) {
+        if (node.getFailoverBeacons() == 0 || slave == backup) {
+            return;
+        }
+        long now = node.getClock().currentTimeMillis();
+        NeighbourTable neighbours = node.getNeighbours();
+        int quality = neighbours.getQuality(slave, now);
+        int current = backup != 0 ? neighbours.getQuality(backup, now) : 0;
+        if (quality > 0 && (current == 0 || quality >= current + BACKUP_MARGIN)) {
+            backup = slave;
+        }
+    }
+
+    /**
+     * Return the backup to name, dropping one gone from the neighbour table.
+     */
+    private long currentBackup(long now) {
+        if (backup != 0 && node.getNeighbours().getQuality(backup, now) == 0) {
+            backup = 0;
+        }
+        return backup;
+    }
+
+    /**
+     * Called every xmitInterval(): keeps the LEDs on the blink schedule and
+     * sends a beacon when one is due.
+     */
+    protected HotaruWisper createWisper() {
+        long now = node.getClock().currentTimeMillis();
+        int state = currentState();
+        if (state != node.getHotaruState()) {
+            node.setHotaruState(state);
+        }
+        if (!beaconTimer.isDue(now)) {
+            return null;
+        }
+        HotaruWisper wisp = xmitWisper;
+        wisp.clear();
+        wisp.masterAddress = selfAddress;
+        wisp.masterState = state;
+        wisp.selfAddress = selfAddress;
+        wisp.delay = (int) ((now - epoch) % blinkIntervalMsec);
+        wisp.interval = beaconTimer.beaconSent(now);
+        wisp.backupAddress = currentBackup(now);
+        node.getNeighbours().pin(NeighbourTable.PIN_BACKUP, wisp.backupAddress);
+        if (node.getMaxHops() > 0) {
+            wisp.seq = seq;
+            wisp.hops = 0;
+            node.getSlots().sent(seq, 0, node.getMaxHops());
+            node.getHealth().masterBeacon(seq, wisp.interval, now);
+            seq = (seq + 1) & 0xFF;
+        }
+        return wisp;
+    }
+
+    protected void onRecvTimeout() {
+    }
+
+    protected boolean isQuietFor(long now, long msec) {
+        return beaconTimer.timeUntilDue(now) > msec;
+    }
+
+    /**
+     * Wake up for the next flip or the next beacon, whichever comes first.
+     */
+    protected long xmitInterval() {
+        long now = node.getClock().currentTimeMillis();
+        long toFlip = blinkIntervalMsec - (now - epoch) % blinkIntervalMsec;
+        return Math.max(1, Math.min(toFlip, beaconTimer.timeUntilDue(now)));
+    }
+
+    public void printInfo() {
+        Log log = node.getLog();
+        log.write(HotaruNode.INFO, Log.TEXT, this.getName());
+        log.write(HotaruNode.INFO, Log.BEACON_INTERVAL, beaconTimer.getMinInterval(), beaconTimer.getMaxInterval());
+    }
+
+    public String getName() {
+        return "Master";
+    }
+
+    public LedColor getStatusColor() {
+        return LedColor.ORANGE;
+    }
+
+    public long getMasterAddress() {
+        return selfAddress;
+    }
+
+    long getEpoch(long now) {
+        return epoch;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Fixed size set of counters, gauges and histograms of a node.
+ *<p>
+ * Histograms have BUCKETS power of two buckets: bucket 0 counts zeros,
+ * bucket k values from 2^(k-1) up to 2^k - 1, and the last bucket every
+ * larger value. Each value is written by one thread only, so updates take
+ * no lock; a reader may see a snapshot that is a few updates apart.
+ *<p>
+ * Over the radio, a query is the magic number, version, OP_QUERY and the
+ * IEEE address of the node to answer, or 0 for all. Each node answers with
+ * one reply per section: magic number, version, OP_REPLY, its address,
+ * the section number, a count and that many ints. Section 0 holds the
+ * counters, section 1 the gauges and section 2 + i histogram i, so that
+ * each reply fits a radiogram. Readers ignore values they do not know, so
+ * sections can grow.
+ */
+public class Metrics {
+
+    // Counters
+    public static final int PACKETS_SENT = 0;
+    public static final int PACKETS_RECEIVED = 1;
+    public static final int DECODE_REJECTS = 2;
+    public static final int RECV_TIMEOUTS = 3;
+    public static final int STRATEGY_CHANGES = 4;
+    public static final int RX_QUEUE_DROPS = 5;
+    public static final int TX_BUSY = 6;
+    public static final int CHANNEL_SWITCHES = 7;
+    public static final int FOREIGN_PACKETS = 8;
+    public static final int RESLOTS = 9;
+    public static final int REPORTS_SENT = 10;
+    public static final int COUNTERS = 11;
+    // Gauges
+    public static final int MASTER_MSEC = 0;
+    public static final int CLOCK_SKEW_PPM = 1;
+    public static final int HOPS = 2;
+    public static final int FREE_MEMORY = 3;
+    public static final int NEIGHBOURS = 4;
+    public static final int RX_ON_PERMILLE = 5;
+    public static final int CHANNEL = 6;
+    public static final int CHANNEL_NOISE = 7;
+    public static final int BATTERY_MV = 8;
+    // Health of the whole swarm, at the master
+    public static final int SWARM_NODES = 9;
+    public static final int SWARM_SYNC_MEAN = 10;
+    public static final int SWARM_SYNC_MAX = 11;
+    public static final int SWARM_LOSS_PERMILLE = 12;
+    public static final int SWARM_BATTERY_MIN = 13;
+    public static final int GAUGES = 14;
+    // Histograms, in milliseconds
+    public static final int BEACON_GAP = 0;
+    public static final int SYNC_ERROR = 1;
+    public static final int FAILOVER = 2;
+    public static final int HISTOGRAMS = 3;
+    public static final int BUCKETS = 16;
+    public static final int SECTIONS = 2 + HISTOGRAMS;
+    // Query protocol
+    public static final byte PACKET_MAGIC = 0x4D;
+    public static final int PACKET_VERSION = 2;
+    public static final int OP_QUERY = 0;
+    public static final int OP_REPLY = 1;
+    private static final String[] COUNTER_NAMES = {
+        "Packets sent", "Packets received", "Decode rejects", "Receive timeouts",
+        "Strategy changes", "Receive queue drops", "Channel busy", "Channel switches",
+        "Foreign packets", "Re-slots", "Health reports sent"
+    };
+    private static final String[] GAUGE_NAMES = {
+        "Time as master (ms)", "Clock skew (ppm)", "Hops from master", "Free memory",
+        "Neighbours", "Receiver on (permille)", "Channel", "Channel noise (permille)",
+        "Battery (mV)", "Swarm nodes", "Swarm sync error mean (ms)", "Swarm sync error max (ms)",
+        "Swarm beacon loss (permille)", "Swarm battery min (mV)"
+    };
+    private static final String[] HISTOGRAM_NAMES = {
+        "Beacon gap (ms)", "Sync error (ms)", "Failover (ms)"
+    };
+    private final long[] counters = new long[COUNTERS];
+    private final long[] gauges = new long[GAUGES];
+    private final int[][] histograms = new int[HISTOGRAMS][BUCKETS];
+
+    void count(int counter) {
+        counters[counter]++;
+    }
+
+    void set(int gauge, long value) {
+        gauges[gauge] = value;
+    }
+
+    void record(int histogram, long value) {
+        histograms[histogram][bucketOf(value)]++;
+    }
+
+    public long getCounter(int counter) {
+        return counters[counter];
+    }
+
+    public long getGauge(int gauge) {
+        return gauges[gauge];
+    }
+
+    public int getBucket(int histogram, int bucket) {
+        return histograms[histogram][bucket];
+    }
+
+    static int bucketOf(long value) {
+        int bucket = 0;
+        while (value > 0 && bucket < BUCKETS - 1) {
+            value >>>= 1;
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * Return the smallest value counted in a bucket.
+     */
+    public static long bucketLow(int bucket) {
+        return bucket == 0 ? 0 : 1L << (bucket - 1);
+    }
+
+    /**
+     * Make this a copy of another set.
+     */
+    public void copyFrom(Metrics other) {
+        System.arraycopy(other.counters, 0, counters, 0, COUNTERS);
+        System.arraycopy(other.gauges, 0, gauges, 0, GAUGES);
+        for (int h = 0; h < HISTOGRAMS; h++) {
+            System.arraycopy(other.histograms[h], 0, histograms[h], 0, BUCKETS);
+        }
+    }
+
+    /**
+     * Add the counters and histograms of another node. Of the gauges the
+     * time as master is added up and the others keep the worst value, the
+     * channel and the swarm node count the highest; a free memory,
+     * neighbour count or battery voltage of 0 counts as unknown.
+     */
+    public void add(Metrics other) {
+        for (int i = 0; i < COUNTERS; i++) {
+            counters[i] += other.counters[i];
+        }
+        gauges[MASTER_MSEC] += other.gauges[MASTER_MSEC];
+        if (Math.abs(other.gauges[CLOCK_SKEW_PPM]) > Math.abs(gauges[CLOCK_SKEW_PPM])) {
+            gauges[CLOCK_SKEW_PPM] = other.gauges[CLOCK_SKEW_PPM];
+        }
+        gauges[HOPS] = Math.max(gauges[HOPS], other.gauges[HOPS]);
+        gauges[RX_ON_PERMILLE] = Math.max(gauges[RX_ON_PERMILLE], other.gauges[RX_ON_PERMILLE]);
+        gauges[CHANNEL] = Math.max(gauges[CHANNEL], other.gauges[CHANNEL]);
+        gauges[CHANNEL_NOISE] = Math.max(gauges[CHANNEL_NOISE], other.gauges[CHANNEL_NOISE]);
+        minNonZero(other, FREE_MEMORY);
+        minNonZero(other, NEIGHBOURS);
+        minNonZero(other, BATTERY_MV);
+        gauges[SWARM_NODES] = Math.max(gauges[SWARM_NODES], other.gauges[SWARM_NODES]);
+        gauges[SWARM_SYNC_MEAN] = Math.max(gauges[SWARM_SYNC_MEAN], other.gauges[SWARM_SYNC_MEAN]);
+        gauges[SWARM_SYNC_MAX] = Math.max(gauges[SWARM_SYNC_MAX], other.gauges[SWARM_SYNC_MAX]);
+        gauges[SWARM_LOSS_PERMILLE] = Math.max(gauges[SWARM_LOSS_PERMILLE], other.gauges[SWARM_LOSS_PERMILLE]);
+        minNonZero(other, SWARM_BATTERY_MIN);
+        for (int h = 0; h < HISTOGRAMS; h++) {
+            for (int b = 0; b < BUCKETS; b++) {
+                histograms[h][b] += other.histograms[h][b];
+            }
+        }
+    }
+
+    private void minNonZero(Metrics other, int gauge) {
+        long value = other.gauges[gauge];
+        if (value != 0 && (gauges[gauge] == 0 || value < gauges[gauge])) {
+            gauges[gauge] = value;
+        }
+    }
+
+    /**
+     * Write a query for the node with the given address, 0 for all nodes.
+     */
+    public static void writeQuery(DataOutput out, long address) throws IOException {
+        out.writeByte(PACKET_MAGIC);
+        out.writeByte(PACKET_VERSION);
+        out.writeByte(OP_QUERY);
+        out.writeLong(address);
+    }
+
+    /**
+     * Read a query.
+     *
+     * @returns the address asked for, 0 for all, or -1 if not a query
+     */
+    static long readQuery(DataInput in) throws IOException {
+        if (in.readByte() != PACKET_MAGIC || in.readUnsignedByte() != PACKET_VERSION || in.readUnsignedByte() != OP_QUERY) {
+            return -1;
+        }
+        return in.readLong();
+    }
+
+    /**
+     * Write one reply section for the node with the given address.
+     */
+    public void writeReply(DataOutput out, long address, int section) throws IOException {
+        out.writeByte(PACKET_MAGIC);
+        out.writeByte(PACKET_VERSION);
+        out.writeByte(OP_REPLY);
+        out.writeLong(address);
+        out.writeByte(section);
+        if (section == 0) {
+            out.writeByte(COUNTERS);
+            for (int i = 0; i < COUNTERS; i++) {
+                out.writeInt((int) counters[i]);
+            }
+        } else if (section == 1) {
+            out.writeByte(GAUGES);
+            for (int i = 0; i < GAUGES; i++) {
+                out.writeInt((int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, gauges[i])));
+            }
+        } else {
+            int[] h = histograms[section - 2];
+            out.writeByte(BUCKETS);
+            for (int b = 0; b < BUCKETS; b++) {
+                out.writeInt(h[b]);
+            }
+        }
+    }
+
+    /**
+     * Read one reply section into this object.
+     *
+     * @returns the address of the node that replied, or -1 if not a reply
+     */
+    public long readReply(DataInput in) throws IOException {
+        if (in.readByte() != PACKET_MAGIC || in.readUnsignedByte() != PACKET_VERSION || in.readUnsignedByte() != OP_REPLY) {
+            return -1;
+        }
+        long address = in.readLong();
+        int section = in.readUnsignedByte();
+        int n = in.readUnsignedByte();
+        for (int i = 0; i < n; i++) {
+            int value = in.readInt();
+            if (section == 0) {
+                if (i < COUNTERS) {
+                    counters[i] = value & 0xFFFFFFFFL;
+                }
+            } else if (section == 1) {
+                if (i < GAUGES) {
+                    gauges[i] = value;
+                }
+            } else if (section - 2 < HISTOGRAMS && i < BUCKETS) {
+                histograms[section - 2][i] = value;
+            }
+        }
+        return address;
+    }
+
+    public void print(PrintStream out) {
+        for (int i = 0; i < COUNTERS; i++) {
+            out.println(COUNTER_NAMES[i] + ": " + counters[i]);
+        }
+        for (int i = 0; i < GAUGES; i++) {
+            out.println(GAUGE_NAMES[i] + ": " + gauges[i]);
+        }
+        for (int h = 0; h < HISTOGRAMS; h++) {
+            StringBuffer sb = new StringBuffer(HISTOGRAM_NAMES[h]).append(':');
+            for (int b = 0; b < BUCKETS; b++) {
+                if (histograms[h][b] != 0) {
+                    sb.append(' ').append(bucketLow(b)).append(b == BUCKETS - 1 ? "+" : "").append('=').append(histograms[h][b]);
+                }
+            }
+            out.println(sb.toString());
+        }
+    }
+}
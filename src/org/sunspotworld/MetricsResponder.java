@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Random;
+import org.sunspotworld.hal.RadioConnection;
+import org.sunspotworld.hal.RadioPacket;
+import org.sunspotworld.hal.RadioTimeoutException;
+
+/**
+ * Answers metrics queries on their own radiogram port, see {@link Metrics}.
+ *<p>
+ * Runs on its own thread. When a query is for all nodes, the reply is held
+ * back a random time of up to REPLY_WINDOW_MSEC so that a whole swarm does
+ * not answer at once.
+ */
+class MetricsResponder implements Runnable {
+
+    private static final int REPLY_WINDOW_MSEC = 2000;
+    private static final int REOPEN_DELAY = 1000;
+    private final HotaruNode node;
+    private final String port;
+    private final Random random;
+    private volatile boolean running = true;
+    private volatile RadioConnection rxConn;
+
+    MetricsResponder(HotaruNode node, String port) {
+        this.node = node;
+        this.port = port;
+        this.random = new Random(node.getAddress());
+    }
+
+    public void run() {
+        RadioConnection txConn = null;
+        RadioPacket query = null;
+        RadioPacket reply = null;
+        long self = node.getAddress();
+        while (running) {
+            try {
+                if (rxConn == null) {
+                    rxConn = node.getPlatform().openListener(port);
+                    query = rxConn.newPacket();
+                    txConn = node.getPlatform().openBroadcast(port);
+                    txConn.setMaxBroadcastHops(1);
+                    reply = txConn.newPacket();
+                }
+                query.reset();
+                rxConn.receive(query);
+                long address = Metrics.readQuery(query.getInput());
+                if (address != 0 && address != self) {
+                    continue;
+                }
+                if (address == 0) {
+                    node.getClock().sleep(random.nextInt(REPLY_WINDOW_MSEC));
+                }
+                Metrics metrics = node.getMetrics();
+                for (int section = 0; section < Metrics.SECTIONS; section++) {
+                    reply.reset();
+                    metrics.writeReply(reply.getOutput(), self, section);
+                    txConn.send(reply);
+                }
+            } catch (RadioTimeoutException ex) {
+                // keep listening
+            } catch (EOFException ex) {
+                // too short for a query
+            } catch (IOException ex) {
+                if (!running) {
+                    break;
+                }
+                close();
+                if (txConn != null) {
+                    try {
+                        txConn.close();
+                    } catch (IOException e) {
+                    }
+                    txConn = null;
+                }
+                pause(REOPEN_DELAY);
+            } catch (InterruptedException ex) {
+                // answer the next query
+            }
+        }
+        if (txConn != null) {
+            try {
+                txConn.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void pause(long time) {
+        try {
+            node.getClock().sleep(time);
+        } catch (InterruptedException ex) { /* ignore */ }
+    }
+
+    private void close() {
+        RadioConnection conn = rxConn;
+        rxConn = null;
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * Make the thread end; wakes it up if it is waiting for a query.
+     */
+    void stop() {
+        running = false;
+        close();
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+/**
+ * The nodes this node hears and how well, keyed by IEEE address.
+ *<p>
+ * A fixed open addressing table: addresses are kept in a long array probed
+ * linearly, and the link figures in parallel int arrays, so updating and
+ * looking up neither allocate nor box. Address 0 marks an empty slot. The
+ * table holds up to CAPACITY neighbours in twice as many slots; when a new
+ * one arrives in a full table, the neighbours not heard for MAX_AGE_MSEC
+ * are dropped, or failing that the worst connected one that is not pinned.
+ * The strategies pin the neighbours whose quality they go by: the master,
+ * the backup and the parent of the health round.
+ *<p>
+ * RSSI and link quality are exponential moving averages over about eight
+ * packets. The loss rate comes from the gaps in the beacon sequence numbers
+ * of neighbours that are masters, so it stays 0 for other neighbours.
+ * Only the event loop may use a table.
+ */
+class NeighbourTable {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    /**
+     * Most neighbours kept; half the slots, so probe sequences stay short.
+     */
+    static final int CAPACITY = SLOTS / 2;
+    /**
+     * Milliseconds after which a neighbour not heard counts as gone.
+     */
+    static final int MAX_AGE_MSEC = 30000;
+    /**
+     * Loss rates are in parts per LOSS_SCALE.
+     */
+    static final int LOSS_SCALE = 1000;
+    private static final int AVERAGE_SHIFT = 3;         // weight 1/8
+    private static final int FIXED_SHIFT = 4;           // averages keep 4 fraction bits
+    private static final int MAX_GAP = 16;
+    // Roles of pinned neighbours
+    static final int PIN_MASTER = 0;
+    static final int PIN_BACKUP = 1;
+    static final int PIN_PARENT = 2;
+    private static final int PINS = 3;
+    private final long[] pins = new long[PINS];
+    private final long[] keys = new long[SLOTS];
+    private final int[] rssi = new int[SLOTS];
+    private final int[] linkQuality = new int[SLOTS];
+    private final int[] loss = new int[SLOTS];
+    private final int[] lastSeq = new int[SLOTS];
+    private final int[] packets = new int[SLOTS];
+    private final long[] lastHeard = new long[SLOTS];
+    private int size;
+
+    private static int hash(long address) {
+        int h = (int) (address ^ (address >>> 32)) * 0x9E3779B9;
+        return h >>> (32 - SLOT_BITS);
+    }
+
+    /**
+     * Return the slot of an address, or -1 if it is not in the table.
+     */
+    int find(long address) {
+        if (address == 0) {
+            return -1;
+        }
+        for (int i = hash(address); ; i = (i + 1) & (SLOTS - 1)) {
+            if (keys[i] == address) {
+                return i;
+            }
+            if (keys[i] == 0) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Record a packet from a neighbour.
+     *
+     * @param seq the beacon sequence number if the neighbour sent it as
+     *     master, otherwise -1
+     * @returns the slot of the neighbour
+     */
+    int heard(long address, int rssiDbm, int quality, int seq, long now) {
+        if (address == 0) {
+            return -1;
+        }
+        int i = find(address);
+        if (i < 0) {
+            if (size >= CAPACITY) {
+                makeRoom(now);
+            }
+            i = hash(address);
+            while (keys[i] != 0) {
+                i = (i + 1) & (SLOTS - 1);
+            }
+            keys[i] = address;
+            rssi[i] = rssiDbm << FIXED_SHIFT;
+            linkQuality[i] = quality << FIXED_SHIFT;
+            loss[i] = 0;
+            lastSeq[i] = seq;
+            packets[i] = 1;
+            lastHeard[i] = now;
+            size++;
+            return i;
+        }
+        rssi[i] += ((rssiDbm << FIXED_SHIFT) - rssi[i]) >> AVERAGE_SHIFT;
+        linkQuality[i] += ((quality << FIXED_SHIFT) - linkQuality[i]) >> AVERAGE_SHIFT;
+        if (seq >= 0) {
+            if (lastSeq[i] >= 0) {
+                int gap = (seq - lastSeq[i]) & 0xFF;
+                if (gap == 0 || gap >= 128) {
+                    return i;                           // a copy, or out of order
+                }
+                for (int k = Math.min(gap, MAX_GAP) - 1; k > 0; k--) {
+                    loss[i] += (LOSS_SCALE - loss[i]) >> AVERAGE_SHIFT;
+                }
+                loss[i] -= loss[i] >> AVERAGE_SHIFT;
+            }
+            lastSeq[i] = seq;
+        }
+        if (packets[i] < Integer.MAX_VALUE) {
+            packets[i]++;
+        }
+        lastHeard[i] = now;
+        return i;
+    }
+
+    /**
+     * Keep the neighbour in the given role, PIN_MASTER, PIN_BACKUP or
+     * PIN_PARENT, when making room; 0 for none.
+     */
+    void pin(int role, long address) {
+        pins[role] = address;
+    }
+
+    /**
+     * Pin no neighbour.
+     */
+    void unpin() {
+        for (int k = 0; k < PINS; k++) {
+            pins[k] = 0;
+        }
+    }
+
+    private boolean isPinned(long address) {
+        for (int k = 0; k < PINS; k++) {
+            if (pins[k] == address) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop the neighbours gone for MAX_AGE_MSEC, or if none are the worst
+     * connected one not pinned, of those the one heard least recently.
+     */
+    private void makeRoom(long now) {
+        int worst = -1;
+        int worstQuality = 0;
+        boolean stale = false;
+        for (int i = 0; i < SLOTS; i++) {
+            if (keys[i] == 0) {
+                continue;
+            }
+            if (now - lastHeard[i] > MAX_AGE_MSEC) {
+                stale = true;
+                break;
+            }
+            if (isPinned(keys[i])) {
+                continue;
+            }
+            int quality = getQuality(i);
+            if (worst < 0 || quality < worstQuality || (quality == worstQuality && lastHeard[i] < lastHeard[worst])) {
+                worst = i;
+                worstQuality = quality;
+            }
+        }
+        if (stale) {
+            expire(now);
+        } else if (worst >= 0) {
+            remove(worst);
+        }
+    }
+
+    /**
+     * Drop the neighbours not heard for MAX_AGE_MSEC.
+     */
+    void expire(long now) {
+        int i = 0;
+        while (i < SLOTS) {
+            if (keys[i] != 0 && now - lastHeard[i] > MAX_AGE_MSEC) {
+                remove(i);                              // may move another entry into i
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Empty a slot, moving later entries of the probe sequence back so that
+     * every entry stays reachable from its home slot.
+     */
+    private void remove(int slot) {
+        keys[slot] = 0;
+        size--;
+        int hole = slot;
+        for (int i = (slot + 1) & (SLOTS - 1); keys[i] != 0; i = (i + 1) & (SLOTS - 1)) {
+            int home = hash(keys[i]);
+            // move i into the hole unless its home lies cyclically in (hole, i]
+            if (((i - home) & (SLOTS - 1)) >= ((i - hole) & (SLOTS - 1))) {
+                keys[hole] = keys[i];
+                rssi[hole] = rssi[i];
+                linkQuality[hole] = linkQuality[i];
+                loss[hole] = loss[i];
+                lastSeq[hole] = lastSeq[i];
+                packets[hole] = packets[i];
+                lastHeard[hole] = lastHeard[i];
+                keys[i] = 0;
+                hole = i;
+            }
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < SLOTS; i++) {
+            keys[i] = 0;
+        }
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Return the first used slot at or after the given one, or -1. Slots
+     * are only stable until the next change of the table.
+     */
+    int next(int slot) {
+        for (int i = slot; i < SLOTS; i++) {
+            if (keys[i] != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    long getAddress(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Return the average RSSI in dBm.
+     */
+    int getRssi(int slot) {
+        return rssi[slot] >> FIXED_SHIFT;
+    }
+
+    /**
+     * Return the average link quality indication, 0-255.
+     */
+    int getLinkQuality(int slot) {
+        return linkQuality[slot] >> FIXED_SHIFT;
+    }
+
+    /**
+     * Return the share of the neighbour's beacons lost, in parts per LOSS_SCALE.
+     */
+    int getLoss(int slot) {
+        return loss[slot];
+    }
+
+    int getPackets(int slot) {
+        return packets[slot];
+    }
+
+    long getLastHeard(int slot) {
+        return lastHeard[slot];
+    }
+
+    /**
+     * Return how well a neighbour is connected, 0-255: its link quality
+     * scaled down by its loss rate. Unknown neighbours and those gone for
+     * MAX_AGE_MSEC score 0.
+     */
+    int getQuality(long address, long now) {
+        int i = find(address);
+        if (i < 0 || now - lastHeard[i] > MAX_AGE_MSEC) {
+            return 0;
+        }
+        return getQuality(i);
+    }
+
+    private int getQuality(int slot) {
+        return getLinkQuality(slot) * (LOSS_SCALE - loss[slot]) / LOSS_SCALE;
+    }
+}
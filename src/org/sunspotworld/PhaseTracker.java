@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+/**
+ * Estimates when a remote clock flips its LEDs, in local time.
+ *<p>
+ * Each beacon gives one observation: the local time at which the master
+ * flipped and the state it flipped to. Flips are numbered from the first
+ * observation and a least squares line is fitted through the last SAMPLES
+ * of them, so the slope is the master's flip period as seen by the local
+ * clock. That takes out the drift between the two clocks, and the LEDs can
+ * be flipped on the local clock for long stretches between beacons.
+ */
+class PhaseTracker {
+
+    static final int SAMPLES = 8;
+    /**
+     * Largest believable difference in clock rate, in parts per million.
+     */
+    static final int MAX_SKEW_PPM = 500;
+    private final int period;
+    private final long[] times = new long[SAMPLES];
+    private final long[] flips = new long[SAMPLES];
+    private int count = 0;
+    private int next = 0;
+    /**
+     * Local time and state of flip number 0.
+     */
+    private long base;
+    private int baseState;
+    /**
+     * Fitted local time of flip k: base + intercept + k * slope.
+     */
+    private double slope;
+    private double intercept;
+
+    /**
+     * @param period the master's nominal milliseconds between flips
+     */
+    PhaseTracker(int period) {
+        this.period = period;
+        this.slope = period;
+    }
+
+    boolean isSynced() {
+        return count > 0;
+    }
+
+    void reset() {
+        count = 0;
+    }
+
+    /**
+     * Record that the master flipped to the given state at the given local
+     * time. An observation that does not fit the estimate, such as after the
+     * master restarted, starts a new one.
+     *
+     * @returns how many milliseconds the observation was off the estimate,
+     * or -1 if it started a new one
+     */
+    long addFlip(long time, int state) {
+        if (count > 0) {
+            double f = (time - base - intercept) / slope;
+            long k = (long) Math.floor(f + 0.5);
+            double error = time - base - (intercept + k * slope);
+            if (Math.abs(error) < period / 4 && (baseState ^ (int) (k & 1)) == state) {
+                times[next] = time - base;
+                flips[next] = k;
+                next = (next + 1) % SAMPLES;
+                if (count < SAMPLES) {
+                    count++;
+                }
+                fit();
+                return (long) Math.abs(error);
+            }
+        }
+        base = time;
+        baseState = state;
+        times[0] = 0;
+        flips[0] = 0;
+        count = 1;
+        next = 1;
+        slope = period;
+        intercept = 0;
+        return -1;
+    }
+
+    private void fit() {
+        double mx = 0;
+        double my = 0;
+        for (int i = 0; i < count; i++) {
+            mx += flips[i];
+            my += times[i];
+        }
+        mx /= count;
+        my /= count;
+        double sxx = 0;
+        double sxy = 0;
+        for (int i = 0; i < count; i++) {
+            double dx = flips[i] - mx;
+            sxx += dx * dx;
+            sxy += dx * (times[i] - my);
+        }
+        double s = period;
+        if (sxx > 0) {
+            s = sxy / sxx;
+            double limit = (double) period * MAX_SKEW_PPM / 1000000;
+            if (Math.abs(s - period) > limit) {
+                s = period;         // too few flips apart to tell, or noise
+            }
+        }
+        slope = s;
+        intercept = my - s * mx;
+    }
+
+    /**
+     * Return the number of the last flip at or before the given time.
+     */
+    private long flipAt(long now) {
+        return (long) Math.floor((now - base - intercept) / slope);
+    }
+
+    private long timeOf(long k) {
+        return base + (long) Math.floor(intercept + k * slope + 0.5);
+    }
+
+    int stateAt(long now) {
+        return baseState ^ (int) (flipAt(now) & 1);
+    }
+
+    /**
+     * Return milliseconds since the last flip.
+     */
+    long sinceFlip(long now) {
+        return Math.max(0, now - timeOf(flipAt(now)));
+    }
+
+    /**
+     * Return milliseconds until the next flip.
+     */
+    long untilFlip(long now) {
+        return timeOf(flipAt(now) + 1) - now;
+    }
+
+    /**
+     * Return how much faster the local clock runs than the master's, in
+     * parts per million.
+     */
+    int getSkewPpm() {
+        return (int) ((slope - period) * 1000000 / period);
+    }
+}
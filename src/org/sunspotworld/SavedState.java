@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * What a node keeps in its {@link org.sunspotworld.hal.Storage} to come
+ * back after a reboot without a new election.
+ *<p>
+ * Layout:
+ *<pre>
+ *   byte     MAGIC
+ *   byte     VERSION
+ *   ubyte    group
+ *   ubyte    sync mode
+ *   ubyte    channel
+ *   ubyte    transmit power, 0-32
+ *   ubyte    transmit slot
+ *   long     master
+ *   long     epoch      local time of a flip to state 1, -1 if none
+ *   long     saved      local time of the save
+ *</pre>
+ * The group and the sync mode are not restored but checked: a node
+ * deployed into another swarm starts afresh. The epoch only counts while
+ * the clock keeps running across the reboot, that is while the clock is
+ * past the time of the save.
+ */
+class SavedState {
+
+    static final byte MAGIC = 0x53;
+    static final int VERSION = 1;
+    int group;
+    int syncMode;
+    int channel;
+    int power;
+    int slot;
+    long master;
+    long epoch = -1;
+    long saved;
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(group);
+            out.writeByte(syncMode);
+            out.writeByte(channel);
+            out.writeByte(power);
+            out.writeByte(slot);
+            out.writeLong(master);
+            out.writeLong(epoch);
+            out.writeLong(saved);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex.getMessage());    // not from a byte array
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a saved record into this object.
+     *
+     * @returns false if it is not a record of this version
+     */
+    boolean fromBytes(byte[] data) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readByte() != MAGIC || in.readUnsignedByte() != VERSION) {
+                return false;
+            }
+            group = in.readUnsignedByte();
+            syncMode = in.readUnsignedByte();
+            channel = in.readUnsignedByte();
+            power = in.readUnsignedByte();
+            slot = in.readUnsignedByte();
+            master = in.readLong();
+            epoch = in.readLong();
+            saved = in.readLong();
+        } catch (IOException ex) {
+            return false;                       // truncated
+        }
+        return true;
+    }
+
+    /**
+     * Return whether saving this state instead of another is worth the
+     * flash wear; the epoch only moves with the clock drift, so it alone
+     * is not.
+     */
+    boolean differsFrom(SavedState other) {
+        return group != other.group || syncMode != other.syncMode || channel != other.channel ||
+                power != other.power || slot != other.slot || master != other.master ||
+                (epoch < 0) != (other.epoch < 0);
+    }
+
+    void copyFrom(SavedState other) {
+        group = other.group;
+        syncMode = other.syncMode;
+        channel = other.channel;
+        power = other.power;
+        slot = other.slot;
+        master = other.master;
+        epoch = other.epoch;
+        saved = other.saved;
+    }
+}
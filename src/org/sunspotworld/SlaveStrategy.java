@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import org.sunspotworld.hal.LedColor;
+
+/**
+ * Follows the blink phase of a master.
+ *<p>
+ * Each beacon tells how long ago the master last flipped and when its next
+ * beacon is due. A PhaseTracker turns the beacons into the master's flip
+ * times on the local clock, drift included, and in between the slave flips
+ * on its own clock, so beacons can be far apart. The master is given up
+ * after the longer of slaveTimeout and the time its next three beacons take;
+ * the slave then becomes a CandidateStrategy that keeps the old blink phase.
+ *<p>
+ * Failover is faster when the master names a backup in its beacons. The
+ * backup gives the master up once HotaruNode.getFailoverBeacons() of its
+ * beacons are missing and becomes master at once, on the old blink phase;
+ * it always relays, so the master keeps hearing it, and does not power
+ * its receiver down, so it cannot sleep through beacons. A slave that hears
+ * the backup announce follows it without waiting for confirmation, well
+ * before its own timeout. The time from the old master's last beacon to
+ * either is recorded as Metrics.FAILOVER.
+ *<p>
+ * Slaves relay each new beacon of their master with the hop count raised by
+ * one, up to HotaruNode.getMaxHops(), so nodes out of the master's range stay
+ * in phase. The relay goes out in the node's TransmitSlots slot, within
+ * RELAY_WINDOW_MSEC, and is dropped if RELAY_REDUNDANCY copies of the beacon
+ * were heard by then. Later copies from farther away echo it. Since the delay field is computed when the relay is
+ * sent, only the link latency, LINK_LATENCY_MSEC per hop, is left to correct.
+ *<p>
+ * Slaves take part in the health rounds of HealthReporter: the copy of a
+ * beacon with the fewest hops names the parent, and sync errors and beacon
+ * sequence numbers go to the reporter.
+ *<p>
+ * On a duty cycled node the slave powers the receiver down once its beacons
+ * are at least MIN_SLEEP_INTERVAL_MSEC apart. It wakes for a window around
+ * the next beacon, announced by the last one: GUARD_MSEC either side, plus
+ * RELAY_WINDOW_MSEC per hop for the relay delays and one more afterwards
+ * for the relays of its neighbours. Each empty window doubles
+ * the guard, and the expected gap too, as the master's beacon timer would.
+ * After MAX_MISSES empty windows in a row the lock is lost and the receiver
+ * stays on until a beacon comes in again.
+ */
+class SlaveStrategy extends Strategy {
+
+    /**
+     * Master IEEE Address
+     */
+    private long syncingMasterAddr;
+    private long lastReceiveTime;
+    private long slaveTimeout = 3000; // 3sec
+    private final PhaseTracker phase = new PhaseTracker(HotaruNode.BLINK_INTERVAL);
+    private int announcedInterval;
+    private long lastBeaconTime = -1;
+    /**
+     * Backup named in the master's latest beacon, 0 if none.
+     */
+    private long backupAddr = 0;
+    /**
+     * Milliseconds a relay may be held back to spread out the relays.
+     */
+    private static final int RELAY_WINDOW_MSEC = TransmitSlots.WINDOW_MSEC;
+    /**
+     * Copies of a beacon after which relaying it adds nothing.
+     */
+    private static final int RELAY_REDUNDANCY = 3;
+    /**
+     * Time from a sender computing its delay field to the packet being
+     * received: airtime of a short frame plus the radio stack on both sides.
+     */
+    static final int LINK_LATENCY_MSEC = 2;
+    private boolean haveSeq = false;
+    private int lastSeq;
+    private int acceptedHops;
+    private int copies;
+    private boolean relayPending = false;
+    private long relayDue;
+    /**
+     * Shortest beacon gap worth powering the receiver down for.
+     */
+    static final int MIN_SLEEP_INTERVAL_MSEC = 1000;
+    /**
+     * Listening time either side of an expected beacon, before misses and
+     * relay delays widen it.
+     */
+    static final int GUARD_MSEC = 10;
+    static final int MAX_GUARD_MSEC = 1000;
+    static final int MAX_MISSES = 2;
+    private long expectedBeacon = -1;           // -1: not locked, keep listening
+    private int expectedGap;
+    private int expectedHops;
+    private int guard = GUARD_MSEC;
+    private int misses;
+
+    public SlaveStrategy(HotaruNode node, long syncingMasterIEEEAddress) {
+        super(node);
+        this.syncingMasterAddr = syncingMasterIEEEAddress;
+        this.lastReceiveTime = node.getClock().currentTimeMillis();
+    }
+
+    /**
+     * Switch the node to follow the master of the given beacon, starting
+     * from the phase in that beacon.
+     */
+    static void follow(HotaruNode node, HotaruWisper packet) {
+        SlaveStrategy slave = new SlaveStrategy(node, packet.masterAddress);
+        node.setStrategy(slave);
+        slave.recv(packet);
+    }
+
+    public String getName() {
+        return "Slave";
+    }
+
+    protected void recv(HotaruWisper packet) {
+        if (backupAddr != 0 && packet.masterAddress == backupAddr) {
+            // the backup took over
+            metrics.record(Metrics.FAILOVER, node.getClock().currentTimeMillis() - lastReceiveTime);
+            follow(node, packet);
+        } else if (packet.masterAddress > this.syncingMasterAddr) {
+            if (isConfirmedMaster(packet)) {
+                follow(node, packet);
+            }
+        } else if (packet.masterAddress == this.syncingMasterAddr) {
+            long now = node.getClock().currentTimeMillis();
+            NeighbourTable neighbours = node.getNeighbours();
+            neighbours.pin(NeighbourTable.PIN_MASTER, packet.masterAddress);
+            neighbours.pin(NeighbourTable.PIN_BACKUP, packet.backupAddress);
+            if (packet.hops == HotaruWisper.NO_ROUTE) {
+                backupAddr = packet.backupAddress;
+                newBeacon(packet, now);
+                adopt(packet, now);
+                expectBeacon(packet, now);
+                updateReceiver(now);
+                return;
+            }
+            int age = (packet.seq - lastSeq) & 0xFF;
+            if (haveSeq && age == 0) {
+                copies++;
+                node.getSlots().heard(packet.seq, packet.hops);
+                node.getHealth().offered(packet.seq, packet.hops + 1, packet.selfAddress);
+                if (packet.hops < acceptedHops) {
+                    acceptedHops = packet.hops;     // fewer hops, less error
+                    metrics.set(Metrics.HOPS, packet.hops + 1);
+                    adopt(packet, now);
+                }
+                return;
+            }
+            if (haveSeq && age >= 128) {
+                return;                             // an old beacon still going round
+            }
+            haveSeq = true;
+            node.getSlots().settle();
+            newBeacon(packet, now);
+            lastSeq = packet.seq;
+            backupAddr = packet.backupAddress;
+            acceptedHops = packet.hops;
+            copies = 1;
+            adopt(packet, now);
+            node.getHealth().beacon(packet.seq, packet.hops + 1, packet.selfAddress, packet.interval, now);
+            expectBeacon(packet, now);
+            if (packet.hops < node.getMaxHops()) {
+                relayPending = true;
+                relayDue = now + node.getSlots().offset();
+                node.requestTransmit();
+            }
+            updateReceiver(now);
+        }
+    }
+
+    private void newBeacon(HotaruWisper packet, long now) {
+        if (lastBeaconTime >= 0) {
+            metrics.record(Metrics.BEACON_GAP, now - lastBeaconTime);
+        }
+        lastBeaconTime = now;
+        metrics.set(Metrics.HOPS, packet.hops == HotaruWisper.NO_ROUTE ? 1 : packet.hops + 1);
+    }
+
+    private void adopt(HotaruWisper packet, long now) {
+        long error = phase.addFlip(now - packet.delay - LINK_LATENCY_MSEC, packet.masterState);
+        if (error >= 0) {
+            metrics.record(Metrics.SYNC_ERROR, error);
+            node.getHealth().syncError(error);
+        }
+        metrics.set(Metrics.CLOCK_SKEW_PPM, phase.getSkewPpm());
+        this.announcedInterval = packet.interval;
+        node.setHotaruState(phase.stateAt(now));
+        this.lastReceiveTime = now;
+    }
+
+    /**
+     * Plan the listening window for the beacon after this new one.
+     */
+    private void expectBeacon(HotaruWisper packet, long now) {
+        if (!node.isDutyCycled() || packet.interval < MIN_SLEEP_INTERVAL_MSEC || backupAddr == selfAddress) {
+            expectedBeacon = -1;
+            return;
+        }
+        expectedBeacon = now + packet.interval;
+        expectedGap = packet.interval;
+        expectedHops = packet.hops == HotaruWisper.NO_ROUTE ? 0 : packet.hops;
+        guard = GUARD_MSEC;
+        misses = 0;
+    }
+
+    /**
+     * Return the start of the listening window: the first copy of a beacon
+     * may come in earlier by the relay delays it had.
+     */
+    private long windowOpen() {
+        return expectedBeacon - guard - expectedHops * RELAY_WINDOW_MSEC;
+    }
+
+    /**
+     * Return the end of the listening window, which also takes in the
+     * relays of the next hop in case the beacon itself was lost.
+     */
+    private long windowClose() {
+        return expectedBeacon + guard + (expectedHops + 1) * RELAY_WINDOW_MSEC;
+    }
+
+    /**
+     * Power the receiver up inside the listening window, while a relay is
+     * pending so that its copies are counted, while health reports of
+     * children may come in, and whenever not locked.
+     */
+    private void updateReceiver(long now) {
+        if (expectedBeacon >= 0 && now > windowClose()) {
+            misses++;                           // the window passed empty
+            if (misses >= MAX_MISSES) {
+                expectedBeacon = -1;
+            } else {
+                guard = Math.min(guard * 2, MAX_GUARD_MSEC);
+                expectedGap = Math.min(expectedGap * 2, HotaruNode.MAX_BEACON_INTERVAL);
+                expectedBeacon += expectedGap;
+            }
+        }
+        boolean listen = expectedBeacon < 0 || relayPending || now >= windowOpen() ||
+                node.getHealth().isListening(now);
+        node.setRxOn(listen);
+    }
+
+    /**
+     * Return the milliseconds until the receiver has to be switched, or
+     * Long.MAX_VALUE if it stays on.
+     */
+    private long untilReceiverChange(long now) {
+        if (expectedBeacon < 0) {
+            return Long.MAX_VALUE;
+        }
+        long open = windowOpen();
+        return now < open ? open - now : windowClose() + 1 - now;
+    }
+
+    /**
+     * Called every xmitInterval(): keeps the LEDs on the master's schedule,
+     * the receiver on its schedule and sends a pending relay.
+     */
+    protected HotaruWisper createWisper() {
+        long now = node.getClock().currentTimeMillis();
+        updateReceiver(now);
+        if (!phase.isSynced()) {
+            return null;
+        }
+        int state = phase.stateAt(now);
+        if (state != node.getHotaruState()) {
+            node.setHotaruState(state);
+        }
+        if (!relayPending || now < relayDue) {
+            return null;
+        }
+        relayPending = false;
+        updateReceiver(now);
+        if (copies >= RELAY_REDUNDANCY && backupAddr != selfAddress) {
+            return null;
+        }
+        HotaruWisper wisp = xmitWisper;
+        wisp.clear();
+        wisp.masterAddress = syncingMasterAddr;
+        wisp.selfAddress = selfAddress;
+        wisp.masterState = state;
+        wisp.delay = (int) phase.sinceFlip(now);
+        wisp.interval = announcedInterval;
+        wisp.seq = lastSeq;
+        wisp.hops = acceptedHops + 1;
+        wisp.backupAddress = backupAddr;
+        if (expectedBeacon < 0) {
+            node.getSlots().sent(lastSeq, wisp.hops, node.getMaxHops());  // asleep, it would miss the echoes
+        }
+        node.getHealth().relayed(lastSeq);
+        return wisp;
+    }
+
+    /**
+     * Wake up for the next flip, the pending relay or the next change of
+     * the receiver.
+     */
+    protected long xmitInterval() {
+        if (!phase.isSynced()) {
+            return super.xmitInterval();
+        }
+        long now = node.getClock().currentTimeMillis();
+        long next = Math.min(phase.untilFlip(now), untilReceiverChange(now));
+        if (relayPending) {
+            next = Math.min(next, relayDue - now);
+        }
+        return Math.max(1, next);
+    }
+
+    /**
+     * Quiet until the listening window opens; without a lock, until the
+     * announced beacon could come in, less the relay delays.
+     */
+    protected boolean isQuietFor(long now, long msec) {
+        if (relayPending || !phase.isSynced()) {
+            return false;
+        }
+        long next = expectedBeacon >= 0 ? windowOpen()
+                : lastReceiveTime + announcedInterval - GUARD_MSEC - (acceptedHops + 1) * RELAY_WINDOW_MSEC;
+        return now + msec < next;
+    }
+
+    protected void onRecvTimeout() {
+        long now = node.getClock().currentTimeMillis();
+        int failover = node.getFailoverBeacons();
+        if (backupAddr == selfAddress && failover > 0 && phase.isSynced() &&
+                now - lastReceiveTime > untilBeacon(failover)) {
+            // Take over from the master, on its blink phase
+            metrics.record(Metrics.FAILOVER, now - lastReceiveTime);
+            node.setStrategy(new MasterStrategy(node, HotaruNode.BLINK_INTERVAL, getEpoch(now)));
+            node.requestTransmit();
+            return;
+        }
+        long timeout = Math.max(slaveTimeout, untilBeacon(3));
+        if (now - lastReceiveTime > timeout) {
+            // Stand for master, keeping the blink phase we had
+            node.setStrategy(new CandidateStrategy(node, HotaruNode.BLINK_INTERVAL, getEpoch(now)));
+        }
+    }
+
+    /**
+     * Return the local time of the master's last flip to state 1, or -1
+     * without a blink phase.
+     */
+    long getEpoch(long now) {
+        if (!phase.isSynced()) {
+            return -1;
+        }
+        long epoch = now - phase.sinceFlip(now);
+        if (phase.stateAt(now) == 0) {
+            epoch -= HotaruNode.BLINK_INTERVAL;
+        }
+        return epoch;
+    }
+
+    /**
+     * Time from the last beacon to the given one after it. The master
+     * doubles its beacon interval up to MAX_BEACON_INTERVAL, so after a lost
+     * beacon the next one comes later than the announced interval suggests.
+     */
+    private long untilBeacon(int beacons) {
+        long total = 0;
+        long gap = announcedInterval;
+        for (int i = 0; i < beacons; i++) {
+            total += gap;
+            gap = Math.min(2 * gap, HotaruNode.MAX_BEACON_INTERVAL);
+        }
+        return total + (acceptedHops + 1) * RELAY_WINDOW_MSEC;
+    }
+
+    public void printInfo() {
+        super.printInfo();
+        Log log = node.getLog();
+        log.write(HotaruNode.INFO, Log.SYNC_MASTER, syncingMasterAddr);
+        log.write(HotaruNode.INFO, Log.TIMEOUT, slaveTimeout);
+        log.write(HotaruNode.INFO, Log.CLOCK_SKEW, phase.getSkewPpm());
+    }
+
+    public LedColor getStatusColor() {
+        return LedColor.GREEN;
+    }
+
+    public long getMasterAddress() {
+        return syncingMasterAddr;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import java.io.IOException;
+import org.sunspotworld.hal.Led;
+import org.sunspotworld.hal.LedColor;
+import org.sunspotworld.hal.RadioConnection;
+import org.sunspotworld.hal.RadioPacket;
+
+abstract class Strategy {
+
+    // Fields
+    protected final HotaruNode node;
+    protected Led greenLed;
+    protected Led redLed;
+    protected int packetPerSecond = 5;
+    protected boolean isHaltRequested = false;
+    protected long selfAddress;
+    /**
+     * Reused by createWisper() so that sending does not allocate.
+     */
+    protected final HotaruWisper xmitWisper = new HotaruWisper();
+    protected final Metrics metrics;
+    /**
+     * Lowest NeighbourTable quality of a link a new master is followed over.
+     */
+    static final int MIN_LINK_QUALITY = 96;
+    /**
+     * Packets of a higher master needed before it is followed.
+     */
+    static final int FOLLOW_CONFIRMATIONS = 2;
+    /**
+     * Milliseconds within which the confirmations have to arrive.
+     */
+    static final int FOLLOW_WINDOW_MSEC = 3 * HotaruNode.MAX_BEACON_INTERVAL;
+    private long challenger = 0;
+    private int challengerPackets;
+    private long challengerHeard;
+
+    protected Strategy(HotaruNode node) {
+        this.node = node;
+        this.greenLed = node.getPlatform().getGreenLed();
+        this.redLed = node.getPlatform().getRedLed();
+        this.selfAddress = node.getPlatform().getRadioPolicy().getIEEEAddress();
+        this.metrics = node.metrics;
+    }
+
+    // Abstract methods
+    public abstract String getName();
+
+    protected abstract void recv(HotaruWisper packet);
+
+    protected abstract void onRecvTimeout();
+
+    protected abstract HotaruWisper createWisper();
+
+    public abstract LedColor getStatusColor();
+
+    /**
+     * Return the IEEE address of the master this strategy follows.
+     */
+    public abstract long getMasterAddress();
+
+    /**
+     * Return the local time of a flip to state 1 of the blinking this
+     * strategy keeps, or -1 if it has no blink phase.
+     */
+    long getEpoch(long now) {
+        return -1;
+    }
+
+    public void printInfo() {
+        Log log = node.getLog();
+        log.write(HotaruNode.INFO, Log.TEXT, this.getName());
+        log.write(HotaruNode.INFO, Log.PACKET_RATE, packetPerSecond);
+    }
+
+    /**
+     * Handle one received packet.
+     */
+    public void receive(RadioPacket rdg) throws IOException {
+        HotaruWisper packet = node.decodePacket(rdg);
+        if (packet != null) {
+            handle(packet);
+        }
+    }
+
+    /**
+     * Handle one decoded packet: note its sender, then hand a health report
+     * to the reporter, the same for every strategy, and anything else to
+     * {@link #recv}.
+     */
+    void handle(HotaruWisper packet) {
+        node.heard(packet);
+        if (packet.parentAddress != 0) {
+            node.getHealth().received(packet);
+        } else {
+            this.recv(packet);
+        }
+    }
+
+    /**
+     * Handle a receive that timed out after {@link #recvTimeout()}.
+     */
+    public void receiveTimedOut() {
+        metrics.count(Metrics.RECV_TIMEOUTS);
+        this.onRecvTimeout();
+    }
+
+    /**
+     * Send one packet, if this strategy has anything to send.
+     *
+     * @returns whether a packet was sent
+     */
+    public boolean transmit(RadioConnection conn, RadioPacket xdg) throws IOException {
+        greenLed.setOn();
+        xdg.reset();
+        HotaruWisper wisp = createWisper();
+        if (wisp != null) {
+            wisp.group = node.getGroup();
+            node.addChannelSwitch(wisp);
+            wisp.writeTo(xdg.getOutput());
+            conn.send(xdg);
+            metrics.count(Metrics.PACKETS_SENT);
+            this.onXmitComplete(wisp);
+        }
+        greenLed.setOff();
+        return wisp != null;
+    }
+
+    public void halt() {
+        this.isHaltRequested = true;
+    }
+
+    protected long xmitInterval() {
+        return 1000 / packetPerSecond;
+    }
+
+    protected long recvTimeout() {
+        return 1000 / packetPerSecond - 5;
+    }
+
+    protected void onXmitComplete(HotaruWisper packet) {
+    }
+
+    /**
+     * Return whether the node may leave its channel for the given
+     * milliseconds from now without missing a packet this strategy waits
+     * for or has to send.
+     */
+    protected boolean isQuietFor(long now, long msec) {
+        return false;
+    }
+
+    /**
+     * Return whether the sender of a packet is connected well enough for
+     * the master it reports to be followed. A beacon heard over a poor
+     * link is also relayed by the better connected neighbours, so waiting
+     * for one of those keeps the node from following a master it will
+     * soon lose again. Without relaying every sender is good enough.
+     */
+    protected boolean isWellConnected(HotaruWisper packet) {
+        if (node.getMaxHops() == 0) {
+            return true;
+        }
+        long now = node.getClock().currentTimeMillis();
+        return node.getNeighbours().getQuality(packet.selfAddress, now) >= MIN_LINK_QUALITY;
+    }
+
+    /**
+     * Return whether to give up the current master, or being master, for
+     * the higher master a packet reports. For hysteresis a master is only
+     * followed after FOLLOW_CONFIRMATIONS of its packets, relayed copies
+     * included, came in over well connected links within FOLLOW_WINDOW_MSEC
+     * of each other. A still higher master starts the count over.
+     */
+    protected boolean isConfirmedMaster(HotaruWisper packet) {
+        if (!isWellConnected(packet)) {
+            return false;
+        }
+        long now = node.getClock().currentTimeMillis();
+        boolean fresh = challenger != 0 && now - challengerHeard <= FOLLOW_WINDOW_MSEC;
+        if (fresh && packet.masterAddress == challenger) {
+            challengerPackets++;
+        } else if (!fresh || packet.masterAddress > challenger) {
+            challenger = packet.masterAddress;
+            challengerPackets = 1;
+        } else {
+            return false;                       // lower than the one being confirmed
+        }
+        challengerHeard = now;
+        return challengerPackets >= FOLLOW_CONFIRMATIONS;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld;
+
+import java.util.Random;
+
+/**
+ * Slot of a node for the transmissions many nodes make at the same moment:
+ * the relays of a beacon, and the beacons of masters that just heard each
+ * other.
+ *<p>
+ * Such a transmission goes out in one of SLOTS slots of SLOT_MSEC after the
+ * event that triggered it. The slot is hashed from the node's address, so
+ * nodes that boot together are spread out from the start and, unlike
+ * with a fresh random delay every time, the same nodes go first every
+ * round; the relays they send tell the others to stay quiet.
+ *<p>
+ * A node that shares its slot with a neighbour collides with it every
+ * round. It notices by the missing echo: nobody passes its transmission on.
+ * Only a transmission that could have been echoed counts: one that may be
+ * relayed again, sent while a node farther away was heard in the last
+ * FARTHER_ROUNDS rounds. At the edge of the swarm, at the hop limit or at
+ * a master without slaves nothing comes back and the slot is kept.
+ * After MAX_MISSES such transmissions in a row without an echo it moves to
+ * another slot, hashed again or, with random backoff, a random number of
+ * slots later within a window that doubles with every move.
+ *<p>
+ * Only the event loop may use the slots.
+ */
+class TransmitSlots {
+
+    static final int SLOTS = 24;
+    static final int SLOT_MSEC = 2;
+    static final int WINDOW_MSEC = SLOTS * SLOT_MSEC;
+    static final int MAX_MISSES = 2;
+    static final int FARTHER_ROUNDS = 4;
+    private final long address;
+    private final Metrics metrics;
+    private boolean randomBackoff = false;
+    private Random random;
+    private int slot;
+    private int generation = 0;
+    private int window = 2;
+    private int misses = 0;
+    private boolean pending = false;            // a transmission waits for its echo
+    private int pendingSeq;
+    private int pendingHops;
+    private boolean echoed;
+    private boolean echoable;
+    private int farther = 0;                    // rounds left in which a farther node counts as heard
+
+    TransmitSlots(long address, Metrics metrics) {
+        this.address = address;
+        this.metrics = metrics;
+        this.slot = hash(address, 0);
+    }
+
+    private static int hash(long address, int generation) {
+        long h = (address + generation * 0x9E3779B97F4A7C15L) * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 29;
+        return (int) ((h >>> 33) % SLOTS);
+    }
+
+    /**
+     * Move on a miss by a random number of slots instead of a new hash.
+     */
+    void setRandomBackoff(boolean randomBackoff) {
+        this.randomBackoff = randomBackoff;
+    }
+
+    /**
+     * Return the milliseconds from the triggering event to this node's slot.
+     */
+    int offset() {
+        return slot * SLOT_MSEC;
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    /**
+     * Go back to a slot used before, one that was found free.
+     */
+    void setSlot(int slot) {
+        if (slot >= 0 && slot < SLOTS) {
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * Note a transmission of beacon seq, carrying the given hop count, and
+     * settle the one before it. Nodes relay copies with fewer than maxHops
+     * hops only.
+     */
+    void sent(int seq, int hops, int maxHops) {
+        settle();
+        pending = true;
+        pendingSeq = seq;
+        pendingHops = hops;
+        echoed = false;
+        echoable = hops < maxHops && farther > 0;
+    }
+
+    /**
+     * Note a copy of beacon seq. It is an echo of the pending transmission
+     * when it comes from farther away, that is when it was passed on.
+     */
+    void heard(int seq, int hops) {
+        if (pending && hops > pendingHops) {
+            farther = FARTHER_ROUNDS;
+            if (seq == pendingSeq) {
+                echoed = true;
+            }
+        }
+    }
+
+    /**
+     * The round of the pending transmission is over: count it as a miss
+     * if it could have been echoed and was not.
+     */
+    void settle() {
+        if (!pending) {
+            return;
+        }
+        pending = false;
+        if (farther > 0) {
+            farther--;
+        }
+        if (echoed) {
+            misses = 0;
+            window = 2;
+        } else if (!echoable) {
+            misses = 0;
+        } else if (++misses >= MAX_MISSES) {
+            misses = 0;
+            reslot();
+        }
+    }
+
+    private void reslot() {
+        if (randomBackoff) {
+            if (random == null) {
+                random = new Random(address);
+            }
+            slot = (slot + 1 + random.nextInt(window)) % SLOTS;
+            window = Math.min(window * 2, SLOTS);
+        } else {
+            slot = hash(address, ++generation);
+        }
+        metrics.count(Metrics.RESLOTS);
+    }
+}
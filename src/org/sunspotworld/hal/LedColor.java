@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.hal;
+
+/**
+ * Immutable RGB value for a {@link TriColorLed}.
+ */
+public final class LedColor {
+
+    public static final LedColor RED = new LedColor(255, 0, 0);
+    public static final LedColor GREEN = new LedColor(0, 255, 0);
+    public static final LedColor BLUE = new LedColor(0, 0, 255);
+    public static final LedColor ORANGE = new LedColor(255, 69, 0);
+    public static final LedColor YELLOW = new LedColor(255, 160, 0);
+    public static final LedColor WHITE = new LedColor(255, 255, 255);
+    private final int red;
+    private final int green;
+    private final int blue;
+
+    public LedColor(int red, int green, int blue) {
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+    }
+
+    public int red() {
+        return red;
+    }
+
+    public int green() {
+        return green;
+    }
+
+    public int blue() {
+        return blue;
+    }
+
+    public String toString() {
+        return "LedColor(" + red + ", " + green + ", " + blue + ")";
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.hal;
+
+import java.io.IOException;
+
+/**
+ * Everything a Hotaru node needs from the device it runs on.
+ *<p>
+ * On a SPOT this is backed by the eDemo board and the radio stack, on a host
+ * JVM it can be backed by virtual LEDs and an in-memory radio medium.
+ */
+public interface Platform {
+
+    /**
+     * Return the eight tri-color LEDs on the sensor board.
+     *
+     * @returns LEDs indexed 0 (status) to 7
+     */
+    TriColorLed[] getLeds();
+
+    /**
+     * Return the user switches; index 0 is SW1, index 1 is SW2.
+     *
+     * @returns the switches
+     */
+    Switch[] getSwitches();
+
+    LightSensor getLightSensor();
+
+    Battery getBattery();
+
+    /**
+     * Return the green LED on the main processor board.
+     */
+    Led getGreenLed();
+
+    /**
+     * Return the red LED on the main processor board.
+     */
+    Led getRedLed();
+
+    RadioPolicy getRadioPolicy();
+
+    Clock getClock();
+
+    /**
+     * Return the memory that keeps the node's state across reboots.
+     */
+    Storage getStorage();
+
+    /**
+     * Open a connection that broadcasts on the given port.
+     *
+     * @param port the radiogram port number
+     * @returns the opened connection
+     */
+    RadioConnection openBroadcast(String port) throws IOException;
+
+    /**
+     * Open a connection that listens on the given port.
+     *
+     * @param port the radiogram port number
+     * @returns the opened connection
+     */
+    RadioConnection openListener(String port) throws IOException;
+}
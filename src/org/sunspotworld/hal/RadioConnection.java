@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.hal;
+
+import java.io.IOException;
+
+/**
+ * A radiogram style datagram connection.
+ */
+public interface RadioConnection {
+
+    /**
+     * Allocate a packet large enough for this connection.
+     */
+    RadioPacket newPacket() throws IOException;
+
+    /**
+     * Send a packet.
+     *
+     * @throws RadioBusyException if the channel was too busy to send
+     */
+    void send(RadioPacket packet) throws IOException;
+
+    /**
+     * Block until a packet arrives.
+     *
+     * @param packet the packet to fill
+     * @throws RadioTimeoutException if nothing arrived within the timeout
+     */
+    void receive(RadioPacket packet) throws IOException;
+
+    void setTimeout(long millis) throws IOException;
+
+    void setMaxBroadcastHops(int hops) throws IOException;
+
+    void close() throws IOException;
+}
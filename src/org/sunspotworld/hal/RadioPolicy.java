@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.hal;
+
+/**
+ * Radio settings of the node.
+ */
+public interface RadioPolicy {
+
+    /**
+     * Same as IProprietaryRadio.DEFAULT_CHANNEL.
+     */
+    int DEFAULT_CHANNEL = 26;
+    /**
+     * Same as IRadioPolicyManager.DEFAULT_PAN_ID.
+     */
+    short DEFAULT_PAN_ID = 3;
+
+    void setChannelNumber(int channel);
+
+    void setPanId(short panId);
+
+    /**
+     * Set the transmit power, -32 to 0.
+     */
+    void setOutputPower(int power);
+
+    long getIEEEAddress();
+
+    /**
+     * Power the receiver up or down. While it is down nothing is received
+     * on any connection; sending still works.
+     */
+    void setRxOn(boolean on);
+
+    /**
+     * Sample the energy on the current channel once, as the clear channel
+     * assessment before a send does. The receiver has to be on.
+     *
+     * @returns false if the channel is busy
+     */
+    boolean isChannelClear();
+}
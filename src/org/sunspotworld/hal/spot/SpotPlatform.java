@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.hal.spot;
+
+import com.sun.spot.io.j2me.radiogram.RadiogramConnection;
+import com.sun.spot.peripheral.ILed;
+import com.sun.spot.peripheral.IPowerController;
+import com.sun.spot.peripheral.Spot;
+import com.sun.spot.peripheral.radio.I802_15_4_PHY;
+import com.sun.spot.peripheral.radio.IRadioPolicyManager;
+import com.sun.spot.peripheral.radio.RadioFactory;
+import com.sun.spot.sensorboard.EDemoBoard;
+import com.sun.spot.sensorboard.peripheral.ILightSensor;
+import com.sun.spot.sensorboard.peripheral.ISwitch;
+import com.sun.spot.sensorboard.peripheral.ISwitchListener;
+import com.sun.spot.sensorboard.peripheral.ITriColorLED;
+import java.io.IOException;
+import javax.microedition.io.Connector;
+import org.sunspotworld.hal.Battery;
+import org.sunspotworld.hal.Clock;
+import org.sunspotworld.hal.Led;
+import org.sunspotworld.hal.LedColor;
+import org.sunspotworld.hal.LightSensor;
+import org.sunspotworld.hal.Platform;
+import org.sunspotworld.hal.RadioConnection;
+import org.sunspotworld.hal.RadioPolicy;
+import org.sunspotworld.hal.Storage;
+import org.sunspotworld.hal.Switch;
+import org.sunspotworld.hal.SwitchListener;
+import org.sunspotworld.hal.SystemClock;
+import org.sunspotworld.hal.TriColorLed;
+
+/**
+ * {@link Platform} backed by a real SPOT and its eDemo board.
+ */
+public class SpotPlatform implements Platform {
+
+    private final TriColorLed[] leds;
+    private final Switch[] switches;
+    private final LightSensor light;
+    private final Battery battery;
+    private final Led greenLed;
+    private final Led redLed;
+    private final RadioPolicy radioPolicy;
+    private final Clock clock = new SystemClock();
+    private final Storage storage = new SpotStorage("Hotaru");
+
+    public SpotPlatform() {
+        EDemoBoard board = EDemoBoard.getInstance();
+        ITriColorLED[] boardLeds = board.getLEDs();
+        leds = new TriColorLed[boardLeds.length];
+        for (int i = 0; i < boardLeds.length; i++) {
+            leds[i] = new SpotTriColorLed(boardLeds[i]);
+        }
+        ISwitch[] boardSwitches = board.getSwitches();
+        switches = new Switch[]{
+                    new SpotSwitch(boardSwitches[EDemoBoard.SW1]),
+                    new SpotSwitch(boardSwitches[EDemoBoard.SW2])
+                };
+        light = new SpotLightSensor(board.getLightSensor());
+        battery = new SpotBattery(Spot.getInstance().getPowerController());
+        greenLed = new SpotLed(Spot.getInstance().getGreenLed());
+        redLed = new SpotLed(Spot.getInstance().getRedLed());
+        radioPolicy = new SpotRadioPolicy(Spot.getInstance().getRadioPolicyManager());
+    }
+
+    public TriColorLed[] getLeds() {
+        return leds;
+    }
+
+    public Switch[] getSwitches() {
+        return switches;
+    }
+
+    public LightSensor getLightSensor() {
+        return light;
+    }
+
+    public Battery getBattery() {
+        return battery;
+    }
+
+    public Led getGreenLed() {
+        return greenLed;
+    }
+
+    public Led getRedLed() {
+        return redLed;
+    }
+
+    public RadioPolicy getRadioPolicy() {
+        return radioPolicy;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public RadioConnection openBroadcast(String port) throws IOException {
+        return new SpotRadioConnection((RadiogramConnection) Connector.open("radiogram://broadcast:" + port));
+    }
+
+    public RadioConnection openListener(String port) throws IOException {
+        return new SpotRadioConnection((RadiogramConnection) Connector.open("radiogram://:" + port));
+    }
+
+    private static class SpotLed implements Led {
+
+        private final ILed led;
+
+        SpotLed(ILed led) {
+            this.led = led;
+        }
+
+        public void setOn() {
+            led.setOn();
+        }
+
+        public void setOff() {
+            led.setOff();
+        }
+
+        public void setOn(boolean on) {
+            led.setOn(on);
+        }
+
+        public boolean isOn() {
+            return led.isOn();
+        }
+    }
+
+    private static class SpotTriColorLed implements TriColorLed {
+
+        private final ITriColorLED led;
+
+        SpotTriColorLed(ITriColorLED led) {
+            this.led = led;
+        }
+
+        public void setColor(LedColor color) {
+            led.setRGB(color.red(), color.green(), color.blue());
+        }
+
+        public void setRGB(int red, int green, int blue) {
+            led.setRGB(red, green, blue);
+        }
+
+        public void setOn() {
+            led.setOn();
+        }
+
+        public void setOff() {
+            led.setOff();
+        }
+
+        public void setOn(boolean on) {
+            led.setOn(on);
+        }
+
+        public boolean isOn() {
+            return led.isOn();
+        }
+    }
+
+    private static class SpotSwitch implements Switch {
+
+        private final ISwitch sw;
+
+        SpotSwitch(ISwitch sw) {
+            this.sw = sw;
+        }
+
+        public boolean isClosed() {
+            return sw.isClosed();
+        }
+
+        public void addListener(final SwitchListener listener) {
+            sw.addISwitchListener(new ISwitchListener() {
+
+                public void switchPressed(ISwitch s) {
+                    listener.switchPressed(SpotSwitch.this);
+                }
+
+                public void switchReleased(ISwitch s) {
+                    listener.switchReleased(SpotSwitch.this);
+                }
+            });
+        }
+    }
+
+    private static class SpotLightSensor implements LightSensor {
+
+        private final ILightSensor sensor;
+
+        SpotLightSensor(ILightSensor sensor) {
+            this.sensor = sensor;
+        }
+
+        public int getValue() throws IOException {
+            return sensor.getValue();
+        }
+    }
+
+    private static class SpotBattery implements Battery {
+
+        private final IPowerController power;
+
+        SpotBattery(IPowerController power) {
+            this.power = power;
+        }
+
+        public int getMillivolts() {
+            return power.getVbatt();
+        }
+    }
+
+    private static class SpotRadioPolicy implements RadioPolicy {
+
+        private final IRadioPolicyManager rpm;
+
+        SpotRadioPolicy(IRadioPolicyManager rpm) {
+            this.rpm = rpm;
+        }
+
+        public void setChannelNumber(int channel) {
+            rpm.setChannelNumber(channel);
+        }
+
+        public void setPanId(short panId) {
+            rpm.setPanId(panId);
+        }
+
+        public void setOutputPower(int power) {
+            rpm.setOutputPower(power);
+        }
+
+        public long getIEEEAddress() {
+            return rpm.getIEEEAddress();
+        }
+
+        public void setRxOn(boolean on) {
+            rpm.setRxOn(on);
+        }
+
+        public boolean isChannelClear() {
+            return RadioFactory.getI802_15_4_PHY().plmeCCARequest() == I802_15_4_PHY.IDLE;
+        }
+    }
+}
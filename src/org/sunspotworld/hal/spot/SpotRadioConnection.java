@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.hal.spot;
+
+import com.sun.spot.io.j2me.radiogram.Radiogram;
+import com.sun.spot.io.j2me.radiogram.RadiogramConnection;
+import com.sun.spot.peripheral.ChannelBusyException;
+import com.sun.spot.peripheral.TimeoutException;
+import java.io.IOException;
+import org.sunspotworld.hal.RadioBusyException;
+import org.sunspotworld.hal.RadioConnection;
+import org.sunspotworld.hal.RadioPacket;
+import org.sunspotworld.hal.RadioTimeoutException;
+
+/**
+ * {@link RadioConnection} backed by a {@link RadiogramConnection}.
+ */
+class SpotRadioConnection implements RadioConnection {
+
+    private final RadiogramConnection conn;
+
+    SpotRadioConnection(RadiogramConnection conn) {
+        this.conn = conn;
+    }
+
+    public RadioPacket newPacket() throws IOException {
+        return new SpotRadioPacket((Radiogram) conn.newDatagram(conn.getMaximumLength()));
+    }
+
+    public void send(RadioPacket packet) throws IOException {
+        try {
+            conn.send(((SpotRadioPacket) packet).radiogram);
+        } catch (ChannelBusyException ex) {
+            throw new RadioBusyException(ex.getMessage());
+        }
+    }
+
+    public void receive(RadioPacket packet) throws IOException {
+        try {
+            conn.receive(((SpotRadioPacket) packet).radiogram);
+        } catch (TimeoutException tex) {
+            throw new RadioTimeoutException(tex.getMessage());
+        }
+    }
+
+    public void setTimeout(long millis) throws IOException {
+        conn.setTimeout(millis);
+    }
+
+    public void setMaxBroadcastHops(int hops) throws IOException {
+        conn.setMaxBroadcastHops(hops);
+    }
+
+    public void close() throws IOException {
+        conn.close();
+    }
+}
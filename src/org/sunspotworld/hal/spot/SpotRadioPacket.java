@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.hal.spot;
+
+import com.sun.spot.io.j2me.radiogram.Radiogram;
+import java.io.DataInput;
+import java.io.DataOutput;
+import org.sunspotworld.hal.RadioPacket;
+
+/**
+ * {@link RadioPacket} backed by a {@link Radiogram}.
+ */
+class SpotRadioPacket implements RadioPacket {
+
+    /**
+     * Added to the CC2420 RSSI register value to get dBm.
+     */
+    private static final int RSSI_OFFSET = -45;
+
+    final Radiogram radiogram;
+
+    SpotRadioPacket(Radiogram radiogram) {
+        this.radiogram = radiogram;
+    }
+
+    public void reset() {
+        radiogram.reset();
+    }
+
+    public DataInput getInput() {
+        return radiogram;
+    }
+
+    public DataOutput getOutput() {
+        return radiogram;
+    }
+
+    public int getRssi() {
+        return radiogram.getRssi() + RSSI_OFFSET;
+    }
+
+    public int getLinkQuality() {
+        return radiogram.getLinkQuality();
+    }
+}
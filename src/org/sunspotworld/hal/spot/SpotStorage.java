@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2006-2008 Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package org.sunspotworld.hal.spot;
+
+import java.io.IOException;
+import javax.microedition.rms.RecordStore;
+import javax.microedition.rms.RecordStoreException;
+import org.sunspotworld.hal.Storage;
+
+/**
+ * {@link Storage} in a record store, which the SPOT keeps in flash. The
+ * record is the first one of the store.
+ */
+class SpotStorage implements Storage {
+
+    private static final int RECORD_ID = 1;
+    private final String name;
+
+    SpotStorage(String name) {
+        this.name = name;
+    }
+
+    public byte[] load() throws IOException {
+        RecordStore store = open();
+        try {
+            return store.getNumRecords() == 0 ? null : store.getRecord(RECORD_ID);
+        } catch (RecordStoreException ex) {
+            throw new IOException(ex.getMessage());
+        } finally {
+            close(store);
+        }
+    }
+
+    public void save(byte[] data) throws IOException {
+        RecordStore store = open();
+        try {
+            if (store.getNumRecords() == 0) {
+                store.addRecord(data, 0, data.length);
+            } else {
+                store.setRecord(RECORD_ID, data, 0, data.length);
+            }
+        } catch (RecordStoreException ex) {
+            throw new IOException(ex.getMessage());
+        } finally {
+            close(store);
+        }
+    }
+
+    private RecordStore open() throws IOException {
+        try {
+            return RecordStore.openRecordStore(name, true);
+        } catch (RecordStoreException ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    private static void close(RecordStore store) {
+        try {
+            store.closeRecordStore();
+        } catch (RecordStoreException ex) {
+        }
+    }
+}